@@ -16,42 +16,137 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat;
 
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.http.MediaType;
 
 public class HipChatApiProcessor {
 	
+	// The largest page HipChat serves for room and emoticon listings
+	public static final int MAX_RESULTS = 1000;
+	private static final int MAX_CONNECTIONS_TOTAL = 20;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
+	// Room and emoticon lookups get a share of the connections of their own, so that they can never hold up deliveries
+	private static final int CATALOGUE_CONNECTIONS = HipChatPageLoader.DEFAULT_PARALLEL_PAGES;
+	private static final int DELIVERY_CONNECTIONS = MAX_CONNECTIONS_PER_ROUTE - CATALOGUE_CONNECTIONS;
+	private static final long DEFAULT_KEEP_ALIVE_MILLISECONDS = 30000;
+	private static final long IDLE_CONNECTION_TIMEOUT_MILLISECONDS = 30000;
+	private static final long EVICTION_INTERVAL_MILLISECONDS = 5000;
+	private static final long MAX_RETRY_DELAY_MILLISECONDS = 30000;
+	private static final int ASYNC_IO_THREADS = 2;
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	// Larger buffers aren't kept around between requests
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Mappers, readers and writers are thread-safe once configured, and expensive to create
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final ObjectWriter NOTIFICATION_WRITER = MAPPER.writerWithType(HipChatRoomNotification.class);
+	private static final ObjectReader ROOMS_READER = MAPPER.reader(HipChatRooms.class);
+	private static final ObjectReader EMOTICONS_READER = MAPPER.reader(HipChatEmoticons.class);
+	private static final ObjectReader EMOTICON_READER = MAPPER.reader(HipChatEmoticon.class);
+	private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new ConnectionKeepAliveStrategy() {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			// Honour the server's keep-alive header, but never keep a connection open indefinitely
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return duration > 0 ? duration : DEFAULT_KEEP_ALIVE_MILLISECONDS;
+		}
+	};
+	private static final ThreadLocal<RequestBuffer> REQUEST_BUFFER = new ThreadLocal<RequestBuffer>() {
+		@Override
+		protected RequestBuffer initialValue() {
+			return new RequestBuffer();
+		}
+	};
+
 	private HipChatConfiguration configuration;
 	private Properties systemProperties;
+	private final Object clientLock = new Object();
+	private volatile PooledClient pooledClient;
+	private ScheduledExecutorService retryScheduler;
+	// Deliveries waiting on the retry scheduler, so that they can be completed if it is shut down under them
+	private final Set<AsyncDelivery> scheduledDeliveries = Collections.newSetFromMap(new ConcurrentHashMap<AsyncDelivery, Boolean>());
+	private boolean disposed;
+	private HipChatRateLimiter rateLimiter;
+	private HipChatRetryBudget retryBudget;
+	private HipChatNotificationStatistics statistics;
+	private HipChatCircuitBreaker circuitBreaker;
+	// A permit is held from sending a request until its response has been released
+	private final Semaphore deliveryPermits = new Semaphore(DELIVERY_CONNECTIONS);
+	private final Semaphore cataloguePermits = new Semaphore(CATALOGUE_CONNECTIONS);
+	// Last parsed room and emoticon pages, by token and URI, for conditional requests
+	private final ConcurrentHashMap<String, CachedPage> pageCache = new ConcurrentHashMap<String, CachedPage>();
 	
 	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
 	
@@ -60,30 +155,38 @@ public class HipChatApiProcessor {
 	}	
 	
 	public HipChatApiProcessor(@NotNull HipChatConfiguration configuration, Properties systemProperties) throws URISyntaxException {
+		this(configuration, systemProperties, new HipChatRateLimiter());
+	}
+	
+	public HipChatApiProcessor(@NotNull HipChatConfiguration configuration, Properties systemProperties, @NotNull HipChatRateLimiter rateLimiter) throws URISyntaxException {
+		this(configuration, systemProperties, rateLimiter, new HipChatRetryBudget());
+	}
+	
+	public HipChatApiProcessor(@NotNull HipChatConfiguration configuration, Properties systemProperties, @NotNull HipChatRateLimiter rateLimiter, @NotNull HipChatRetryBudget retryBudget) throws URISyntaxException {
+		this(configuration, systemProperties, rateLimiter, retryBudget, new HipChatCircuitBreaker());
+	}
+	
+	public HipChatApiProcessor(@NotNull HipChatConfiguration configuration, Properties systemProperties, @NotNull HipChatRateLimiter rateLimiter, @NotNull HipChatRetryBudget retryBudget, @NotNull HipChatCircuitBreaker circuitBreaker) throws URISyntaxException {
 		this.configuration = configuration;
 		this.systemProperties = systemProperties;
+		this.rateLimiter = rateLimiter;
+		this.retryBudget = retryBudget;
+		this.statistics = new HipChatNotificationStatistics();
+		this.circuitBreaker = circuitBreaker;
 	}
 	
+	// The page carries its ETag, if HipChat sent one, so that it can be saved and revalidated after a restart
 	public HipChatEmoticons getEmoticons(int startIndex) {
 		try {
-			URI uri = new URI(String.format("%s%s?start-index=%s", this.configuration.getApiUrl(), "emoticon", startIndex));
-			String authorisationHeader = String.format("Bearer %s", this.configuration.getApiToken());
-
-			// Make request
-			HttpClient client = createClient();
-			HttpGet getRequest = new HttpGet(uri.toString());
-			getRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
-			getRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
-			HttpResponse getResponse = client.execute(getRequest);
-			StatusLine status = getResponse.getStatusLine();
-			if (status.getStatusCode() != HttpStatus.SC_OK) {
-				logger.error(String.format("Could not retrieve emoticons: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+			CachedPage page = this.getTaggedResource(getPageResource("emoticon", startIndex), EMOTICONS_READER);
+			if (page == null) {
 				return null;
 			}
-			
-			Reader reader = new InputStreamReader(getResponse.getEntity().getContent());
-			ObjectMapper mapper = new ObjectMapper();
-			return mapper.readValue(reader, HipChatEmoticons.class);
+			HipChatEmoticons emoticons = (HipChatEmoticons) page.page;
+			emoticons.eTag = page.eTag;
+			return emoticons;
+		} catch (HipChatApiUnavailableException e) {
+			logger.warn(String.format("Emoticons not retrieved: %s", e.getMessage()));
 		} catch (Exception e) {
 			logger.error("Could not get emoticons", e);
 		}
@@ -91,26 +194,38 @@ public class HipChatApiProcessor {
 		return null;
 	}
 	
+	// Seeds the page cache with an emoticon page saved by an earlier run, so the next request for it is revalidated 
+	// rather than downloaded again
+	public void restoreEmoticons(int startIndex, HipChatEmoticons page) {
+		if (page.eTag == null) {
+			return;
+		}
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		String uri = String.format("%s%s", configuration.getApiUrl(), getPageResource("emoticon", startIndex));
+		this.pageCache.putIfAbsent(getPageCacheKey(configuration, uri), new CachedPage(page.eTag, page));
+	}
+	
+	// Null if HipChat has no such emoticon, or it couldn't be retrieved
+	public HipChatEmoticon getEmoticon(String shortcut) {
+		try {
+			return this.getResource(String.format("emoticon/%s", URLEncoder.encode(shortcut, UTF8.name())), EMOTICON_READER, HipChatEmoticon.class);
+		} catch (HipChatApiUnavailableException e) {
+			logger.warn(String.format("Emoticon %s not retrieved: %s", shortcut, e.getMessage()));
+		} catch (Exception e) {
+			logger.error(String.format("Could not get emoticon %s", shortcut), e);
+		}
+		
+		return null;
+	}
+	
 	public HipChatRooms getRooms(int startIndex) {
 		try {
-			URI uri = new URI(String.format("%s%s?start-index=%s", this.configuration.getApiUrl(), "room", startIndex));
-			String authorisationHeader = String.format("Bearer %s", this.configuration.getApiToken());
-
-			// Make request
-			HttpClient client = createClient();
-			HttpGet getRequest = new HttpGet(uri.toString());
-			getRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
-			getRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
-			HttpResponse getResponse = client.execute(getRequest);
-			StatusLine status = getResponse.getStatusLine();
-			if (status.getStatusCode() != HttpStatus.SC_OK) {
-				logger.error(String.format("Could not retrieve rooms: %s %s", status.getStatusCode(), status.getReasonPhrase()));
-				return new HipChatRooms(new ArrayList<HipChatRoom>(), 0, 0, null);
+			HipChatRooms rooms = this.getPage("room", startIndex, ROOMS_READER, HipChatRooms.class);
+			if (rooms != null) {
+				return rooms;
 			}
-			
-			Reader reader = new InputStreamReader(getResponse.getEntity().getContent());
-			ObjectMapper mapper = new ObjectMapper();
-			return mapper.readValue(reader, HipChatRooms.class);
+		} catch (HipChatApiUnavailableException e) {
+			logger.warn(String.format("Rooms not retrieved: %s", e.getMessage()));
 		} catch (Exception e) {
 			logger.error("Could not get rooms", e);
 		}
@@ -118,47 +233,212 @@ public class HipChatApiProcessor {
 		return new HipChatRooms(new ArrayList<HipChatRoom>(), 0, 0, null);
 	}
 	
-	public void sendNotification(HipChatRoomNotification notification, String roomId) {
-		try {
-			String resource = String.format("room/%s/notification", roomId);
-			URI uri = new URI(String.format("%s%s", this.configuration.getApiUrl(), resource));
-			String authorisationHeader = String.format("Bearer %s", this.configuration.getApiToken());
+	private <T> T getPage(String resource, int startIndex, ObjectReader reader, Class<T> type) throws Exception {
+		return this.getResource(getPageResource(resource, startIndex), reader, type);
+	}
+	
+	private static String getPageResource(String resource, int startIndex) {
+		return String.format("%s?start-index=%s&max-results=%s", resource, startIndex, MAX_RESULTS);
+	}
+	
+	private static String getPageCacheKey(HipChatConfigurationSnapshot configuration, String uri) {
+		return String.format("%s|%s", configuration.getApiToken(), uri);
+	}
+	
+	private <T> T getResource(String resource, ObjectReader reader, Class<T> type) throws Exception {
+		CachedPage page = this.getTaggedResource(resource, reader);
+		return page == null ? null : type.cast(page.page);
+	}
+	
+	// The resource and its ETag, if any; null if it couldn't be retrieved
+	private CachedPage getTaggedResource(String resource, ObjectReader reader) throws Exception {
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		URI uri = new URI(String.format("%s%s", configuration.getApiUrl(), resource));
+		String authorisationHeader = String.format("Bearer %s", configuration.getApiToken());
 
-			// Serialise the notification to JSON
-			ObjectMapper mapper = new ObjectMapper();
-			String json = mapper.writeValueAsString(notification);
-			logger.debug(json);
+		// Make request; pages that have not changed since they were last fetched come back as an empty 304
+		HttpGet getRequest = new HttpGet(uri.toString());
+		getRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
+		getRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
+		getRequest.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		String cacheKey = getPageCacheKey(configuration, uri.toString());
+		CachedPage cachedPage = this.pageCache.get(cacheKey);
+		if (cachedPage != null) {
+			getRequest.addHeader(HttpHeaders.IF_NONE_MATCH, cachedPage.eTag);
+		}
+		// Lookups draw on the same rate limits as notifications, but never wait for them; the caller keeps what it has
+		if (!this.circuitBreaker.isCallPermitted()) {
+			throw new HipChatApiUnavailableException("HipChat circuit open");
+		}
+		long wait = this.rateLimiter.tryAcquire(configuration.getApiToken(), null);
+		if (wait > 0) {
+			throw new HipChatApiUnavailableException(String.format("Rate limit reached; try again in %s ms", wait));
+		}
+		Exchange getExchange = this.execute(configuration, getRequest, this.cataloguePermits, false);
+		try {
+			CloseableHttpResponse getResponse = getExchange.response;
+			this.rateLimiter.update(configuration.getApiToken(), null, getResponse);
+			StatusLine status = getResponse.getStatusLine();
+			if (status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cachedPage != null) {
+				logger.debug(String.format("Not modified: %s", uri));
+				return cachedPage;
+			}
+			if (status.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+				logger.debug(String.format("Not found: %s", uri));
+				return null;
+			}
+			if (status.getStatusCode() != HttpStatus.SC_OK) {
+				logger.error(String.format("Could not retrieve %s: %s %s", uri, status.getStatusCode(), status.getReasonPhrase()));
+				return null;
+			}
+			
+			// Parsed straight from the response bytes, which Jackson decodes as UTF-8; gzip is undone by the client
+			Object page = reader.readValue(getResponse.getEntity().getContent());
+			Header eTag = getResponse.getFirstHeader(HttpHeaders.ETAG);
+			CachedPage taggedPage = new CachedPage(eTag == null ? null : eTag.getValue(), page);
+			if (eTag != null) {
+				this.pageCache.put(cacheKey, taggedPage);
+			} else {
+				this.pageCache.remove(cacheKey);
+			}
+			return taggedPage;
+		} finally {
+			release(getExchange);
+		}
+	}
+	
+	public boolean sendNotification(HipChatRoomNotification notification, String roomId) throws HipChatApiUnavailableException {
+		// One snapshot for the whole delivery, so the URL, token and client settings always belong together
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		try {
+			// Serialise the notification to JSON, straight into this thread's buffer
+			RequestBuffer buffer = REQUEST_BUFFER.get();
+			buffer.reset();
+			NOTIFICATION_WRITER.writeValue(buffer, notification);
+			if (logger.isDebugEnabled()) {
+				logger.debug(buffer.toString(UTF8.name()));
+			}
 
-			// Make request
-			HttpClient client = createClient();
-			HttpPost postRequest = new HttpPost(uri.toString());
-			postRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
-			postRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
-			postRequest.setEntity(new StringEntity(json, Charset.forName("UTF-8")));
-			HttpResponse postResponse = client.execute(postRequest);
-			StatusLine status = postResponse.getStatusLine();
-			if (status.getStatusCode() != HttpStatus.SC_NO_CONTENT) {
-				logger.error(String.format("Message could not be delivered: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+			// Make request, pacing it to stay within the rate limits and retrying transient failures
+			HttpPost postRequest = createNotificationRequest(configuration, roomId, buffer.toEntity());
+			this.retryBudget.deposit();
+			int maxAttempts = Math.max(1, configuration.getDeliveryMaxAttempts());
+			// Waits for a connection as long as the dispatcher would wait for queue space; otherwise it is handed back to be requeued
+			boolean block = configuration.getDispatchOverflowPolicy() == HipChatDispatchOverflowPolicy.BLOCK;
+			for (int attempt = 1; ; attempt++) {
+				// Checked first, so that a call the circuit would turn away doesn't use up a token
+				if (!this.circuitBreaker.isCallPermitted()) {
+					throw new HipChatApiUnavailableException("HipChat circuit open");
+				}
+				this.rateLimiter.acquire(configuration.getApiToken(), roomId);
+				boolean throttled = false;
+				try {
+					Exchange postExchange = this.execute(configuration, postRequest, this.deliveryPermits, block);
+					try {
+						CloseableHttpResponse postResponse = postExchange.response;
+						this.rateLimiter.update(configuration.getApiToken(), roomId, postResponse);
+						StatusLine status = postResponse.getStatusLine();
+						if (status.getStatusCode() == HttpStatus.SC_NO_CONTENT) {
+							this.statistics.delivered(roomId);
+							return true;
+						}
+						throttled = HipChatRateLimiter.isThrottled(postResponse);
+						if (!throttled && status.getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR || attempt >= maxAttempts) {
+							logger.error(String.format("Message could not be delivered: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+							this.statistics.failed(roomId);
+							return false;
+						}
+						logger.warn(String.format("Attempt %s of %s to notify room %s failed: %s %s", attempt, maxAttempts, roomId, status.getStatusCode(), status.getReasonPhrase()));
+					} finally {
+						release(postExchange);
+					}
+				} catch (IOException e) {
+					if (!isRetryable(e) || attempt >= maxAttempts) {
+						throw e;
+					}
+					logger.warn(String.format("Attempt %s of %s to notify room %s failed: %s", attempt, maxAttempts, roomId, e));
+				}
+				
+				// A HipChat outage must not turn into a retry storm that holds up fresh messages
+				if (!this.retryBudget.tryWithdraw()) {
+					logger.error(String.format("Message could not be delivered to room %s: retry budget exhausted", roomId));
+					this.statistics.retryBudgetExhausted(roomId);
+					this.statistics.failed(roomId);
+					return false;
+				}
+				this.statistics.retried(roomId);
+				// When throttled, the rate limiter already knows how long to hold off
+				if (!throttled) {
+					Thread.sleep(getRetryDelay(configuration, attempt));
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while waiting to post room notification");
+			Thread.currentThread().interrupt();
+		} catch (HipChatApiUnavailableException e) {
+			// Not a failure of the notification itself; it is up to the caller to try again later
+			logger.debug(String.format("Message not sent to room %s: %s", roomId, e.getMessage()));
+			throw e;
+		} catch (Exception e) {
+			logger.error("Could not post room notification", e);
+		} finally {
+			if (REQUEST_BUFFER.get().size() > MAX_RETAINED_BUFFER_SIZE) {
+				REQUEST_BUFFER.remove();
+			}
+		}
+		this.statistics.failed(roomId);
+		return false;
+	}
+	
+	public Future<Boolean> sendNotificationAsync(HipChatRoomNotification notification, String roomId, HipChatDeliveryCallback callback) {
+		// Same pacing, retries and circuit breaking as sendNotification, but nothing waits on the response: 
+		// it is handled on one of the client's I/O threads, and retries are scheduled rather than slept on
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		AsyncDelivery delivery = new AsyncDelivery(configuration, roomId, callback);
+		try {
+			// The request outlives this call, so it gets its own copy of the JSON rather than the thread's buffer
+			byte[] json = NOTIFICATION_WRITER.writeValueAsBytes(notification);
+			if (logger.isDebugEnabled()) {
+				logger.debug(new String(json, UTF8));
 			}
+			delivery.request = createNotificationRequest(configuration, roomId, new ByteArrayEntity(json, ContentType.APPLICATION_JSON));
 		} catch (Exception e) {
 			logger.error("Could not post room notification", e);
+			this.statistics.failed(roomId);
+			delivery.future.completed(false);
+			return delivery.future;
 		}
+		this.retryBudget.deposit();
+		delivery.attempt();
+		return delivery.future;
+	}
+	
+	public HipChatNotificationStatistics getStatistics() {
+		return this.statistics;
+	}
+	
+	public HipChatCircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
 	}
 	
 	public boolean testAuthentication() {
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
 		try {
-			String resource = String.format("room?auth_token=%s&auth_test=true", this.configuration.getApiToken());
-			URI uri = new URI(String.format("%s%s", this.configuration.getApiUrl(), resource));
+			String resource = String.format("room?auth_token=%s&auth_test=true", configuration.getApiToken());
+			URI uri = new URI(String.format("%s%s", configuration.getApiUrl(), resource));
 
 			// Make request
-			HttpClient client = createClient();
 			HttpGet getRequest = new HttpGet(uri.toString());
-			HttpResponse postResponse = client.execute(getRequest);
-			StatusLine status = postResponse.getStatusLine();
-			if (status.getStatusCode() == HttpStatus.SC_ACCEPTED) {
-				return true;
-			} else {
-				logger.error(String.format("Authentication failed: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+			Exchange getExchange = this.send(configuration, getRequest, null);
+			try {
+				StatusLine status = getExchange.response.getStatusLine();
+				if (status.getStatusCode() == HttpStatus.SC_ACCEPTED) {
+					return true;
+				} else {
+					logger.error(String.format("Authentication failed: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+				}
+			} finally {
+				release(getExchange);
 			}
 		} catch (Exception e) {
 			logger.error("Request failed", e);
@@ -167,33 +447,578 @@ public class HipChatApiProcessor {
 		return false;		
 	}
 
-	private CloseableHttpClient createClient() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-		if (this.configuration.getBypassSslCheck()) {
+	public void dispose() {
+		List<AsyncDelivery> abandoned;
+		synchronized (this.clientLock) {
+			this.disposed = true;
+			if (this.pooledClient != null) {
+				this.pooledClient.retire();
+				this.pooledClient = null;
+			}
+			if (this.retryScheduler != null) {
+				this.retryScheduler.shutdownNow();
+				this.retryScheduler = null;
+			}
+			abandoned = new ArrayList<AsyncDelivery>(this.scheduledDeliveries);
+			this.scheduledDeliveries.clear();
+		}
+		// Completed rather than dropped, so that whoever is waiting on them, such as the transport's permits, is released
+		if (!abandoned.isEmpty()) {
+			logger.warn(String.format("%s notification retry(s) abandoned", abandoned.size()));
+		}
+		for (AsyncDelivery delivery : abandoned) {
+			delivery.unavailable("HTTP client disposed");
+		}
+		logger.debug("HTTP client disposed");
+	}
+
+	private Exchange execute(HipChatConfigurationSnapshot configuration, HttpUriRequest request, Semaphore permits, boolean block) throws IOException, InterruptedException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		// Fail fast when HipChat is known to be down, or when this kind of request has used up its connections
+		if (block) {
+			permits.acquire();
+		} else if (!permits.tryAcquire(configuration.getConnectionRequestTimeout(), TimeUnit.MILLISECONDS)) {
+			throw new HipChatApiUnavailableException("Too many concurrent HipChat requests");
+		}
+		boolean sent = false;
+		try {
+			if (!this.circuitBreaker.tryAcquire()) {
+				throw new HipChatApiUnavailableException("HipChat circuit open");
+			}
+			boolean failed = true;
+			try {
+				Exchange exchange = this.send(configuration, request, permits);
+				sent = true;
+				failed = exchange.response.getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+				return exchange;
+			} finally {
+				if (failed) {
+					this.circuitBreaker.onFailure();
+				} else {
+					this.circuitBreaker.onSuccess();
+				}
+			}
+		} finally {
+			// Otherwise the permit goes back once the response has been released
+			if (!sent) {
+				permits.release();
+			}
+		}
+	}
+	
+	private Exchange send(HipChatConfigurationSnapshot configuration, HttpUriRequest request, Semaphore permit) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		// The client stays open until the response has been released, even if the pool is replaced meanwhile
+		PooledClient client = getClient(configuration);
+		boolean sent = false;
+		try {
+			Exchange exchange = new Exchange(client, client.client.execute(request), permit);
+			sent = true;
+			return exchange;
+		} finally {
+			if (!sent) {
+				client.release();
+			}
+		}
+	}
+	
+	private PooledClient getClient(HipChatConfigurationSnapshot configuration) throws HipChatApiUnavailableException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		// The client (and its connection pool) is only rebuilt when something that affects how connections are made changes
+		String key = getClientKey(configuration);
+		while (true) {
+			PooledClient client = this.pooledClient;
+			if (client == null || !client.key.equals(key)) {
+				synchronized (this.clientLock) {
+					if (this.disposed) {
+						throw new HipChatApiUnavailableException("HTTP client disposed");
+					}
+					client = this.pooledClient;
+					if (client == null || !client.key.equals(key)) {
+						PooledClient previousClient = client;
+						client = createClient(configuration, key);
+						this.pooledClient = client;
+						if (previousClient != null) {
+							logger.info("HTTP client configuration changed; connection pool rebuilt");
+							// Requests still running on the old pool are left to finish; it closes after the last one
+							previousClient.retire();
+						}
+					}
+				}
+			}
+			// A client retired between reading it and acquiring it is skipped in favour of its replacement
+			if (client.acquire()) {
+				client.evictConnections();
+				return client;
+			}
+		}
+	}
+	
+	private HttpPost createNotificationRequest(HipChatConfigurationSnapshot configuration, String roomId, HttpEntity entity) throws URISyntaxException {
+		String resource = String.format("room/%s/notification", roomId);
+		URI uri = new URI(String.format("%s%s", configuration.getApiUrl(), resource));
+		String authorisationHeader = String.format("Bearer %s", configuration.getApiToken());
+		HttpPost postRequest = new HttpPost(uri.toString());
+		postRequest.addHeader(HttpHeaders.AUTHORIZATION, authorisationHeader);
+		postRequest.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON.toString());
+		postRequest.setEntity(entity);
+		return postRequest;
+	}
+	
+	private void scheduleRetry(final AsyncDelivery delivery, final Runnable retry, long delay) {
+		synchronized (this.clientLock) {
+			if (!this.disposed) {
+				if (this.retryScheduler == null) {
+					this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "HipChat notification retry");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+				this.scheduledDeliveries.add(delivery);
+				this.retryScheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						scheduledDeliveries.remove(delivery);
+						retry.run();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		delivery.unavailable("HTTP client disposed");
+	}
+	
+	private CloseableHttpAsyncClient getAsyncClient(PooledClient client, HipChatConfigurationSnapshot configuration) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		// Only started once something is actually sent asynchronously; it shares the blocking client's lifetime
+		synchronized (client) {
+			AsyncClient asyncClient = client.getAsyncClient();
+			if (asyncClient == null) {
+				asyncClient = createAsyncClient(configuration);
+				client.setAsyncClient(asyncClient);
+			}
+			return asyncClient.client;
+		}
+	}
+	
+	private String getClientKey(HipChatConfigurationSnapshot configuration) {
+		return String.format("%s|%s|%s|%s|%s|%s|%s", 
+				configuration.getApiUrl(), 
+				configuration.getBypassSslCheck(), 
+				configuration.getConnectTimeout(), 
+				configuration.getSocketTimeout(), 
+				configuration.getConnectionRequestTimeout(), 
+				this.systemProperties.getProperty("http.proxyHost"), 
+				this.systemProperties.getProperty("http.proxyPort"));
+	}
+
+	private PooledClient createClient(HipChatConfigurationSnapshot configuration, String key) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		RegistryBuilder<ConnectionSocketFactory> registryBuilder = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory());
+		HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
+		if (configuration.getBypassSslCheck()) {
 			logger.warn("SSL check being bypassed");
-			SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
-			sslContextBuilder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
-			SSLConnectionSocketFactory socketFactory = new SSLConnectionSocketFactory(sslContextBuilder.build(), SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-			HttpClientBuilder httpClientBuilder = HttpClients.custom().setSSLSocketFactory(socketFactory);
-			CloseableHttpClient client = httpClientBuilder.build();
-			return client;
+			SSLConnectionSocketFactory socketFactory = new SSLConnectionSocketFactory(createTrustSelfSignedContext(), SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+			registryBuilder.register("https", socketFactory);
 		} else {
-			HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-			String proxyHost = systemProperties.getProperty("http.proxyHost");
-			if (proxyHost != null) {
-				logger.info("Proxy configuration detected");
-				logger.debug(String.format("Host: %s", proxyHost));
-				int proxyPort = 80;
-				String proxyPortString = systemProperties.getProperty("http.proxyPort");
-				if (proxyPortString != null) {
-					proxyPort = Integer.parseInt(proxyPortString);
-				}
-				HttpHost proxy = new HttpHost(proxyHost, proxyPort, "http");
+			registryBuilder.register("https", SSLConnectionSocketFactory.getSocketFactory());
+			HttpHost proxy = this.getProxy();
+			if (proxy != null) {
 				DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxy);
 				httpClientBuilder.setRoutePlanner(routePlanner);
-				logger.info(String.format("Proxy configured: %s:%s", proxyHost, proxyPort));
+				logger.info(String.format("Proxy configured: %s:%s", proxy.getHostName(), proxy.getPort()));
+			}
+		}
+		
+		Registry<ConnectionSocketFactory> registry = registryBuilder.build();
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+		connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		httpClientBuilder.setConnectionManager(connectionManager);
+		httpClientBuilder.setDefaultRequestConfig(RequestConfig.custom()
+				.setConnectTimeout(configuration.getConnectTimeout())
+				.setSocketTimeout(configuration.getSocketTimeout())
+				.setConnectionRequestTimeout(configuration.getConnectionRequestTimeout())
+				.build());
+		httpClientBuilder.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+		logger.debug(String.format("HTTP client created: %s", key));
+		return new PooledClient(key, httpClientBuilder.build(), connectionManager);
+	}
+	
+	private AsyncClient createAsyncClient(HipChatConfigurationSnapshot configuration) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		// The same connection settings as the blocking client, served by a handful of I/O threads
+		RegistryBuilder<SchemeIOSessionStrategy> registryBuilder = RegistryBuilder.<SchemeIOSessionStrategy>create()
+				.register("http", NoopIOSessionStrategy.INSTANCE);
+		HttpAsyncClientBuilder httpClientBuilder = HttpAsyncClientBuilder.create();
+		if (configuration.getBypassSslCheck()) {
+			registryBuilder.register("https", new SSLIOSessionStrategy(createTrustSelfSignedContext(), SSLIOSessionStrategy.ALLOW_ALL_HOSTNAME_VERIFIER));
+		} else {
+			registryBuilder.register("https", SSLIOSessionStrategy.getDefaultStrategy());
+			HttpHost proxy = this.getProxy();
+			if (proxy != null) {
+				httpClientBuilder.setRoutePlanner(new DefaultProxyRoutePlanner(proxy));
+			}
+		}
+		
+		IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ASYNC_IO_THREADS)
+				.setConnectTimeout(configuration.getConnectTimeout())
+				.setSoTimeout(configuration.getSocketTimeout())
+				.build();
+		PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig), registryBuilder.build());
+		connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		httpClientBuilder.setConnectionManager(connectionManager);
+		httpClientBuilder.setDefaultRequestConfig(RequestConfig.custom()
+				.setConnectTimeout(configuration.getConnectTimeout())
+				.setSocketTimeout(configuration.getSocketTimeout())
+				.setConnectionRequestTimeout(configuration.getConnectionRequestTimeout())
+				.build());
+		httpClientBuilder.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+		CloseableHttpAsyncClient client = httpClientBuilder.build();
+		client.start();
+		logger.debug(String.format("Asynchronous HTTP client started: %s I/O thread(s)", ASYNC_IO_THREADS));
+		return new AsyncClient(client, connectionManager);
+	}
+	
+	private HttpHost getProxy() {
+		String proxyHost = this.systemProperties.getProperty("http.proxyHost");
+		if (proxyHost == null) {
+			return null;
+		}
+		logger.info("Proxy configuration detected");
+		logger.debug(String.format("Host: %s", proxyHost));
+		int proxyPort = 80;
+		String proxyPortString = this.systemProperties.getProperty("http.proxyPort");
+		if (proxyPortString != null) {
+			proxyPort = Integer.parseInt(proxyPortString);
+		}
+		return new HttpHost(proxyHost, proxyPort, "http");
+	}
+	
+	private static SSLContext createTrustSelfSignedContext() throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+		SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
+		sslContextBuilder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
+		return sslContextBuilder.build();
+	}
+	
+	private long getRetryDelay(HipChatConfigurationSnapshot configuration, int attempt) {
+		// Exponential backoff with jitter, so that messages that failed together are not all retried together
+		long delay = Math.min(MAX_RETRY_DELAY_MILLISECONDS, (long) Math.max(1, configuration.getDeliveryRetryDelay()) << Math.min(attempt - 1, 16));
+		return delay / 2 + (long) (ThreadLocalRandom.current().nextDouble() * (delay / 2 + 1));
+	}
+	
+	private static boolean isRetryable(IOException e) {
+		// These won't go away by trying again
+		return !(e instanceof UnsupportedSchemeException || e instanceof ClientProtocolException || e instanceof SSLException || e instanceof HipChatApiUnavailableException);
+	}
+	
+	private static void release(Exchange exchange) {
+		// Consuming the entity returns the connection to the pool for reuse
+		EntityUtils.consumeQuietly(exchange.response.getEntity());
+		try {
+			exchange.response.close();
+		} catch (IOException e) {
+			logger.debug("Could not close response", e);
+		} finally {
+			exchange.client.release();
+			if (exchange.permit != null) {
+				exchange.permit.release();
+			}
+		}
+	}
+	
+	private class AsyncDelivery implements FutureCallback<HttpResponse> {
+
+		private final HipChatConfigurationSnapshot configuration;
+		private final String roomId;
+		private final int maxAttempts;
+		private final BasicFuture<Boolean> future;
+		private HttpPost request;
+		private int attempt;
+		private PooledClient client;
+		private boolean permit;
+
+		public AsyncDelivery(HipChatConfigurationSnapshot configuration, String roomId, final HipChatDeliveryCallback callback) {
+			this.configuration = configuration;
+			this.roomId = roomId;
+			this.maxAttempts = Math.max(1, configuration.getDeliveryMaxAttempts());
+			this.future = new BasicFuture<Boolean>(callback == null ? null : new FutureCallback<Boolean>() {
+				@Override
+				public void completed(Boolean delivered) {
+					callback.completed(delivered);
+				}
+
+				@Override
+				public void failed(Exception e) {
+					callback.failed(e);
+				}
+
+				@Override
+				public void cancelled() {
+					callback.completed(false);
+				}
+			});
+		}
+
+		public void attempt() {
+			this.attempt++;
+			this.send();
+		}
+
+		private void send() {
+			// Nothing here waits; when the rate limits say hold off, the attempt is scheduled for when they allow it
+			if (!circuitBreaker.isCallPermitted()) {
+				this.unavailable("HipChat circuit open");
+				return;
+			}
+			// The same bulkhead as the blocking path, so that asynchronous deliveries can't take the lookups' connections either
+			if (!deliveryPermits.tryAcquire()) {
+				this.unavailable("Too many concurrent HipChat requests");
+				return;
+			}
+			long wait = rateLimiter.tryAcquire(this.configuration.getApiToken(), this.roomId);
+			if (wait > 0) {
+				deliveryPermits.release();
+				logger.debug(String.format("Rate limit reached; notifying room %s in %s ms", this.roomId, wait));
+				scheduleRetry(this, new Runnable() {
+					@Override
+					public void run() {
+						send();
+					}
+				}, wait);
+				return;
+			}
+			if (!circuitBreaker.tryAcquire()) {
+				deliveryPermits.release();
+				this.unavailable("HipChat circuit open");
+				return;
+			}
+			this.permit = true;
+			try {
+				this.client = getClient(this.configuration);
+				getAsyncClient(this.client, this.configuration).execute(this.request, this);
+			} catch (HipChatApiUnavailableException e) {
+				this.release();
+				this.unavailable(e.getMessage());
+			} catch (Exception e) {
+				this.failed(e);
+			}
+		}
+
+		@Override
+		public void completed(HttpResponse response) {
+			this.release();
+			StatusLine status = response.getStatusLine();
+			if (status.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+				circuitBreaker.onFailure();
+			} else {
+				circuitBreaker.onSuccess();
+			}
+			rateLimiter.update(this.configuration.getApiToken(), this.roomId, response);
+			if (status.getStatusCode() == HttpStatus.SC_NO_CONTENT) {
+				statistics.delivered(this.roomId);
+				this.future.completed(true);
+				return;
+			}
+			boolean throttled = HipChatRateLimiter.isThrottled(response);
+			if (!throttled && status.getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR || this.attempt >= this.maxAttempts) {
+				logger.error(String.format("Message could not be delivered: %s %s", status.getStatusCode(), status.getReasonPhrase()));
+				this.fail();
+				return;
+			}
+			logger.warn(String.format("Attempt %s of %s to notify room %s failed: %s %s", this.attempt, this.maxAttempts, this.roomId, status.getStatusCode(), status.getReasonPhrase()));
+			this.retry(throttled);
+		}
+
+		@Override
+		public void failed(Exception e) {
+			this.release();
+			circuitBreaker.onFailure();
+			if (!(e instanceof IOException) || !isRetryable((IOException) e) || this.attempt >= this.maxAttempts) {
+				logger.error("Could not post room notification", e);
+				this.fail();
+				return;
+			}
+			logger.warn(String.format("Attempt %s of %s to notify room %s failed: %s", this.attempt, this.maxAttempts, this.roomId, e));
+			this.retry(false);
+		}
+
+		@Override
+		public void cancelled() {
+			this.release();
+			circuitBreaker.onFailure();
+			logger.warn(String.format("Notification to room %s cancelled", this.roomId));
+			this.fail();
+		}
+
+		private void retry(boolean throttled) {
+			// A HipChat outage must not turn into a retry storm that holds up fresh messages
+			if (!retryBudget.tryWithdraw()) {
+				logger.error(String.format("Message could not be delivered to room %s: retry budget exhausted", this.roomId));
+				statistics.retryBudgetExhausted(this.roomId);
+				this.fail();
+				return;
+			}
+			statistics.retried(this.roomId);
+			// When throttled, the rate limiter already knows how long to hold off
+			scheduleRetry(this, new Runnable() {
+				@Override
+				public void run() {
+					attempt();
+				}
+			}, throttled ? 0 : getRetryDelay(this.configuration, this.attempt));
+		}
+
+		private void fail() {
+			statistics.failed(this.roomId);
+			this.future.completed(false);
+		}
+
+		public void unavailable(String reason) {
+			// Not a failure of the notification itself; it is up to the caller to try again later
+			logger.debug(String.format("Message not sent to room %s: %s", this.roomId, reason));
+			this.future.failed(new HipChatApiUnavailableException(reason));
+		}
+
+		private void release() {
+			if (this.client != null) {
+				this.client.release();
+				this.client = null;
+			}
+			if (this.permit) {
+				deliveryPermits.release();
+				this.permit = false;
+			}
+		}
+
+	}
+
+	private static class Exchange {
+
+		private final PooledClient client;
+		private final CloseableHttpResponse response;
+		private final Semaphore permit;
+
+		public Exchange(PooledClient client, CloseableHttpResponse response, Semaphore permit) {
+			this.client = client;
+			this.response = response;
+			this.permit = permit;
+		}
+
+	}
+
+	private static class CachedPage {
+
+		private final String eTag;
+		private final Object page;
+
+		public CachedPage(String eTag, Object page) {
+			this.eTag = eTag;
+			this.page = page;
+		}
+
+	}
+
+	private static class RequestBuffer extends ByteArrayOutputStream {
+		
+		public RequestBuffer() {
+			super(INITIAL_BUFFER_SIZE);
+		}
+		
+		public HttpEntity toEntity() {
+			// Wraps the buffer rather than copying it; only valid until the buffer is next reset
+			return new ByteArrayEntity(this.buf, 0, this.count, ContentType.APPLICATION_JSON);
+		}
+		
+	}
+	
+	private static class AsyncClient {
+
+		private final CloseableHttpAsyncClient client;
+		private final PoolingNHttpClientConnectionManager connectionManager;
+
+		public AsyncClient(CloseableHttpAsyncClient client, PoolingNHttpClientConnectionManager connectionManager) {
+			this.client = client;
+			this.connectionManager = connectionManager;
+		}
+
+	}
+
+	private static class PooledClient {
+		
+		private final String key;
+		private final CloseableHttpClient client;
+		private final PoolingHttpClientConnectionManager connectionManager;
+		private volatile long lastEviction;
+		private AsyncClient asyncClient;
+		private int users;
+		private boolean retired;
+		
+		public PooledClient(String key, CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+			this.key = key;
+			this.client = client;
+			this.connectionManager = connectionManager;
+			this.lastEviction = System.currentTimeMillis();
+		}
+		
+		public void evictConnections() {
+			long now = System.currentTimeMillis();
+			if (now - this.lastEviction < EVICTION_INTERVAL_MILLISECONDS) {
+				return;
+			}
+			this.lastEviction = now;
+			this.connectionManager.closeExpiredConnections();
+			this.connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+			AsyncClient asyncClient = this.getAsyncClient();
+			if (asyncClient != null) {
+				asyncClient.connectionManager.closeExpiredConnections();
+				asyncClient.connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		public synchronized AsyncClient getAsyncClient() {
+			return this.asyncClient;
+		}
+		
+		public synchronized void setAsyncClient(AsyncClient asyncClient) {
+			this.asyncClient = asyncClient;
+		}
+		
+		public synchronized boolean acquire() {
+			if (this.retired) {
+				return false;
 			}
-			return httpClientBuilder.build();
+			this.users++;
+			return true;
 		}
+		
+		public synchronized void release() {
+			this.users--;
+			if (this.retired && this.users == 0) {
+				this.close();
+			}
+		}
+		
+		public synchronized void retire() {
+			this.retired = true;
+			if (this.users == 0) {
+				this.close();
+			}
+		}
+		
+		private void close() {
+			try {
+				this.client.close();
+				if (this.asyncClient != null) {
+					this.asyncClient.client.close();
+				}
+			} catch (IOException e) {
+				logger.debug("Could not close HTTP client", e);
+			}
+			logger.debug(String.format("HTTP client closed: %s", this.key));
+		}
+		
 	}
 
 }
@@ -0,0 +1,30 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.IOException;
+
+// Thrown instead of making a request when the circuit breaker, bulkhead or rate limiter won't allow it
+public class HipChatApiUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public HipChatApiUnavailableException(String message) {
+		super(message);
+	}
+
+}
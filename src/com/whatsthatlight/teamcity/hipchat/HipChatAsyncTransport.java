@@ -0,0 +1,109 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+public class HipChatAsyncTransport implements HipChatNotificationTransport {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private HipChatApiProcessor processor;
+	private final Semaphore permits;
+	private final AtomicInteger inFlightCount = new AtomicInteger();
+
+	public HipChatAsyncTransport(@NotNull HipChatApiProcessor processor, int maxInFlight) {
+		this.processor = processor;
+		this.permits = new Semaphore(maxInFlight);
+		logger.info(String.format("Notification transport started: at most %s notification(s) in flight", maxInFlight));
+	}
+
+	@Override
+	public Future<Boolean> send(HipChatRoomNotification notification, String roomId, final HipChatDeliveryCallback callback) {
+		// Once the limit is reached the sender waits for a slot, which pushes back on the dispatch queue 
+		// and so keeps its overflow policy meaningful
+		try {
+			this.permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			BasicFuture<Boolean> future = new BasicFuture<Boolean>(null);
+			future.completed(false);
+			if (callback != null) {
+				callback.completed(false);
+			}
+			return future;
+		}
+		this.inFlightCount.incrementAndGet();
+		return this.processor.sendNotificationAsync(notification, roomId, new HipChatDeliveryCallback() {
+			@Override
+			public void completed(boolean delivered) {
+				try {
+					if (callback != null) {
+						callback.completed(delivered);
+					}
+				} finally {
+					finished();
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				try {
+					if (callback != null) {
+						callback.failed(e);
+					}
+				} finally {
+					finished();
+				}
+			}
+		});
+	}
+
+	@Override
+	public int getInFlightCount() {
+		return this.inFlightCount.get();
+	}
+
+	@Override
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		// Nothing new is sent once the dispatcher has drained, so this only waits for the responses still outstanding
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		synchronized (this.inFlightCount) {
+			long remaining;
+			while (this.inFlightCount.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				this.inFlightCount.wait(remaining);
+			}
+			return this.inFlightCount.get() == 0;
+		}
+	}
+
+	private void finished() {
+		this.permits.release();
+		synchronized (this.inFlightCount) {
+			if (this.inFlightCount.decrementAndGet() == 0) {
+				this.inFlightCount.notifyAll();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+
+public class HipChatBlockingTransport implements HipChatNotificationTransport {
+
+	private HipChatApiProcessor processor;
+	private final AtomicInteger inFlightCount = new AtomicInteger();
+
+	public HipChatBlockingTransport(@NotNull HipChatApiProcessor processor) {
+		this.processor = processor;
+	}
+
+	@Override
+	public Future<Boolean> send(HipChatRoomNotification notification, String roomId, HipChatDeliveryCallback callback) {
+		// Delivered on the caller's thread; the returned future is already complete
+		HipChatNotificationDelivery delivery = new HipChatNotificationDelivery(this.processor, notification, roomId, callback, this.inFlightCount);
+		delivery.run();
+		return delivery;
+	}
+
+	@Override
+	public int getInFlightCount() {
+		return this.inFlightCount.get();
+	}
+
+	@Override
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		return true;
+	}
+
+}
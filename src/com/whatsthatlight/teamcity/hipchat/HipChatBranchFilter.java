@@ -0,0 +1,152 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+// Ordered include (+:) and exclude (-:) rules, one regular expression per line; a line without a prefix excludes. 
+// The last rule that matches the whole branch name decides; a branch that no rule matches is notified unless 
+// there are include rules.
+public class HipChatBranchFilter {
+
+	public static final String INCLUDE_PREFIX = "+:";
+	public static final String EXCLUDE_PREFIX = "-:";
+	public static final int DEFAULT_CACHE_CAPACITY = 1000;
+	public static final HipChatBranchFilter NONE = new HipChatBranchFilter(Collections.<Rule>emptyList());
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private final List<Rule> rules;
+	private final boolean hasIncludeRules;
+	private final Map<String, Boolean> decisions;
+
+	private HipChatBranchFilter(List<Rule> rules) {
+		this.rules = rules;
+		boolean hasIncludeRules = false;
+		for (Rule rule : rules) {
+			hasIncludeRules |= rule.include;
+		}
+		this.hasIncludeRules = hasIncludeRules;
+		// Access ordered, so the branches least recently built are evicted first
+		this.decisions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return this.size() > DEFAULT_CACHE_CAPACITY;
+			}
+		};
+	}
+
+	public static HipChatBranchFilter compile(String rules) {
+		if (rules == null || rules.trim().isEmpty()) {
+			return NONE;
+		}
+		List<Rule> compiledRules = new ArrayList<Rule>();
+		for (String line : rules.split("\\r?\\n")) {
+			Rule rule = Rule.parse(line.trim());
+			if (rule != null) {
+				compiledRules.add(rule);
+			}
+		}
+		return compiledRules.isEmpty() ? NONE : new HipChatBranchFilter(compiledRules);
+	}
+
+	// The rules of this filter followed by those of the other, which therefore take precedence
+	public HipChatBranchFilter then(HipChatBranchFilter other) {
+		if (other.rules.isEmpty()) {
+			return this;
+		}
+		if (this.rules.isEmpty()) {
+			return other;
+		}
+		List<Rule> rules = new ArrayList<Rule>(this.rules);
+		rules.addAll(other.rules);
+		return new HipChatBranchFilter(rules);
+	}
+
+	public boolean accept(String branchName) {
+		if (this.rules.isEmpty()) {
+			return true;
+		}
+		Boolean decision;
+		synchronized (this.decisions) {
+			decision = this.decisions.get(branchName);
+		}
+		if (decision == null) {
+			decision = this.evaluate(branchName);
+			synchronized (this.decisions) {
+				this.decisions.put(branchName, decision);
+			}
+		}
+		return decision;
+	}
+
+	public int size() {
+		return this.rules.size();
+	}
+
+	private boolean evaluate(String branchName) {
+		for (int i = this.rules.size() - 1; i >= 0; i--) {
+			Rule rule = this.rules.get(i);
+			if (rule.pattern.matcher(branchName).matches()) {
+				return rule.include;
+			}
+		}
+		return !this.hasIncludeRules;
+	}
+
+	private static class Rule {
+
+		private final boolean include;
+		private final Pattern pattern;
+
+		private Rule(boolean include, Pattern pattern) {
+			this.include = include;
+			this.pattern = pattern;
+		}
+
+		private static Rule parse(String line) {
+			if (line.isEmpty()) {
+				return null;
+			}
+			boolean include = false;
+			String regex = line;
+			if (line.startsWith(INCLUDE_PREFIX)) {
+				include = true;
+				regex = line.substring(INCLUDE_PREFIX.length());
+			} else if (line.startsWith(EXCLUDE_PREFIX)) {
+				regex = line.substring(EXCLUDE_PREFIX.length());
+			}
+			try {
+				return new Rule(include, Pattern.compile(regex));
+			} catch (PatternSyntaxException e) {
+				logger.warn(String.format("Branch filter rule ignored: %s", e.getMessage()));
+				return null;
+			}
+		}
+
+	}
+
+}
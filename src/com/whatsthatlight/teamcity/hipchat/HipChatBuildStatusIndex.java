@@ -0,0 +1,128 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+
+public class HipChatBuildStatusIndex {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private final Map<String, LastBuild> lastStatuses;
+
+	public HipChatBuildStatusIndex() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public HipChatBuildStatusIndex(final int capacity) {
+		// Access ordered, so the least recently built branches are evicted first
+		this.lastStatuses = new LinkedHashMap<String, LastBuild>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, LastBuild> eldest) {
+				return this.size() > capacity;
+			}
+		};
+	}
+
+	// Returns the status of the previous build of the same configuration and branch, or null if there was none, 
+	// and records the given build as the latest
+	public Status update(SBuild build) {
+		String key = getKey(build);
+		LastBuild lastBuild;
+		synchronized (this.lastStatuses) {
+			lastBuild = this.lastStatuses.get(key);
+		}
+		// An interrupted build is reported both as interrupted and as finished, but is only recorded once
+		if (lastBuild != null && lastBuild.buildId == build.getBuildId()) {
+			return lastBuild.previousStatus;
+		}
+		Status previousStatus;
+		if (lastBuild == null) {
+			// Only scanned once per configuration and branch, and then only until the entry is evicted
+			logger.debug(String.format("Build status index miss: %s", key));
+			previousStatus = findPreviousStatus(build);
+		} else {
+			previousStatus = lastBuild.status;
+		}
+		// Personal builds aren't part of the configuration's history, so the next build isn't compared with them
+		if (build.isPersonal()) {
+			return previousStatus;
+		}
+		synchronized (this.lastStatuses) {
+			LastBuild latest = this.lastStatuses.get(key);
+			if (latest != null && latest.buildId == build.getBuildId()) {
+				return latest.previousStatus;
+			}
+			this.lastStatuses.put(key, new LastBuild(build.getBuildId(), build.getBuildStatus(), previousStatus));
+		}
+		return previousStatus;
+	}
+
+	public int size() {
+		synchronized (this.lastStatuses) {
+			return this.lastStatuses.size();
+		}
+	}
+
+	private static String getKey(SBuild build) {
+		Branch branch = build.getBranch();
+		return String.format("%s|%s", build.getBuildTypeId(), branch == null ? "" : branch.getName());
+	}
+
+	private static Status findPreviousStatus(SBuild build) {
+		Branch branch = build.getBranch();
+		List<SFinishedBuild> buildHistory = build.getBuildType().getHistory();
+		if (branch != null) {
+			for (SFinishedBuild tmpBuild : buildHistory) {
+				Branch tmpBranch = tmpBuild.getBranch();
+				if ((build.getBuildId() != tmpBuild.getBuildId()) && tmpBranch.getName().equals(branch.getName())) {
+					return tmpBuild.getBuildStatus();
+				}
+			}
+		} else if (buildHistory.size() > 1) {
+			return buildHistory.get(1).getBuildStatus();
+		}
+		return null;
+	}
+
+	private static class LastBuild {
+
+		private final long buildId;
+		private final Status status;
+		private final Status previousStatus;
+
+		public LastBuild(long buildId, Status status, Status previousStatus) {
+			this.buildId = buildId;
+			this.status = status;
+			this.previousStatus = previousStatus;
+		}
+
+	}
+
+}
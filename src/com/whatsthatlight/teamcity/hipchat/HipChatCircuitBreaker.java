@@ -0,0 +1,169 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import org.apache.log4j.Logger;
+
+public class HipChatCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static final int DEFAULT_WINDOW_SIZE = 20;
+	public static final int DEFAULT_MIN_CALLS = 5;
+	public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+	public static final long DEFAULT_OPEN_MILLISECONDS = 30000;
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private final int minCalls;
+	private final int failureRateThreshold;
+	private final long openMilliseconds;
+	// Outcomes of the most recent calls, as a ring buffer
+	private final boolean[] failures;
+	private int calls;
+	private int failureCount;
+	private int next;
+	private State state = State.CLOSED;
+	private long openedAt;
+	private boolean probeInFlight;
+
+	public HipChatCircuitBreaker() {
+		this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_CALLS, DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_OPEN_MILLISECONDS);
+	}
+
+	public HipChatCircuitBreaker(int windowSize, int minCalls, int failureRateThreshold, long openMilliseconds) {
+		this.failures = new boolean[windowSize];
+		this.minCalls = minCalls;
+		this.failureRateThreshold = failureRateThreshold;
+		this.openMilliseconds = openMilliseconds;
+	}
+
+	public synchronized boolean tryAcquire() {
+		switch (this.state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (this.getRemainingOpenMillis() > 0) {
+				return false;
+			}
+			logger.info("HipChat circuit half-open; probing");
+			this.state = State.HALF_OPEN;
+			this.probeInFlight = true;
+			return true;
+		case HALF_OPEN:
+		default:
+			// One probe at a time
+			if (this.probeInFlight) {
+				return false;
+			}
+			this.probeInFlight = true;
+			return true;
+		}
+	}
+
+	// Whether tryAcquire would let a call through, without claiming the probe
+	public synchronized boolean isCallPermitted() {
+		switch (this.state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			return this.getRemainingOpenMillis() == 0;
+		case HALF_OPEN:
+		default:
+			return !this.probeInFlight;
+		}
+	}
+
+	public synchronized void awaitPermit() throws InterruptedException {
+		// Returns once the circuit has closed, or a probe may be sent; a probe already in flight is waited out
+		while (true) {
+			long remaining = this.getRemainingOpenMillis();
+			if (remaining > 0) {
+				this.wait(remaining);
+			} else if (this.state == State.HALF_OPEN && this.probeInFlight) {
+				this.wait();
+			} else {
+				return;
+			}
+		}
+	}
+
+	public synchronized void onSuccess() {
+		if (this.state == State.HALF_OPEN) {
+			logger.info("HipChat circuit closed");
+			this.reset(State.CLOSED);
+			this.notifyAll();
+			return;
+		}
+		this.record(false);
+	}
+
+	public synchronized void onFailure() {
+		if (this.state == State.HALF_OPEN) {
+			logger.warn("HipChat probe failed; circuit open again");
+			this.open();
+			this.notifyAll();
+			return;
+		}
+		this.record(true);
+		if (this.state == State.CLOSED && this.calls >= this.minCalls && this.failureCount * 100 >= this.failureRateThreshold * this.calls) {
+			logger.warn(String.format("HipChat circuit open: %s of the last %s calls failed", this.failureCount, this.calls));
+			this.open();
+		}
+	}
+
+	public synchronized State getState() {
+		return this.state;
+	}
+
+	public synchronized long getRemainingOpenMillis() {
+		if (this.state != State.OPEN) {
+			return 0;
+		}
+		return Math.max(0, this.openedAt + this.openMilliseconds - System.currentTimeMillis());
+	}
+
+	private void record(boolean failure) {
+		if (this.calls == this.failures.length) {
+			if (this.failures[this.next]) {
+				this.failureCount--;
+			}
+		} else {
+			this.calls++;
+		}
+		this.failures[this.next] = failure;
+		if (failure) {
+			this.failureCount++;
+		}
+		this.next = (this.next + 1) % this.failures.length;
+	}
+
+	private void open() {
+		this.reset(State.OPEN);
+		this.openedAt = System.currentTimeMillis();
+	}
+
+	private void reset(State state) {
+		this.state = state;
+		this.calls = 0;
+		this.failureCount = 0;
+		this.next = 0;
+		this.probeInFlight = false;
+	}
+
+}
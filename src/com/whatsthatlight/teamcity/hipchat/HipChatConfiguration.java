@@ -17,7 +17,10 @@ limitations under the License.
 package com.whatsthatlight.teamcity.hipchat;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import com.thoughtworks.xstream.annotations.*;
 
@@ -52,6 +55,33 @@ public class HipChatConfiguration {
 	public static final String BRANCH_FILTER_KEY = "branchFilter";
 	public static final String BRANCH_FILTER_REGEX_KEY = "branchFilterRegex";
 	public static final String BYPASS_SSL_CHECK = "bypassSslCheck";
+	public static final String DISPATCH_THREADS_KEY = "dispatchThreads";
+	public static final String DISPATCH_QUEUE_CAPACITY_KEY = "dispatchQueueCapacity";
+	public static final String DISPATCH_OVERFLOW_POLICY_KEY = "dispatchOverflowPolicy";
+	public static final String DISPATCH_SHUTDOWN_TIMEOUT_KEY = "dispatchShutdownTimeout";
+	public static final String DELIVERY_MAX_ATTEMPTS_KEY = "deliveryMaxAttempts";
+	public static final String DELIVERY_RETRY_DELAY_KEY = "deliveryRetryDelay";
+	public static final String COALESCING_WINDOW_KEY = "coalescingWindow";
+	public static final String CONNECT_TIMEOUT_KEY = "connectTimeout";
+	public static final String SOCKET_TIMEOUT_KEY = "socketTimeout";
+	public static final String CONNECTION_REQUEST_TIMEOUT_KEY = "connectionRequestTimeout";
+	public static final String DELIVERY_CONCURRENCY_KEY = "deliveryConcurrency";
+	public static final String EMOTICON_REFRESH_INTERVAL_KEY = "emoticonRefreshInterval";
+	public static final String EMOTICON_REFRESH_JITTER_KEY = "emoticonRefreshJitter";
+	public static final String EMOTICON_RESOLUTION_KEY = "emoticonResolution";
+	public static final String EMOTICON_LAST_REFRESH_KEY = "emoticonLastRefresh";
+	public static final String EMOTICON_REFRESH_DURATION_KEY = "emoticonRefreshDuration";
+	public static final int DEFAULT_DISPATCH_THREADS = 1;
+	public static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = 1000;
+	public static final int DEFAULT_DISPATCH_SHUTDOWN_TIMEOUT_SECONDS = 10;
+	public static final int DEFAULT_DELIVERY_MAX_ATTEMPTS = 4;
+	public static final int DEFAULT_DELIVERY_RETRY_DELAY_MILLISECONDS = 1000;
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLISECONDS = 10000;
+	public static final int DEFAULT_SOCKET_TIMEOUT_MILLISECONDS = 30000;
+	public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLISECONDS = 10000;
+	public static final int DEFAULT_DELIVERY_CONCURRENCY = 1;
+	public static final int DEFAULT_EMOTICON_REFRESH_INTERVAL_MINUTES = 1440;
+	public static final int DEFAULT_EMOTICON_REFRESH_JITTER_MINUTES = 60;
 	  
 	@XStreamAlias(API_TOKEN_KEY)
 	private String apiToken = null;
@@ -71,10 +101,13 @@ public class HipChatConfiguration {
 	@XStreamAlias(SERVER_EVENT_ROOM_ID_KEY)
 	private String serverEventRoomId;
 	
-	// We use a list for correct serialization. It causes us to perform a linear search when getting or setting, but that's ok. 
+	// We use a list for correct serialization, with an index by project ID alongside it for lookups 
 	@XStreamImplicit
 	private List<HipChatProjectConfiguration> projectRoomMap = new ArrayList<HipChatProjectConfiguration>();
 	
+	// Not serialised; XStream doesn't run constructors or initialisers, so it is rebuilt on first use after loading
+	private transient Map<String, HipChatProjectConfiguration> projectRoomIndex;
+	
 	@XStreamAlias(HipChatConfiguration.EVENTS_KEY)
 	private HipChatEventConfiguration events = new HipChatEventConfiguration();
 	
@@ -86,44 +119,159 @@ public class HipChatConfiguration {
 
 	@XStreamAlias(BYPASS_SSL_CHECK)
 	private boolean bypassSslCheck;
+
+	// More than one dispatch thread may deliver messages to the same room out of order
+	@XStreamAlias(DISPATCH_THREADS_KEY)
+	private int dispatchThreads = DEFAULT_DISPATCH_THREADS;
+
+	@XStreamAlias(DISPATCH_QUEUE_CAPACITY_KEY)
+	private int dispatchQueueCapacity = DEFAULT_DISPATCH_QUEUE_CAPACITY;
+
+	@XStreamAlias(DISPATCH_OVERFLOW_POLICY_KEY)
+	private HipChatDispatchOverflowPolicy dispatchOverflowPolicy = HipChatDispatchOverflowPolicy.DROP_BUILD_STARTED_FIRST;
+
+	// Seconds
+	@XStreamAlias(DISPATCH_SHUTDOWN_TIMEOUT_KEY)
+	private int dispatchShutdownTimeout = DEFAULT_DISPATCH_SHUTDOWN_TIMEOUT_SECONDS;
+
+	@XStreamAlias(DELIVERY_MAX_ATTEMPTS_KEY)
+	private int deliveryMaxAttempts = DEFAULT_DELIVERY_MAX_ATTEMPTS;
+
+	// Milliseconds; doubled on every retry
+	@XStreamAlias(DELIVERY_RETRY_DELAY_KEY)
+	private int deliveryRetryDelay = DEFAULT_DELIVERY_RETRY_DELAY_MILLISECONDS;
+
+	// Seconds to collect build notifications for a room before sending them as one; 0 disables coalescing
+	@XStreamAlias(COALESCING_WINDOW_KEY)
+	private int coalescingWindow;
+
+	// Milliseconds
+	@XStreamAlias(CONNECT_TIMEOUT_KEY)
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MILLISECONDS;
+
+	// Milliseconds
+	@XStreamAlias(SOCKET_TIMEOUT_KEY)
+	private int socketTimeout = DEFAULT_SOCKET_TIMEOUT_MILLISECONDS;
+
+	// Milliseconds to wait for a connection from the pool
+	@XStreamAlias(CONNECTION_REQUEST_TIMEOUT_KEY)
+	private int connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLISECONDS;
+
+	// Notifications kept in flight at once; above 1, notifications to the same room may arrive out of order
+	@XStreamAlias(DELIVERY_CONCURRENCY_KEY)
+	private int deliveryConcurrency = DEFAULT_DELIVERY_CONCURRENCY;
+
+	// Minutes between emoticon cache refreshes
+	@XStreamAlias(EMOTICON_REFRESH_INTERVAL_KEY)
+	private int emoticonRefreshInterval = DEFAULT_EMOTICON_REFRESH_INTERVAL_MINUTES;
+
+	// Minutes either side of the interval, so that servers started together don't all refresh together
+	@XStreamAlias(EMOTICON_REFRESH_JITTER_KEY)
+	private int emoticonRefreshJitter = DEFAULT_EMOTICON_REFRESH_JITTER_MINUTES;
+
+	// Whether to download the whole emoticon catalogue, or only the emoticons in the emoticon sets
+	@XStreamAlias(EMOTICON_RESOLUTION_KEY)
+	private HipChatEmoticonResolution emoticonResolution = HipChatEmoticonResolution.CATALOGUE;
+	
+	// Readers take the published snapshot, so they never see a change that is only partly applied
+	private transient volatile HipChatConfigurationSnapshot snapshot;
+	// Changes, updates and publishing all hold the lock; the version is only read without it, to spot a stale snapshot
+	private transient volatile int version;
+	private transient int updates;
 	
 	public HipChatConfiguration() {
 		// Intentionally left empty
 	}
+	
+	// A consistent, immutable copy of the configuration as last published; taken once per event
+	public HipChatConfigurationSnapshot getSnapshot() {
+		HipChatConfigurationSnapshot snapshot = this.snapshot;
+		if (snapshot != null && snapshot.getVersion() == this.version) {
+			return snapshot;
+		}
+		return this.refreshSnapshot();
+	}
+	
+	private synchronized HipChatConfigurationSnapshot refreshSnapshot() {
+		// Checked again under the lock, so an update that is under way is never copied half-applied
+		if (this.snapshot == null || (this.snapshot.getVersion() != this.version && this.updates == 0)) {
+			// Changed outside of an update, or never published
+			return this.publish();
+		}
+		return this.snapshot;
+	}
+	
+	// Changes made until the matching endUpdate are published together
+	public synchronized void beginUpdate() {
+		if (this.snapshot == null) {
+			this.publish();
+		}
+		this.updates++;
+	}
+	
+	public synchronized void endUpdate() {
+		if (this.updates > 0 && --this.updates == 0) {
+			this.publish();
+		}
+	}
+	
+	private synchronized HipChatConfigurationSnapshot publish() {
+		HipChatConfigurationSnapshot snapshot = new HipChatConfigurationSnapshot(this, this.version);
+		this.snapshot = snapshot;
+		return snapshot;
+	}
+	
+	private void changed() {
+		// Only called with the lock held
+		this.version++;
+	}
 
 	public HipChatEventConfiguration getEvents() {
 		return this.events;
 	}
 	
-	public void setEvents(HipChatEventConfiguration events) {
+	public synchronized void setEvents(HipChatEventConfiguration events) {
 		this.events = events;
+		this.changed();
 	}
 	
 	public List<HipChatProjectConfiguration> getProjectRoomMap() {
 		return this.projectRoomMap;
 	}
 	
-	public void setProjectConfiguration(HipChatProjectConfiguration newProjectConfiguration) {
-		boolean found = false;
-		for (HipChatProjectConfiguration projectConfiguration : this.projectRoomMap) {
-			if (projectConfiguration.getProjectId().contentEquals(newProjectConfiguration.getProjectId())) {
-				projectConfiguration.setRoomId(newProjectConfiguration.getRoomId());
-				projectConfiguration.setNotifyStatus(newProjectConfiguration.getNotifyStatus());
-				found = true;
-			}
-		}
-		if (!found) {
-			this.projectRoomMap.add(newProjectConfiguration);		
+	public synchronized void setProjectConfiguration(HipChatProjectConfiguration newProjectConfiguration) {
+		HipChatProjectConfiguration projectConfiguration = this.getProjectRoomIndex().get(newProjectConfiguration.getProjectId());
+		if (projectConfiguration != null) {
+			projectConfiguration.setRoomId(newProjectConfiguration.getRoomId());
+			projectConfiguration.setNotifyStatus(newProjectConfiguration.getNotifyStatus());
+			projectConfiguration.setBranchFilter(newProjectConfiguration.getBranchFilter());
+		} else {
+			this.projectRoomMap.add(newProjectConfiguration);
+			this.projectRoomIndex.put(newProjectConfiguration.getProjectId(), newProjectConfiguration);
 		}
+		this.changed();
+	}
+	
+	public synchronized HipChatProjectConfiguration getProjectConfiguration(String projectId) {
+		return this.getProjectRoomIndex().get(projectId);
 	}
 	
-	public HipChatProjectConfiguration getProjectConfiguration(String projectId) {
-		for (HipChatProjectConfiguration projectConfiguration : this.projectRoomMap) {
-			if (projectConfiguration.getProjectId().contentEquals(projectId)) {
-				return projectConfiguration;
+	private Map<String, HipChatProjectConfiguration> getProjectRoomIndex() {
+		if (this.projectRoomIndex == null) {
+			Map<String, HipChatProjectConfiguration> index = new HashMap<String, HipChatProjectConfiguration>();
+			Iterator<HipChatProjectConfiguration> iterator = this.projectRoomMap.iterator();
+			while (iterator.hasNext()) {
+				HipChatProjectConfiguration projectConfiguration = iterator.next();
+				// Duplicates were always shadowed by the first entry for the project
+				if (index.containsKey(projectConfiguration.getProjectId())) {
+					iterator.remove();
+				} else {
+					index.put(projectConfiguration.getProjectId(), projectConfiguration);
+				}
 			}
+			this.projectRoomIndex = index;
 		}
-		return null;
+		return this.projectRoomIndex;
 	}
 	
 	public String getApiToken() {
@@ -158,45 +306,185 @@ public class HipChatConfiguration {
 		return this.branchFilterRegex;
 	}
 	
+	// The global branch filter; compiled on every call, so readers should take it from the snapshot
+	public HipChatBranchFilter getBranchFilter() {
+		return this.branchFilterEnabled ? HipChatBranchFilter.compile(this.branchFilterRegex) : HipChatBranchFilter.NONE;
+	}
+	
 	public boolean getBypassSslCheck() {
 		return this.bypassSslCheck;
 	}
+
+	public int getDispatchThreads() {
+		return this.dispatchThreads;
+	}
+
+	public int getDispatchQueueCapacity() {
+		return this.dispatchQueueCapacity;
+	}
+
+	public HipChatDispatchOverflowPolicy getDispatchOverflowPolicy() {
+		return this.dispatchOverflowPolicy;
+	}
+
+	public int getDispatchShutdownTimeout() {
+		return this.dispatchShutdownTimeout;
+	}
+
+	public int getDeliveryMaxAttempts() {
+		return this.deliveryMaxAttempts;
+	}
+
+	public int getDeliveryRetryDelay() {
+		return this.deliveryRetryDelay;
+	}
+
+	public int getCoalescingWindow() {
+		return this.coalescingWindow;
+	}
+
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return this.socketTimeout;
+	}
+
+	public int getConnectionRequestTimeout() {
+		return this.connectionRequestTimeout;
+	}
+
+	public int getDeliveryConcurrency() {
+		return this.deliveryConcurrency;
+	}
+
+	public int getEmoticonRefreshInterval() {
+		return this.emoticonRefreshInterval;
+	}
+
+	public int getEmoticonRefreshJitter() {
+		return this.emoticonRefreshJitter;
+	}
+
+	public HipChatEmoticonResolution getEmoticonResolution() {
+		return this.emoticonResolution;
+	}
 		  
-	public void setApiToken(String token) {
+	public synchronized void setApiToken(String token) {
 		this.apiToken = token;
+		this.changed();
 	}
 
-	public void setApiUrl(String url) {
+	public synchronized void setApiUrl(String url) {
 		// TODO: Validate URL
 		this.apiUrl = url;
+		this.changed();
 	}
 
-	public void setDisabledStatus(boolean status) {
+	public synchronized void setDisabledStatus(boolean status) {
 		this.disabled = status;
+		this.changed();
 	}
 
-	public void setNotifyStatus(boolean status) {
+	public synchronized void setNotifyStatus(boolean status) {
 		this.notify = status;
+		this.changed();
 	}
 
-	public void setDefaultRoomId(String roomId) {
+	public synchronized void setDefaultRoomId(String roomId) {
 		this.defaultRoomId = roomId;
+		this.changed();
 	}
 	
-	public void setServerEventRoomId(String roomId) {
+	public synchronized void setServerEventRoomId(String roomId) {
 		this.serverEventRoomId = roomId;
+		this.changed();
 	}
 	
-	public void setBranchFilterEnabledStatus(boolean status) {
+	public synchronized void setBranchFilterEnabledStatus(boolean status) {
 		this.branchFilterEnabled = status;
+		this.changed();
 	}
 
-	public void setBranchFilterRegex(String regex) {
+	public synchronized void setBranchFilterRegex(String regex) {
 		this.branchFilterRegex = regex;
+		this.changed();
 	}
 
-	public void setBypassSslCheck(boolean bypassSslCheck) {
+	public synchronized void setBypassSslCheck(boolean bypassSslCheck) {
 		this.bypassSslCheck = bypassSslCheck;
+		this.changed();
+	}
+
+	public synchronized void setDispatchThreads(int threads) {
+		this.dispatchThreads = threads;
+		this.changed();
+	}
+
+	public synchronized void setDispatchQueueCapacity(int capacity) {
+		this.dispatchQueueCapacity = capacity;
+		this.changed();
+	}
+
+	public synchronized void setDispatchOverflowPolicy(HipChatDispatchOverflowPolicy policy) {
+		this.dispatchOverflowPolicy = policy;
+		this.changed();
+	}
+
+	public synchronized void setDispatchShutdownTimeout(int seconds) {
+		this.dispatchShutdownTimeout = seconds;
+		this.changed();
+	}
+
+	public synchronized void setDeliveryMaxAttempts(int attempts) {
+		this.deliveryMaxAttempts = attempts;
+		this.changed();
+	}
+
+	public synchronized void setDeliveryRetryDelay(int milliseconds) {
+		this.deliveryRetryDelay = milliseconds;
+		this.changed();
+	}
+
+	public synchronized void setCoalescingWindow(int seconds) {
+		this.coalescingWindow = seconds;
+		this.changed();
+	}
+
+	public synchronized void setConnectTimeout(int milliseconds) {
+		this.connectTimeout = milliseconds;
+		this.changed();
+	}
+
+	public synchronized void setSocketTimeout(int milliseconds) {
+		this.socketTimeout = milliseconds;
+		this.changed();
+	}
+
+	public synchronized void setConnectionRequestTimeout(int milliseconds) {
+		this.connectionRequestTimeout = milliseconds;
+		this.changed();
+	}
+
+	public synchronized void setDeliveryConcurrency(int concurrency) {
+		this.deliveryConcurrency = concurrency;
+		this.changed();
+	}
+
+	public synchronized void setEmoticonRefreshInterval(int minutes) {
+		this.emoticonRefreshInterval = minutes;
+		this.changed();
+	}
+
+	public synchronized void setEmoticonRefreshJitter(int minutes) {
+		this.emoticonRefreshJitter = minutes;
+		this.changed();
+	}
+
+	public synchronized void setEmoticonResolution(HipChatEmoticonResolution resolution) {
+		this.emoticonResolution = resolution;
+		this.changed();
 	}
 	
 }
@@ -77,6 +77,8 @@ public class HipChatConfigurationController extends BaseController {
 	private HipChatApiProcessor processor;
 	private HipChatNotificationMessageTemplates templates;
 	private HipChatEmoticonCache emoticonCache;
+	private HipChatNotificationDispatcher dispatcher;
+	private HipChatRoutingTable routingTable;
 	
 	public HipChatConfigurationController(@NotNull SBuildServer server, 
 			@NotNull ServerPaths serverPaths, 
@@ -85,12 +87,37 @@ public class HipChatConfigurationController extends BaseController {
 			@NotNull HipChatApiProcessor processor, 
 			@NotNull HipChatNotificationMessageTemplates templates,
 			@NotNull HipChatEmoticonCache emoticonCache) throws IOException {
+		this(server, serverPaths, manager, configuration, processor, templates, emoticonCache, null);
+	}
+
+	public HipChatConfigurationController(@NotNull SBuildServer server, 
+			@NotNull ServerPaths serverPaths, 
+			@NotNull WebControllerManager manager,
+			@NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatApiProcessor processor, 
+			@NotNull HipChatNotificationMessageTemplates templates,
+			@NotNull HipChatEmoticonCache emoticonCache,
+			HipChatNotificationDispatcher dispatcher) throws IOException {
+		this(server, serverPaths, manager, configuration, processor, templates, emoticonCache, dispatcher, null);
+	}
+
+	public HipChatConfigurationController(@NotNull SBuildServer server, 
+			@NotNull ServerPaths serverPaths, 
+			@NotNull WebControllerManager manager,
+			@NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatApiProcessor processor, 
+			@NotNull HipChatNotificationMessageTemplates templates,
+			@NotNull HipChatEmoticonCache emoticonCache,
+			HipChatNotificationDispatcher dispatcher,
+			HipChatRoutingTable routingTable) throws IOException {
 		manager.registerController(CONTROLLER_PATH, this);
 		this.configuration = configuration;
 		this.configFilePath = (new File(serverPaths.getConfigDir(), HIPCHAT_CONFIG_FILE)).getCanonicalPath();
 		this.processor = processor;
 		this.templates = templates;
 		this.emoticonCache = emoticonCache;
+		this.dispatcher = dispatcher;
+		this.routingTable = routingTable;
 		logger.debug(String.format("Config file path: %s", this.configFilePath));
 		logger.info("Controller created");
 	}
@@ -100,11 +127,19 @@ public class HipChatConfigurationController extends BaseController {
 		String roomId = request.getParameter(HipChatConfiguration.ROOM_ID_KEY);
 		boolean notify = Boolean.parseBoolean(request.getParameter(HipChatConfiguration.NOTIFY_STATUS_KEY));
 		String projectId = request.getParameter(HipChatConfiguration.PROJECT_ID_KEY);
+		String branchFilter = request.getParameter(HipChatConfiguration.BRANCH_FILTER_REGEX_KEY);
+		if (branchFilter != null && branchFilter.trim().isEmpty()) {
+			branchFilter = null;
+		}
 		logger.debug(String.format("Room ID: %s", roomId));
 		logger.debug(String.format("Trigger notification: %s", notify));
 		logger.debug(String.format("Project ID: %s", projectId));
-		HipChatProjectConfiguration projectConfiguration = new HipChatProjectConfiguration(projectId, roomId, notify);
+		logger.debug(String.format("Branch filter: %s", branchFilter));
+		HipChatProjectConfiguration projectConfiguration = new HipChatProjectConfiguration(projectId, roomId, notify, branchFilter);
 		this.configuration.setProjectConfiguration(projectConfiguration);
+		if (this.routingTable != null) {
+			this.routingTable.invalidate(projectId);
+		}
 		this.getOrCreateMessages(request).addMessage(SAVED_ID, SAVED_MESSAGE);
 		this.saveConfiguration();
 	}
@@ -186,15 +221,7 @@ public class HipChatConfigurationController extends BaseController {
 			return;
 		}
 
-		// Save the configuration
-		this.configuration.setApiUrl(apiUrl);
-		this.configuration.setBypassSslCheck(Boolean.parseBoolean(bypassSslCheck));
-		this.configuration.setApiToken(apiToken);
-		this.configuration.setNotifyStatus(Boolean.parseBoolean(notify));
-		this.configuration.setDefaultRoomId(defaultRoomId.equals("") ? null : defaultRoomId);
-		this.configuration.setServerEventRoomId(serverEventRoomId.equals("") ? null : serverEventRoomId);
-	    this.configuration.setBranchFilterEnabledStatus(Boolean.parseBoolean(branchFilter));
-	    this.configuration.setBranchFilterRegex(branchFilterRegex.equals("") ? null : branchFilterRegex);
+		// Save the configuration; build events keep seeing the previous settings until all of it has been applied
 		HipChatEventConfiguration events = new HipChatEventConfiguration();
 		events.setBuildStartedStatus(Boolean.parseBoolean(buildStarted));
 		events.setBuildSuccessfulStatus(Boolean.parseBoolean(buildSuccessful));
@@ -204,7 +231,24 @@ public class HipChatConfigurationController extends BaseController {
 		events.setBuildInterruptedStatus(Boolean.parseBoolean(buildInterrupted));
 		events.setServerStartupStatus(Boolean.parseBoolean(serverStartup));
 		events.setServerShutdownStatus(Boolean.parseBoolean(serverShutdown));
-		this.configuration.setEvents(events);
+		this.configuration.beginUpdate();
+		try {
+			this.configuration.setApiUrl(apiUrl);
+			this.configuration.setBypassSslCheck(Boolean.parseBoolean(bypassSslCheck));
+			this.configuration.setApiToken(apiToken);
+			this.configuration.setNotifyStatus(Boolean.parseBoolean(notify));
+			this.configuration.setDefaultRoomId(defaultRoomId.equals("") ? null : defaultRoomId);
+			this.configuration.setServerEventRoomId(serverEventRoomId.equals("") ? null : serverEventRoomId);
+			this.configuration.setBranchFilterEnabledStatus(Boolean.parseBoolean(branchFilter));
+			this.configuration.setBranchFilterRegex(branchFilterRegex.equals("") ? null : branchFilterRegex);
+			this.configuration.setEvents(events);
+		} finally {
+			this.configuration.endUpdate();
+		}
+		if (this.routingTable != null) {
+			// The default room and notify status feed into every project's route
+			this.routingTable.invalidateAll();
+		}
 		this.saveConfiguration();
 		
 		// Save the templates
@@ -293,10 +337,15 @@ public class HipChatConfigurationController extends BaseController {
 				logger.debug("No configuration file exists; creating new one");
 				this.saveConfiguration();
 			}
-			this.emoticonCache.reload();
+			// Notifications that weren't delivered before the last shutdown
+			if (this.dispatcher != null) {
+				this.dispatcher.recover();
+			}
 		} catch (Exception e) {
 			logger.error("Could not load configuration", e);
 		}
+		// Fetched in the background, so that startup doesn't wait on HipChat
+		this.emoticonCache.scheduleRefresh();
 		logger.info("Controller initialised");
 	}
 
@@ -331,30 +380,79 @@ public class HipChatConfigurationController extends BaseController {
 		fileReader.close();
 		
 		// Copy the values, because we need it on the original shared (bean),
-		// which is a singleton
-		this.configuration.setApiUrl(configuration.getApiUrl());
-		this.configuration.setApiToken(configuration.getApiToken());
-		this.configuration.setDefaultRoomId(configuration.getDefaultRoomId());
-		this.configuration.setNotifyStatus(configuration.getDefaultNotifyStatus());
-		this.configuration.setDisabledStatus(configuration.getDisabledStatus());
-		this.configuration.setBranchFilterEnabledStatus(configuration.getBranchFilterEnabledStatus());
-		this.configuration.setBranchFilterRegex(configuration.getBranchFilterRegex());
-		this.configuration.setBypassSslCheck(configuration.getBypassSslCheck());
-		this.configuration.setServerEventRoomId(configuration.getServerEventRoomId());
-		if (configuration.getEvents() != null) {
-			this.configuration.getEvents().setBuildStartedStatus(configuration.getEvents().getBuildStartedStatus());
-			this.configuration.getEvents().setBuildSuccessfulStatus(configuration.getEvents().getBuildSuccessfulStatus());
-			this.configuration.getEvents().setBuildFailedStatus(configuration.getEvents().getBuildFailedStatus());
-			this.configuration.getEvents().setBuildInterruptedStatus(configuration.getEvents().getBuildInterruptedStatus());
-			this.configuration.getEvents().setServerStartupStatus(configuration.getEvents().getServerStartupStatus());
-			this.configuration.getEvents().setServerShutdownStatus(configuration.getEvents().getServerShutdownStatus());
-			this.configuration.getEvents().setOnlyAfterFirstBuildSuccessfulStatus(configuration.getEvents().getOnlyAfterFirstBuildSuccessfulStatus());
-			this.configuration.getEvents().setOnlyAfterFirstBuildFailedStatus(configuration.getEvents().getOnlyAfterFirstBuildFailedStatus());
-		}
-		if (configuration.getProjectRoomMap() != null) {
-			for (HipChatProjectConfiguration projectConfiguration : configuration.getProjectRoomMap()) {
-				this.configuration.setProjectConfiguration(projectConfiguration);
+		// which is a singleton; published to readers in one go
+		this.configuration.beginUpdate();
+		try {
+			this.configuration.setApiUrl(configuration.getApiUrl());
+			this.configuration.setApiToken(configuration.getApiToken());
+			this.configuration.setDefaultRoomId(configuration.getDefaultRoomId());
+			this.configuration.setNotifyStatus(configuration.getDefaultNotifyStatus());
+			this.configuration.setDisabledStatus(configuration.getDisabledStatus());
+			this.configuration.setBranchFilterEnabledStatus(configuration.getBranchFilterEnabledStatus());
+			this.configuration.setBranchFilterRegex(configuration.getBranchFilterRegex());
+			this.configuration.setBypassSslCheck(configuration.getBypassSslCheck());
+			this.configuration.setServerEventRoomId(configuration.getServerEventRoomId());
+			// Fields absent from older configuration files are deserialised as zero or null
+			if (configuration.getDispatchThreads() > 0) {
+				this.configuration.setDispatchThreads(configuration.getDispatchThreads());
+			}
+			if (configuration.getDispatchQueueCapacity() > 0) {
+				this.configuration.setDispatchQueueCapacity(configuration.getDispatchQueueCapacity());
+			}
+			if (configuration.getDispatchOverflowPolicy() != null) {
+				this.configuration.setDispatchOverflowPolicy(configuration.getDispatchOverflowPolicy());
+			}
+			if (configuration.getDispatchShutdownTimeout() > 0) {
+				this.configuration.setDispatchShutdownTimeout(configuration.getDispatchShutdownTimeout());
+			}
+			this.configuration.setCoalescingWindow(configuration.getCoalescingWindow());
+			if (configuration.getConnectTimeout() > 0) {
+				this.configuration.setConnectTimeout(configuration.getConnectTimeout());
+			}
+			if (configuration.getSocketTimeout() > 0) {
+				this.configuration.setSocketTimeout(configuration.getSocketTimeout());
+			}
+			if (configuration.getConnectionRequestTimeout() > 0) {
+				this.configuration.setConnectionRequestTimeout(configuration.getConnectionRequestTimeout());
 			}
+			if (configuration.getDeliveryConcurrency() > 0) {
+				this.configuration.setDeliveryConcurrency(configuration.getDeliveryConcurrency());
+			}
+			if (configuration.getDeliveryMaxAttempts() > 0) {
+				this.configuration.setDeliveryMaxAttempts(configuration.getDeliveryMaxAttempts());
+			}
+			if (configuration.getDeliveryRetryDelay() > 0) {
+				this.configuration.setDeliveryRetryDelay(configuration.getDeliveryRetryDelay());
+			}
+			if (configuration.getEmoticonRefreshInterval() > 0) {
+				this.configuration.setEmoticonRefreshInterval(configuration.getEmoticonRefreshInterval());
+			}
+			if (configuration.getEmoticonRefreshJitter() > 0) {
+				this.configuration.setEmoticonRefreshJitter(configuration.getEmoticonRefreshJitter());
+			}
+			if (configuration.getEmoticonResolution() != null) {
+				this.configuration.setEmoticonResolution(configuration.getEmoticonResolution());
+			}
+			if (configuration.getEvents() != null) {
+				this.configuration.getEvents().setBuildStartedStatus(configuration.getEvents().getBuildStartedStatus());
+				this.configuration.getEvents().setBuildSuccessfulStatus(configuration.getEvents().getBuildSuccessfulStatus());
+				this.configuration.getEvents().setBuildFailedStatus(configuration.getEvents().getBuildFailedStatus());
+				this.configuration.getEvents().setBuildInterruptedStatus(configuration.getEvents().getBuildInterruptedStatus());
+				this.configuration.getEvents().setServerStartupStatus(configuration.getEvents().getServerStartupStatus());
+				this.configuration.getEvents().setServerShutdownStatus(configuration.getEvents().getServerShutdownStatus());
+				this.configuration.getEvents().setOnlyAfterFirstBuildSuccessfulStatus(configuration.getEvents().getOnlyAfterFirstBuildSuccessfulStatus());
+				this.configuration.getEvents().setOnlyAfterFirstBuildFailedStatus(configuration.getEvents().getOnlyAfterFirstBuildFailedStatus());
+			}
+			if (configuration.getProjectRoomMap() != null) {
+				for (HipChatProjectConfiguration projectConfiguration : configuration.getProjectRoomMap()) {
+					this.configuration.setProjectConfiguration(projectConfiguration);
+				}
+			}
+		} finally {
+			this.configuration.endUpdate();
+		}
+		if (this.routingTable != null) {
+			this.routingTable.invalidateAll();
 		}
 	}
 
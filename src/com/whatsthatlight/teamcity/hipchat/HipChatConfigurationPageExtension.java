@@ -29,7 +29,9 @@ import org.springframework.web.util.HtmlUtils;
 import javax.servlet.http.HttpServletRequest;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Map;
 
 public class HipChatConfigurationPageExtension extends AdminPage {
@@ -43,6 +45,7 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 
 	private static final String TAB_TITLE = "HipChat Notifier";
 	private static final String ROOM_ID_LIST = "roomIdList";
+	private static final String REFRESH_TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
 	private HipChatConfiguration configuration;
 	private HipChatApiProcessor processor;
 	private HipChatNotificationMessageTemplates templates;
@@ -88,6 +91,11 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 		model.put(HipChatConfiguration.NOTIFY_STATUS_KEY, this.configuration.getDefaultNotifyStatus());
 		model.put(HipChatConfiguration.DISABLED_STATUS_KEY, this.configuration.getDisabledStatus());
 		model.put(HipChatConfiguration.EMOTICON_CACHE_SIZE_KEY, this.emoticonCache.getSize());
+		long lastRefresh = this.emoticonCache.getLastRefreshTime();
+		if (lastRefresh > 0) {
+			model.put(HipChatConfiguration.EMOTICON_LAST_REFRESH_KEY, new SimpleDateFormat(REFRESH_TIME_FORMAT).format(new Date(lastRefresh)));
+			model.put(HipChatConfiguration.EMOTICON_REFRESH_DURATION_KEY, this.emoticonCache.getLastRefreshDuration());
+		}
 	    model.put(HipChatConfiguration.BRANCH_FILTER_KEY, Boolean.valueOf(this.configuration.getBranchFilterEnabledStatus()));
 	    model.put(HipChatConfiguration.BRANCH_FILTER_REGEX_KEY, this.configuration.getBranchFilterRegex());
 
@@ -111,6 +119,11 @@ public class HipChatConfigurationPageExtension extends AdminPage {
 			model.put(HipChatNotificationMessageTemplates.BUILD_FAILED_TEMPLATE_DEFAULT_KEY, HtmlUtils.htmlEscape(HipChatNotificationMessageTemplates.BUILD_FAILED_DEFAULT_TEMPLATE));
 			model.put(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_TEMPLATE_KEY, this.templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED).toString());
 			model.put(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_TEMPLATE_DEFAULT_KEY, HtmlUtils.htmlEscape(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_DEFAULT_TEMPLATE));
+			// The expensive data each template makes us collect
+			model.put(HipChatNotificationMessageTemplates.BUILD_STARTED_TEMPLATE_DATA_KEY, this.templates.getTemplateVariables(TeamCityEvent.BUILD_STARTED).getDescription());
+			model.put(HipChatNotificationMessageTemplates.BUILD_SUCCESSFUL_TEMPLATE_DATA_KEY, this.templates.getTemplateVariables(TeamCityEvent.BUILD_SUCCESSFUL).getDescription());
+			model.put(HipChatNotificationMessageTemplates.BUILD_FAILED_TEMPLATE_DATA_KEY, this.templates.getTemplateVariables(TeamCityEvent.BUILD_FAILED).getDescription());
+			model.put(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_TEMPLATE_DATA_KEY, this.templates.getTemplateVariables(TeamCityEvent.BUILD_INTERRUPTED).getDescription());
 			model.put(HipChatNotificationMessageTemplates.SERVER_STARTUP_TEMPLATE_KEY, this.templates.readTemplate(TeamCityEvent.SERVER_STARTUP).toString());
 			model.put(HipChatNotificationMessageTemplates.SERVER_STARTUP_TEMPLATE_DEFAULT_KEY, HtmlUtils.htmlEscape(HipChatNotificationMessageTemplates.SERVER_STARTUP_DEFAULT_TEMPLATE));
 			model.put(HipChatNotificationMessageTemplates.SERVER_SHUTDOWN_TEMPLATE_KEY, this.templates.readTemplate(TeamCityEvent.SERVER_SHUTDOWN).toString());
@@ -0,0 +1,209 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// An immutable copy of the configuration, taken when it is published; the nested beans are handed out as copies, 
+// so nothing a reader does can change what other readers see
+public final class HipChatConfigurationSnapshot {
+
+	private final int version;
+	private final String apiToken;
+	private final String apiUrl;
+	private final boolean disabled;
+	private final boolean notify;
+	private final String defaultRoomId;
+	private final String serverEventRoomId;
+	private final Map<String, HipChatProjectConfiguration> projectRoomIndex;
+	private final HipChatEventConfiguration events;
+	private final boolean branchFilterEnabled;
+	private final String branchFilterRegex;
+	private final HipChatBranchFilter branchFilter;
+	private final boolean bypassSslCheck;
+	private final int dispatchThreads;
+	private final int dispatchQueueCapacity;
+	private final HipChatDispatchOverflowPolicy dispatchOverflowPolicy;
+	private final int dispatchShutdownTimeout;
+	private final int deliveryMaxAttempts;
+	private final int deliveryRetryDelay;
+	private final int coalescingWindow;
+	private final int connectTimeout;
+	private final int socketTimeout;
+	private final int connectionRequestTimeout;
+	private final int deliveryConcurrency;
+	private final int emoticonRefreshInterval;
+	private final int emoticonRefreshJitter;
+	private final HipChatEmoticonResolution emoticonResolution;
+
+	// The source must not change while it is copied
+	HipChatConfigurationSnapshot(HipChatConfiguration source, int version) {
+		this.version = version;
+		this.apiToken = source.getApiToken();
+		this.apiUrl = source.getApiUrl();
+		this.disabled = source.getDisabledStatus();
+		this.notify = source.getDefaultNotifyStatus();
+		this.defaultRoomId = source.getDefaultRoomId();
+		this.serverEventRoomId = source.getServerEventRoomId();
+		Map<String, HipChatProjectConfiguration> projectRoomIndex = new HashMap<String, HipChatProjectConfiguration>();
+		for (HipChatProjectConfiguration projectConfiguration : source.getProjectRoomMap()) {
+			// Duplicates were always shadowed by the first entry for the project
+			if (!projectRoomIndex.containsKey(projectConfiguration.getProjectId())) {
+				projectRoomIndex.put(projectConfiguration.getProjectId(), copy(projectConfiguration));
+			}
+		}
+		this.projectRoomIndex = Collections.unmodifiableMap(projectRoomIndex);
+		this.events = source.getEvents() == null ? null : new HipChatEventConfiguration(source.getEvents());
+		this.branchFilterEnabled = source.getBranchFilterEnabledStatus();
+		this.branchFilterRegex = source.getBranchFilterRegex();
+		this.branchFilter = source.getBranchFilter();
+		this.bypassSslCheck = source.getBypassSslCheck();
+		this.dispatchThreads = source.getDispatchThreads();
+		this.dispatchQueueCapacity = source.getDispatchQueueCapacity();
+		this.dispatchOverflowPolicy = source.getDispatchOverflowPolicy();
+		this.dispatchShutdownTimeout = source.getDispatchShutdownTimeout();
+		this.deliveryMaxAttempts = source.getDeliveryMaxAttempts();
+		this.deliveryRetryDelay = source.getDeliveryRetryDelay();
+		this.coalescingWindow = source.getCoalescingWindow();
+		this.connectTimeout = source.getConnectTimeout();
+		this.socketTimeout = source.getSocketTimeout();
+		this.connectionRequestTimeout = source.getConnectionRequestTimeout();
+		this.deliveryConcurrency = source.getDeliveryConcurrency();
+		this.emoticonRefreshInterval = source.getEmoticonRefreshInterval();
+		this.emoticonRefreshJitter = source.getEmoticonRefreshJitter();
+		this.emoticonResolution = source.getEmoticonResolution();
+	}
+
+	private static HipChatProjectConfiguration copy(HipChatProjectConfiguration projectConfiguration) {
+		return new HipChatProjectConfiguration(projectConfiguration.getProjectId(), projectConfiguration.getRoomId(), 
+				projectConfiguration.getNotifyStatus(), projectConfiguration.getBranchFilter());
+	}
+
+	// The configuration version this was taken at
+	int getVersion() {
+		return this.version;
+	}
+
+	public String getApiToken() {
+		return this.apiToken;
+	}
+
+	public String getApiUrl() {
+		return this.apiUrl;
+	}
+
+	public boolean getDisabledStatus() {
+		return this.disabled;
+	}
+
+	public boolean getDefaultNotifyStatus() {
+		return this.notify;
+	}
+
+	public String getDefaultRoomId() {
+		return this.defaultRoomId;
+	}
+
+	public String getServerEventRoomId() {
+		return this.serverEventRoomId;
+	}
+
+	public HipChatProjectConfiguration getProjectConfiguration(String projectId) {
+		HipChatProjectConfiguration projectConfiguration = this.projectRoomIndex.get(projectId);
+		return projectConfiguration == null ? null : copy(projectConfiguration);
+	}
+
+	public HipChatEventConfiguration getEvents() {
+		return this.events == null ? null : new HipChatEventConfiguration(this.events);
+	}
+
+	public boolean getBranchFilterEnabledStatus() {
+		return this.branchFilterEnabled;
+	}
+
+	public String getBranchFilterRegex() {
+		return this.branchFilterRegex;
+	}
+
+	// The global branch filter, compiled when the snapshot was taken
+	public HipChatBranchFilter getBranchFilter() {
+		return this.branchFilter;
+	}
+
+	public boolean getBypassSslCheck() {
+		return this.bypassSslCheck;
+	}
+
+	public int getDispatchThreads() {
+		return this.dispatchThreads;
+	}
+
+	public int getDispatchQueueCapacity() {
+		return this.dispatchQueueCapacity;
+	}
+
+	public HipChatDispatchOverflowPolicy getDispatchOverflowPolicy() {
+		return this.dispatchOverflowPolicy;
+	}
+
+	public int getDispatchShutdownTimeout() {
+		return this.dispatchShutdownTimeout;
+	}
+
+	public int getDeliveryMaxAttempts() {
+		return this.deliveryMaxAttempts;
+	}
+
+	public int getDeliveryRetryDelay() {
+		return this.deliveryRetryDelay;
+	}
+
+	public int getCoalescingWindow() {
+		return this.coalescingWindow;
+	}
+
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return this.socketTimeout;
+	}
+
+	public int getConnectionRequestTimeout() {
+		return this.connectionRequestTimeout;
+	}
+
+	public int getDeliveryConcurrency() {
+		return this.deliveryConcurrency;
+	}
+
+	public int getEmoticonRefreshInterval() {
+		return this.emoticonRefreshInterval;
+	}
+
+	public int getEmoticonRefreshJitter() {
+		return this.emoticonRefreshJitter;
+	}
+
+	public HipChatEmoticonResolution getEmoticonResolution() {
+		return this.emoticonResolution;
+	}
+
+}
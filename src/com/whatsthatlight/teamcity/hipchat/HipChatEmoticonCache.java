@@ -16,7 +16,40 @@ limitations under the License.
 
 package com.whatsthatlight.teamcity.hipchat;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
 
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -24,43 +57,504 @@ import org.jetbrains.annotations.NotNull;
 public class HipChatEmoticonCache {
 
 	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private static final String REFRESH_THREAD_NAME = "HipChat emoticon refresher";
+	public static final String SNAPSHOT_FILE = "emoticons.dat";
+	// Snapshot files are framed as [magic][format version][payload length][CRC32][payload]
+	private static final int SNAPSHOT_MAGIC = 0x48434543;
+	private static final int SNAPSHOT_FORMAT_VERSION = 3;
+	private static final int RESOLUTION_THREADS = 4;
+	// Every shortcut in the emoticon sets; templates can only show emoticons through ${emoticonUrl}, which 
+	// picks from these
+	private static final Collection<String> NEEDED_SHORTCUTS = getNeededShortcuts();
 	private HipChatApiProcessor processor;
-	private HashMap<String, String> emoticonCache;	
+	private HipChatConfiguration configuration;
+	// Where the emoticons are kept between restarts; null if they aren't
+	private File snapshotFile;
+	// Replaced as a whole once a reload has finished; lookups never see a reload in progress
+	private volatile Snapshot snapshot;
+	private final Object reloadLock = new Object();
+	private final Object refreshLock = new Object();
+	private ScheduledExecutorService refresher;
+	private boolean catalogueRequested;
 	
 	public HipChatEmoticonCache(@NotNull HipChatApiProcessor processor) {
+		this(processor, new HipChatConfiguration());
+	}
+	
+	public HipChatEmoticonCache(@NotNull HipChatApiProcessor processor, @NotNull HipChatConfiguration configuration) {
+		this(processor, configuration, (File) null);
+	}
+	
+	public HipChatEmoticonCache(@NotNull HipChatApiProcessor processor, @NotNull HipChatConfiguration configuration, @NotNull ServerPaths serverPaths) {
+		this(processor, configuration, new File(new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY), SNAPSHOT_FILE));
+	}
+	
+	public HipChatEmoticonCache(@NotNull HipChatApiProcessor processor, @NotNull HipChatConfiguration configuration, File snapshotFile) {
 		this.processor = processor;
-		this.emoticonCache = new HashMap<String, String>();
+		this.configuration = configuration;
+		this.snapshotFile = snapshotFile;
+		this.snapshot = new Snapshot(new HashMap<String, String>(), true, 0, 0, Collections.<EmoticonPage>emptyList());
+		logger.debug(String.format("Emoticon snapshot file: %s", snapshotFile));
+	}
+	
+	// Starts from the emoticons saved by the last reload, if any, then reloads on the refresh thread once they are 
+	// due, and again every refresh interval
+	public void scheduleRefresh() {
+		synchronized (this.refreshLock) {
+			if (this.refresher != null) {
+				return;
+			}
+			this.loadSnapshot();
+			this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, REFRESH_THREAD_NAME);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.scheduleNextRefresh(this.getFirstRefreshDelay());
+		}
+		logger.debug("Emoticon refresh scheduled");
+	}
+	
+	public void dispose() {
+		synchronized (this.refreshLock) {
+			if (this.refresher != null) {
+				this.refresher.shutdownNow();
+				this.refresher = null;
+			}
+		}
+		logger.debug("Emoticon refresh stopped");
+	}
+	
+	private void scheduleNextRefresh(long delay) {
+		synchronized (this.refreshLock) {
+			if (this.refresher == null) {
+				// Disposed
+				return;
+			}
+			this.refresher.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reload();
+					} catch (Exception e) {
+						logger.error("Could not refresh emoticons", e);
+					} finally {
+						scheduleNextRefresh(getRefreshDelay(configuration.getSnapshot()));
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	// Saved emoticons that are still fresh are kept until they are due; the pages are revalidated with their ETags 
+	// then, so unchanged pages aren't downloaded again
+	private long getFirstRefreshDelay() {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot.emoticons.isEmpty()) {
+			return 0;
+		}
+		long age = System.currentTimeMillis() - snapshot.refreshed;
+		long delay = Math.max(0, getRefreshDelay(this.configuration.getSnapshot()) - age);
+		logger.debug(String.format("Saved emoticons are %s ms old; first refresh in %s ms", age, delay));
+		return delay;
+	}
+	
+	// Milliseconds until the next refresh: the interval, give or take up to the jitter
+	public static long getRefreshDelay(HipChatConfigurationSnapshot configuration) {
+		long interval = TimeUnit.MINUTES.toMillis(Math.max(1, configuration.getEmoticonRefreshInterval()));
+		long jitter = Math.min(TimeUnit.MINUTES.toMillis(Math.max(0, configuration.getEmoticonRefreshJitter())), interval / 2);
+		if (jitter == 0) {
+			return interval;
+		}
+		return interval - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1);
 	}
 	
 	public int reload() {
+		return this.reload(this.configuration.getSnapshot().getEmoticonResolution());
+	}
+	
+	// The whole catalogue, whatever the configured resolution
+	public int reloadCatalogue() {
+		return this.reload(HipChatEmoticonResolution.CATALOGUE);
+	}
+	
+	private int reload(HipChatEmoticonResolution resolution) {
+		// Reloads queue up behind each other; lookups carry on against the current snapshot
+		synchronized (this.reloadLock) {
+			long started = System.currentTimeMillis();
+			Map<String, String> emoticonCache = null;
+			List<EmoticonPage> pages = Collections.emptyList();
+			boolean complete = false;
+			if (resolution == HipChatEmoticonResolution.SELECTIVE) {
+				emoticonCache = this.resolveEmoticons(NEEDED_SHORTCUTS);
+				if (emoticonCache.isEmpty()) {
+					// Perhaps a HipChat server without the emoticon-by-shortcut resource
+					logger.info("None of the emoticons could be resolved individually; loading the whole catalogue");
+					emoticonCache = null;
+				}
+			}
+			if (emoticonCache == null) {
+				pages = this.loadCatalogue();
+				emoticonCache = pages.isEmpty() ? null : getEmoticons(pages);
+				complete = true;
+			}
+			if (emoticonCache == null) {
+				// Nothing came back, or only part of the catalogue; better the emoticons we had than those
+				logger.warn("Emoticons could not be retrieved; keeping the cached emoticons");
+				return this.snapshot.emoticons.size();
+			}
+			long refreshed = System.currentTimeMillis();
+			this.snapshot = new Snapshot(emoticonCache, complete, refreshed, refreshed - started, pages);
+			this.saveSnapshot(this.snapshot);
+			logger.info(String.format("Emoticon cache reloaded: %s (%s ms)", emoticonCache.size(), refreshed - started));
+			return emoticonCache.size();
+		}
+	}
+	
+	// Empty unless every page could be retrieved
+	private List<EmoticonPage> loadCatalogue() {
 		logger.debug("Caching all available emoticons");
-		this.emoticonCache = new HashMap<String, String>();
-		int startIndex = 0;
-		HipChatEmoticons emoticons = null;
-		do {
-			logger.debug(String.format("Start index: %s", startIndex));
-			emoticons = this.processor.getEmoticons(startIndex);
-			if (emoticons == null) {
-				break;
-			}
-			for (HipChatEmoticon emoticon : emoticons.items) {
+		// Due to a bug in the HipChat REST API, we have to work around using the next resource (#49).
+		// The HipChat API returns a next resource on each request, even when there are no more emoticons to retrieve, 
+		// so the pages run out when one comes back short.
+		List<EmoticonPage> pages = new HipChatPageLoader<EmoticonPage>() {
+			@Override
+			protected EmoticonPage getPage(int startIndex) {
+				logger.debug(String.format("Start index: %s", startIndex));
+				HipChatEmoticons emoticons = processor.getEmoticons(startIndex);
+				return emoticons == null ? null : new EmoticonPage(startIndex, emoticons);
+			}
+
+			@Override
+			protected int getItemCount(EmoticonPage page) {
+				return page.emoticons.items == null ? 0 : page.emoticons.items.size();
+			}
+
+			@Override
+			protected int getMaxResults(EmoticonPage page) {
+				return page.emoticons.maxResults;
+			}
+		}.load();
+		return pages == null ? Collections.<EmoticonPage>emptyList() : pages;
+	}
+	
+	private static Map<String, String> getEmoticons(List<EmoticonPage> pages) {
+		Map<String, String> emoticonCache = new HashMap<String, String>();
+		for (EmoticonPage page : pages) {
+			for (HipChatEmoticon emoticon : page.emoticons.items) {
 				logger.debug(String.format("Adding emoticon: %s - %s", emoticon.shortcut, emoticon.url));
-				this.emoticonCache.put(emoticon.shortcut, emoticon.url);
+				emoticonCache.put(emoticon.shortcut, emoticon.url);
 			}
-			// Due to a bug in the HipChat REST API, we have to work around using the next resource (#49).
-			// The HipChat API returns a next resource on each request, even when there are no more emoticons to retrieve.
-			startIndex = startIndex + emoticons.items.size();
-		} while (emoticons.items.size() > 0);		
-		logger.info(String.format("Emoticon cache reloaded: %s", this.emoticonCache.size()));
-		return this.emoticonCache.size();
+		}
+		return emoticonCache;
+	}
+	
+	// Looks the shortcuts up one by one, a few at a time; those HipChat doesn't have are left out
+	private Map<String, String> resolveEmoticons(Collection<String> shortcuts) {
+		logger.debug(String.format("Resolving %s emoticons", shortcuts.size()));
+		Map<String, String> emoticonCache = new HashMap<String, String>();
+		ExecutorService executor = Executors.newFixedThreadPool(RESOLUTION_THREADS, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("HipChat emoticon resolver %s", this.threadNumber.getAndIncrement()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			Map<String, Future<HipChatEmoticon>> lookups = new LinkedHashMap<String, Future<HipChatEmoticon>>();
+			for (final String shortcut : shortcuts) {
+				lookups.put(shortcut, executor.submit(new Callable<HipChatEmoticon>() {
+					@Override
+					public HipChatEmoticon call() throws Exception {
+						return processor.getEmoticon(shortcut);
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<HipChatEmoticon>> lookup : lookups.entrySet()) {
+				HipChatEmoticon emoticon = lookup.getValue().get();
+				if (emoticon != null && emoticon.url != null) {
+					logger.debug(String.format("Adding emoticon: %s - %s", lookup.getKey(), emoticon.url));
+					emoticonCache.put(lookup.getKey(), emoticon.url);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while resolving emoticons");
+		} catch (ExecutionException e) {
+			logger.error("Could not resolve emoticons", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return emoticonCache;
 	}
 	
 	public int getSize() {
-		return this.emoticonCache.size();
+		return this.snapshot.emoticons.size();
+	}
+	
+	// When the emoticons were last reloaded, in milliseconds since the epoch; 0 if they never have been
+	public long getLastRefreshTime() {
+		return this.snapshot.refreshed;
+	}
+	
+	// Milliseconds the last reload took
+	public long getLastRefreshDuration() {
+		return this.snapshot.duration;
 	}
 	
 	public String get(String name) {
-		return this.emoticonCache.get(name);
+		Snapshot snapshot = this.snapshot;
+		String url = snapshot.emoticons.get(name);
+		if (url == null && !snapshot.complete) {
+			this.requestCatalogue();
+		}
+		return url;
+	}
+	
+	// The URL of a random emoticon from the set, or null if HipChat has none of them
+	public String getRandomUrl(String[] set) {
+		Snapshot snapshot = this.snapshot;
+		String[] urls = snapshot.emoticonSetUrls.get(set);
+		if (urls == null) {
+			// Not one of the standard sets
+			urls = resolveEmoticonSet(set, snapshot.emoticons);
+			if (urls.length < set.length && !snapshot.complete) {
+				this.requestCatalogue();
+			}
+		}
+		if (urls.length == 0) {
+			return null;
+		}
+		return urls[ThreadLocalRandom.current().nextInt(urls.length)];
+	}
+	
+	// Asked for an emoticon outside of the emoticon sets; the whole catalogue is loaded on the refresh thread, 
+	// and kept until the next scheduled refresh
+	private void requestCatalogue() {
+		synchronized (this.refreshLock) {
+			if (this.refresher == null || this.catalogueRequested) {
+				return;
+			}
+			this.catalogueRequested = true;
+			this.refresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reloadCatalogue();
+					} catch (Exception e) {
+						logger.error("Could not load the emoticon catalogue", e);
+					} finally {
+						synchronized (refreshLock) {
+							catalogueRequested = false;
+						}
+					}
+				}
+			});
+		}
+		logger.debug("Emoticon catalogue requested");
+	}
+	
+	private void loadSnapshot() {
+		if (this.snapshotFile == null || !this.snapshotFile.exists()) {
+			return;
+		}
+		String apiUrl = this.configuration.getSnapshot().getApiUrl();
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.snapshotFile)));
+			try {
+				if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_FORMAT_VERSION) {
+					logger.warn(String.format("Unrecognised emoticon snapshot %s; ignoring it", this.snapshotFile));
+					return;
+				}
+				byte[] payload = new byte[input.readInt()];
+				long checksum = input.readLong();
+				input.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (crc.getValue() != checksum) {
+					logger.warn(String.format("Checksum mismatch in emoticon snapshot %s; ignoring it", this.snapshotFile));
+					return;
+				}
+				DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+				if (!fields.readUTF().equals(String.valueOf(apiUrl))) {
+					// Saved from another HipChat server
+					logger.debug("Emoticon snapshot is for a different API URL; ignoring it");
+					return;
+				}
+				boolean complete = fields.readBoolean();
+				long refreshed = fields.readLong();
+				long duration = fields.readLong();
+				int count = fields.readInt();
+				Map<String, String> emoticons = new HashMap<String, String>(count * 4 / 3 + 1);
+				for (int i = 0; i < count; i++) {
+					emoticons.put(fields.readUTF(), fields.readUTF());
+				}
+				int pageCount = fields.readInt();
+				List<EmoticonPage> pages = new ArrayList<EmoticonPage>(pageCount);
+				for (int i = 0; i < pageCount; i++) {
+					int startIndex = fields.readInt();
+					String eTag = fields.readUTF();
+					int maxResults = fields.readInt();
+					int itemCount = fields.readInt();
+					List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>(itemCount);
+					for (int j = 0; j < itemCount; j++) {
+						items.add(new HipChatEmoticon(null, null, fields.readUTF(), fields.readUTF()));
+					}
+					HipChatEmoticons page = new HipChatEmoticons(items, startIndex, maxResults, null);
+					page.eTag = eTag;
+					pages.add(new EmoticonPage(startIndex, page));
+				}
+				synchronized (this.reloadLock) {
+					// A reload that has already finished has newer emoticons
+					if (this.snapshot.refreshed < refreshed) {
+						this.snapshot = new Snapshot(emoticons, complete, refreshed, duration, pages);
+						// So that the next reload only downloads the pages that have changed
+						for (EmoticonPage page : pages) {
+							this.processor.restoreEmoticons(page.startIndex, page.emoticons);
+						}
+					}
+				}
+				logger.info(String.format("Emoticon cache loaded from %s: %s", this.snapshotFile, count));
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			logger.warn(String.format("Could not load emoticon snapshot %s", this.snapshotFile), e);
+		}
+	}
+	
+	private void saveSnapshot(Snapshot snapshot) {
+		if (this.snapshotFile == null) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream fields = new DataOutputStream(buffer);
+			fields.writeUTF(String.valueOf(this.configuration.getSnapshot().getApiUrl()));
+			fields.writeBoolean(snapshot.complete);
+			fields.writeLong(snapshot.refreshed);
+			fields.writeLong(snapshot.duration);
+			fields.writeInt(snapshot.emoticons.size());
+			for (Map.Entry<String, String> emoticon : snapshot.emoticons.entrySet()) {
+				fields.writeUTF(emoticon.getKey());
+				fields.writeUTF(emoticon.getValue());
+			}
+			// Only pages with an ETag can be revalidated
+			List<EmoticonPage> taggedPages = new ArrayList<EmoticonPage>();
+			for (EmoticonPage page : snapshot.pages) {
+				if (page.emoticons.eTag != null) {
+					taggedPages.add(page);
+				}
+			}
+			fields.writeInt(taggedPages.size());
+			for (EmoticonPage page : taggedPages) {
+				fields.writeInt(page.startIndex);
+				fields.writeUTF(page.emoticons.eTag);
+				fields.writeInt(page.emoticons.maxResults);
+				List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+				for (HipChatEmoticon emoticon : page.emoticons.items) {
+					if (emoticon.shortcut != null && emoticon.url != null) {
+						items.add(emoticon);
+					}
+				}
+				fields.writeInt(items.size());
+				for (HipChatEmoticon emoticon : items) {
+					fields.writeUTF(emoticon.shortcut);
+					fields.writeUTF(emoticon.url);
+				}
+			}
+			fields.flush();
+			byte[] payload = buffer.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+
+			// Written aside and moved into place, so a crash never leaves half a snapshot behind
+			File directory = this.snapshotFile.getAbsoluteFile().getParentFile();
+			if (!directory.exists() && !directory.mkdirs()) {
+				throw new IOException(String.format("Could not create directory %s", directory));
+			}
+			File temporaryFile = new File(directory, this.snapshotFile.getName() + ".tmp");
+			DataOutputStream output = new DataOutputStream(new FileOutputStream(temporaryFile));
+			try {
+				output.writeInt(SNAPSHOT_MAGIC);
+				output.writeInt(SNAPSHOT_FORMAT_VERSION);
+				output.writeInt(payload.length);
+				output.writeLong(crc.getValue());
+				output.write(payload);
+			} finally {
+				output.close();
+			}
+			Files.move(temporaryFile.toPath(), this.snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			logger.debug(String.format("Emoticon snapshot saved to %s", this.snapshotFile));
+		} catch (IOException e) {
+			logger.warn(String.format("Could not save emoticon snapshot %s", this.snapshotFile), e);
+		}
+	}
+	
+	private static Collection<String> getNeededShortcuts() {
+		Set<String> shortcuts = new LinkedHashSet<String>();
+		Collections.addAll(shortcuts, HipChatEmoticonSet.POSITIVE);
+		Collections.addAll(shortcuts, HipChatEmoticonSet.NEGATIVE);
+		Collections.addAll(shortcuts, HipChatEmoticonSet.INDIFFERENT);
+		return Collections.unmodifiableSet(shortcuts);
+	}
+	
+	private static String[] resolveEmoticonSet(String[] set, Map<String, String> emoticons) {
+		List<String> urls = new ArrayList<String>(set.length);
+		for (String shortcut : set) {
+			String url = emoticons.get(shortcut);
+			if (url != null) {
+				urls.add(url);
+			}
+		}
+		return urls.toArray(new String[urls.size()]);
+	}
+	
+	private static class Snapshot {
+		
+		private final Map<String, String> emoticons;
+		// URLs of the emoticons in each set that HipChat actually has; keyed by identity, the sets being the 
+		// constant arrays in HipChatEmoticonSet
+		private final Map<String[], String[]> emoticonSetUrls;
+		// Whether the emoticons are the whole catalogue, or just those in the emoticon sets
+		private final boolean complete;
+		private final long refreshed;
+		private final long duration;
+		// The catalogue pages the emoticons came from; empty unless they are the whole catalogue
+		private final List<EmoticonPage> pages;
+		
+		public Snapshot(Map<String, String> emoticons, boolean complete, long refreshed, long duration, List<EmoticonPage> pages) {
+			this.emoticons = Collections.unmodifiableMap(emoticons);
+			this.complete = complete;
+			this.refreshed = refreshed;
+			this.duration = duration;
+			this.pages = Collections.unmodifiableList(pages);
+			Map<String[], String[]> emoticonSetUrls = new IdentityHashMap<String[], String[]>();
+			emoticonSetUrls.put(HipChatEmoticonSet.POSITIVE, resolveEmoticonSet(HipChatEmoticonSet.POSITIVE, emoticons));
+			emoticonSetUrls.put(HipChatEmoticonSet.NEGATIVE, resolveEmoticonSet(HipChatEmoticonSet.NEGATIVE, emoticons));
+			emoticonSetUrls.put(HipChatEmoticonSet.INDIFFERENT, resolveEmoticonSet(HipChatEmoticonSet.INDIFFERENT, emoticons));
+			this.emoticonSetUrls = emoticonSetUrls;
+		}
+		
+	}
+	
+	private static class EmoticonPage {
+		
+		// As requested, which is what the page is cached under
+		private final int startIndex;
+		private final HipChatEmoticons emoticons;
+		
+		public EmoticonPage(int startIndex, HipChatEmoticons emoticons) {
+			this.startIndex = startIndex;
+			this.emoticons = emoticons;
+		}
+		
 	}
 	
 }
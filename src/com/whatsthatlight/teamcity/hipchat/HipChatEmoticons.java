@@ -18,6 +18,7 @@ package com.whatsthatlight.teamcity.hipchat;
 
 import java.util.List;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 
 // See: https://www.hipchat.com/docs/apiv2/method/get_all_rooms
@@ -35,6 +36,10 @@ public class HipChatEmoticons {
 	@JsonProperty("links")
 	public HipChatApiResultLinks links;
 
+	// From the response headers rather than the body; null if HipChat sent none
+	@JsonIgnore
+	public String eTag;
+
 	public HipChatEmoticons() {
 		// Intentionally left empty
 	}
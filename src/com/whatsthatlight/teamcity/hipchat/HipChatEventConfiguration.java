@@ -47,6 +47,17 @@ public class HipChatEventConfiguration {
 	
 	public HipChatEventConfiguration() {
 	}
+	
+	public HipChatEventConfiguration(HipChatEventConfiguration source) {
+		this.buildStarted = source.buildStarted;
+		this.buildSuccessful = source.buildSuccessful;
+		this.buildFailed = source.buildFailed;
+		this.buildInterrupted = source.buildInterrupted;
+		this.serverStartup = source.serverStartup;
+		this.serverShutdown = source.serverShutdown;
+		this.onlyAfterFirstBuildSuccessful = source.onlyAfterFirstBuildSuccessful;
+		this.onlyAfterFirstBuildFailed = source.onlyAfterFirstBuildFailed;
+	}
 
 	public boolean getBuildStartedStatus() {
 		return this.buildStarted;
@@ -0,0 +1,149 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+// Renders a message into a reusable buffer, cutting it off at HipChat's message length while it is written
+public class HipChatMessageWriter extends Writer {
+
+	public static final String TRUNCATION_MARKER = "...";
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	// Longer runs after an ampersand cannot be an entity
+	private static final int MAX_ENTITY_LENGTH = 10;
+	private final int maxLength;
+	private char[] buffer;
+	private int count;
+	private boolean truncated;
+
+	public HipChatMessageWriter() {
+		this(HipChatRoomNotification.MAX_MESSAGE_LENGTH);
+	}
+
+	public HipChatMessageWriter(int maxLength) {
+		this.maxLength = maxLength;
+		this.buffer = new char[Math.min(INITIAL_BUFFER_SIZE, maxLength)];
+	}
+
+	public void reset() {
+		this.count = 0;
+		this.truncated = false;
+	}
+
+	public boolean isTruncated() {
+		return this.truncated;
+	}
+
+	public int length() {
+		return this.count;
+	}
+
+	@Override
+	public void write(int c) {
+		if (this.truncated) {
+			return;
+		}
+		if (this.count == this.maxLength) {
+			this.truncate();
+			return;
+		}
+		this.ensureCapacity(this.count + 1);
+		this.buffer[this.count++] = (char) c;
+	}
+
+	@Override
+	public void write(char[] chars, int offset, int length) {
+		if (this.truncated) {
+			return;
+		}
+		int accepted = Math.min(length, this.maxLength - this.count);
+		this.ensureCapacity(this.count + accepted);
+		System.arraycopy(chars, offset, this.buffer, this.count, accepted);
+		this.count += accepted;
+		if (accepted < length) {
+			this.truncate();
+		}
+	}
+
+	@Override
+	public void write(String string, int offset, int length) {
+		if (this.truncated) {
+			return;
+		}
+		int accepted = Math.min(length, this.maxLength - this.count);
+		this.ensureCapacity(this.count + accepted);
+		string.getChars(offset, offset + accepted, this.buffer, this.count);
+		this.count += accepted;
+		if (accepted < length) {
+			this.truncate();
+		}
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return new String(this.buffer, 0, this.count);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.min(this.maxLength, Math.max(capacity, this.buffer.length * 2)));
+		}
+	}
+
+	private void truncate() {
+		// Make room for the marker, then back out of any tag, entity or surrogate pair the cut would split
+		int cut = Math.max(0, this.maxLength - TRUNCATION_MARKER.length());
+		for (int i = cut - 1; i >= 0; i--) {
+			char c = this.buffer[i];
+			if (c == '>') {
+				break;
+			}
+			if (c == '<') {
+				cut = i;
+				break;
+			}
+		}
+		for (int i = cut - 1; i >= 0 && i >= cut - MAX_ENTITY_LENGTH; i--) {
+			char c = this.buffer[i];
+			if (c == '&') {
+				cut = i;
+				break;
+			}
+			if (c != '#' && !Character.isLetterOrDigit(c)) {
+				break;
+			}
+		}
+		if (cut > 0 && Character.isHighSurrogate(this.buffer[cut - 1])) {
+			cut--;
+		}
+		this.count = cut;
+		this.ensureCapacity(cut + TRUNCATION_MARKER.length());
+		TRUNCATION_MARKER.getChars(0, TRUNCATION_MARKER.length(), this.buffer, cut);
+		this.count += TRUNCATION_MARKER.length();
+		this.truncated = true;
+	}
+
+}
@@ -0,0 +1,248 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+public class HipChatNotificationCoalescer {
+
+	private static final String HTML_SEPARATOR = "<br/>";
+	// Worst first
+	private static final List<String> COLOUR_SEVERITY = Arrays.asList(HipChatMessageColour.ERROR, HipChatMessageColour.WARNING, 
+			HipChatMessageColour.INFO, HipChatMessageColour.SUCCESS, HipChatMessageColour.NEUTRAL);
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private HipChatConfiguration configuration;
+	private HipChatNotificationDispatcher dispatcher;
+	private final Map<String, List<Pending>> pendingByRoom = new HashMap<String, List<Pending>>();
+	private final ConcurrentMap<String, Object> roomLocks = new ConcurrentHashMap<String, Object>();
+	private ScheduledExecutorService scheduler;
+	private boolean shutdown;
+
+	public HipChatNotificationCoalescer(@NotNull HipChatConfiguration configuration, @NotNull HipChatNotificationDispatcher dispatcher) {
+		this.configuration = configuration;
+		this.dispatcher = dispatcher;
+	}
+
+	public void dispatch(TeamCityEvent event, HipChatRoomNotification notification, String roomId) {
+		int window = this.configuration.getSnapshot().getCoalescingWindow();
+		if (window <= 0 || !HipChatMessageFormat.HTML.equals(notification.messageFormat)) {
+			this.dispatchNow(event, notification, roomId);
+			return;
+		}
+		// Journalled now, so that a crash inside the window does not lose it; the digest replaces it in the outbox.
+		// The write is synced to disk, so it is done before taking the lock.
+		long outboxId = this.dispatcher.journal(event, notification, roomId);
+		synchronized (this) {
+			if (!this.shutdown) {
+				List<Pending> pending = this.pendingByRoom.get(roomId);
+				if (pending == null) {
+					pending = new ArrayList<Pending>();
+					this.pendingByRoom.put(roomId, pending);
+					this.schedule(roomId, window);
+				}
+				pending.add(new Pending(event, notification, outboxId));
+				return;
+			}
+		}
+		this.dispatchNow(event, notification, roomId, outboxId);
+	}
+
+	public void dispatchNow(TeamCityEvent event, HipChatRoomNotification notification, String roomId) {
+		this.dispatchNow(event, notification, roomId, this.dispatcher.journal(event, notification, roomId));
+	}
+
+	private void dispatchNow(TeamCityEvent event, HipChatRoomNotification notification, String roomId, long outboxId) {
+		// Anything already waiting for the room goes first, to keep the room's messages in order
+		synchronized (this.getRoomLock(roomId)) {
+			this.flush(roomId);
+			this.dispatcher.dispatch(event, notification, roomId, outboxId);
+		}
+	}
+
+	public void flush(String roomId) {
+		// Held until the room's digests are handed over, so that a concurrent dispatchNow cannot overtake them
+		synchronized (this.getRoomLock(roomId)) {
+			List<Pending> pending;
+			synchronized (this) {
+				pending = this.pendingByRoom.remove(roomId);
+			}
+			if (pending == null || pending.isEmpty()) {
+				return;
+			}
+			if (pending.size() > 1) {
+				logger.debug(String.format("Coalescing %s notifications for room %s", pending.size(), roomId));
+			}
+			for (Pending digest : coalesce(pending)) {
+				if (digest.sources == null) {
+					this.dispatcher.dispatch(digest.event, digest.notification, roomId, digest.outboxId);
+					continue;
+				}
+				// The digest is journalled before the notifications it stands for are acknowledged
+				long outboxId = this.dispatcher.journal(digest.event, digest.notification, roomId);
+				this.dispatcher.dispatch(digest.event, digest.notification, roomId, outboxId);
+				for (Pending source : digest.sources) {
+					this.dispatcher.acknowledge(source.outboxId);
+				}
+			}
+		}
+	}
+
+	public void flushAll() {
+		List<String> roomIds;
+		synchronized (this) {
+			roomIds = new ArrayList<String>(this.pendingByRoom.keySet());
+		}
+		for (String roomId : roomIds) {
+			this.flush(roomId);
+		}
+	}
+
+	public void shutdown() {
+		ScheduledExecutorService scheduler;
+		synchronized (this) {
+			scheduler = this.scheduler;
+			this.scheduler = null;
+			this.shutdown = true;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		this.flushAll();
+	}
+
+	private Object getRoomLock(String roomId) {
+		Object lock = this.roomLocks.get(roomId);
+		if (lock == null) {
+			Object created = new Object();
+			lock = this.roomLocks.putIfAbsent(roomId, created);
+			if (lock == null) {
+				lock = created;
+			}
+		}
+		return lock;
+	}
+
+	private void schedule(final String roomId, int window) {
+		if (this.scheduler == null) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "HipChat notification coalescer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush(roomId);
+				} catch (Exception e) {
+					logger.error(String.format("Could not flush notifications for room %s", roomId), e);
+				}
+			}
+		}, window, TimeUnit.SECONDS);
+	}
+
+	private static List<Pending> coalesce(List<Pending> pending) {
+		List<Pending> digests = new ArrayList<Pending>();
+		if (pending.size() == 1) {
+			digests.add(pending.get(0));
+			return digests;
+		}
+		// Split into as few digests as HipChat's message length allows
+		List<Pending> batch = new ArrayList<Pending>();
+		int length = 0;
+		for (Pending item : pending) {
+			int itemLength = item.notification.message == null ? 0 : item.notification.message.length();
+			if (!batch.isEmpty() && length + HTML_SEPARATOR.length() + itemLength > HipChatRoomNotification.MAX_MESSAGE_LENGTH) {
+				digests.add(merge(batch));
+				batch = new ArrayList<Pending>();
+				length = 0;
+			}
+			length += (batch.isEmpty() ? 0 : HTML_SEPARATOR.length()) + itemLength;
+			batch.add(item);
+		}
+		digests.add(merge(batch));
+		return digests;
+	}
+
+	private static Pending merge(List<Pending> batch) {
+		if (batch.size() == 1) {
+			return batch.get(0);
+		}
+		StringBuilder message = new StringBuilder();
+		Pending worst = null;
+		boolean notify = false;
+		for (Pending item : batch) {
+			if (message.length() > 0) {
+				message.append(HTML_SEPARATOR);
+			}
+			if (item.notification.message != null) {
+				message.append(item.notification.message);
+			}
+			notify |= item.notification.notify;
+			if (worst == null || getSeverity(item.notification.color) < getSeverity(worst.notification.color)) {
+				worst = item;
+			}
+		}
+		HipChatRoomNotification notification = new HipChatRoomNotification(message.toString(), HipChatMessageFormat.HTML, worst.notification.color, notify);
+		return new Pending(worst.event, notification, batch);
+	}
+
+	private static int getSeverity(String colour) {
+		int severity = COLOUR_SEVERITY.indexOf(colour);
+		return severity < 0 ? COLOUR_SEVERITY.size() : severity;
+	}
+
+	private static class Pending {
+
+		private TeamCityEvent event;
+		private HipChatRoomNotification notification;
+		private long outboxId;
+		private List<Pending> sources;
+
+		public Pending(TeamCityEvent event, HipChatRoomNotification notification, long outboxId) {
+			this.event = event;
+			this.notification = notification;
+			this.outboxId = outboxId;
+		}
+
+		public Pending(TeamCityEvent event, HipChatRoomNotification notification, List<Pending> sources) {
+			this.event = event;
+			this.notification = notification;
+			this.sources = sources;
+		}
+
+	}
+
+}
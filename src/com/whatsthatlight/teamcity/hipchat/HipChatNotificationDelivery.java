@@ -0,0 +1,69 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+class HipChatNotificationDelivery extends FutureTask<Boolean> {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private HipChatDeliveryCallback callback;
+	private AtomicInteger inFlightCount;
+
+	public HipChatNotificationDelivery(final HipChatApiProcessor processor, final HipChatRoomNotification notification, final String roomId, HipChatDeliveryCallback callback, AtomicInteger inFlightCount) {
+		super(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return processor.sendNotification(notification, roomId);
+			}
+		});
+		this.callback = callback;
+		this.inFlightCount = inFlightCount;
+		this.inFlightCount.incrementAndGet();
+	}
+
+	@Override
+	protected void done() {
+		this.inFlightCount.decrementAndGet();
+		if (this.callback == null) {
+			return;
+		}
+		try {
+			if (this.isCancelled()) {
+				this.callback.completed(false);
+				return;
+			}
+			try {
+				this.callback.completed(this.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				this.callback.failed(cause instanceof Exception ? (Exception) cause : e);
+			}
+		} catch (InterruptedException e) {
+			// Cannot happen; the task is done
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.error("Delivery callback failed", e);
+		}
+	}
+
+}
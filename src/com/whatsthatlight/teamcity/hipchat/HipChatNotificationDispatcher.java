@@ -0,0 +1,411 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+public class HipChatNotificationDispatcher {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+	private static final long NOT_JOURNALLED = -1;
+	private static final long REQUEUE_DELAY_MILLISECONDS = 1000;
+	private static final int MAX_REQUEUES = 10;
+	private HipChatConfiguration configuration;
+	private HipChatApiProcessor processor;
+	private HipChatNotificationOutbox outbox;
+	private final Object executorLock = new Object();
+	private ThreadPoolExecutor executor;
+	private HipChatNotificationTransport transport;
+	private ScheduledExecutorService requeueScheduler;
+	private boolean shutdown;
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	public HipChatNotificationDispatcher(@NotNull HipChatConfiguration configuration, @NotNull HipChatApiProcessor processor) {
+		this(configuration, processor, null);
+	}
+
+	public HipChatNotificationDispatcher(@NotNull HipChatConfiguration configuration, @NotNull HipChatApiProcessor processor, HipChatNotificationOutbox outbox) {
+		this(configuration, processor, outbox, null);
+	}
+
+	public HipChatNotificationDispatcher(@NotNull HipChatConfiguration configuration, @NotNull HipChatApiProcessor processor, HipChatNotificationOutbox outbox, HipChatNotificationTransport transport) {
+		this.configuration = configuration;
+		this.processor = processor;
+		this.outbox = outbox;
+		this.transport = transport;
+		logger.debug("Notification dispatcher created");
+	}
+
+	public void dispatch(TeamCityEvent event, HipChatRoomNotification notification, String roomId) {
+		this.dispatch(event, notification, roomId, this.journal(event, notification, roomId));
+	}
+
+	public void dispatch(TeamCityEvent event, HipChatRoomNotification notification, String roomId, long outboxId) {
+		this.submit(new DispatchTask(event, notification, roomId, this.processor, this.outbox, outboxId));
+	}
+
+	public long journal(TeamCityEvent event, HipChatRoomNotification notification, String roomId) {
+		if (this.outbox != null) {
+			try {
+				return this.outbox.append(event, notification, roomId);
+			} catch (IOException e) {
+				// Still worth sending; it just won't survive a restart
+				logger.error(String.format("Could not write %s notification to the outbox", event), e);
+			}
+		}
+		return NOT_JOURNALLED;
+	}
+
+	public void acknowledge(long outboxId) {
+		if (this.outbox != null && outboxId != NOT_JOURNALLED) {
+			this.outbox.acknowledge(outboxId);
+		}
+	}
+
+	public int recover() {
+		if (this.outbox == null) {
+			return 0;
+		}
+		try {
+			List<HipChatNotificationOutbox.Entry> entries = this.outbox.recover();
+			for (HipChatNotificationOutbox.Entry entry : entries) {
+				logger.info(String.format("Replaying undelivered %s notification for room %s", entry.getEvent(), entry.getRoomId()));
+				this.submit(new DispatchTask(entry.getEvent(), entry.getNotification(), entry.getRoomId(), this.processor, this.outbox, entry.getId()));
+			}
+			return entries.size();
+		} catch (IOException e) {
+			logger.error("Could not recover notifications from the outbox", e);
+			return 0;
+		}
+	}
+
+	private void submit(DispatchTask task) {
+		ThreadPoolExecutor executor = this.getExecutor();
+		if (executor == null) {
+			// Late events are not sent on the caller's thread, which could be held up by an open circuit; they are already journalled
+			logger.warn(String.format("Dispatcher shut down; %s notification for room %s not sent%s", task.event, task.roomId, 
+					this.outbox == null ? "" : " and left in the outbox for the next start-up"));
+			return;
+		}
+		task.dispatcher = this;
+		task.transport = this.getTransport();
+		executor.execute(task);
+	}
+
+	private void requeue(final DispatchTask task) {
+		// Sent again once HipChat is expected to take it, through the queue and so subject to its overflow policy
+		if (task.requeues >= MAX_REQUEUES) {
+			logger.warn(String.format("HipChat still unavailable after %s attempts; %s notification for room %s not requeued%s", task.requeues + 1, task.event, 
+					task.roomId, this.outbox == null ? "" : " and left in the outbox for the next start-up"));
+			return;
+		}
+		task.requeues++;
+		long delay = Math.max(REQUEUE_DELAY_MILLISECONDS, this.processor.getCircuitBreaker().getRemainingOpenMillis());
+		synchronized (this.executorLock) {
+			if (this.shutdown) {
+				logger.warn(String.format("Dispatcher shut down; %s notification for room %s not requeued%s", task.event, task.roomId, 
+						this.outbox == null ? "" : " and left in the outbox for the next start-up"));
+				return;
+			}
+			if (this.requeueScheduler == null) {
+				this.requeueScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "HipChat notification requeue");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			this.requeueScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					submit(task);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		logger.info(String.format("HipChat unavailable; %s notification for room %s requeued in %s ms", task.event, task.roomId, delay));
+	}
+
+	public void shutdown() {
+		ThreadPoolExecutor executor;
+		HipChatNotificationTransport transport;
+		synchronized (this.executorLock) {
+			if (this.shutdown) {
+				return;
+			}
+			this.shutdown = true;
+			executor = this.executor;
+			transport = this.transport;
+			if (this.requeueScheduler != null) {
+				// Anything still waiting to be requeued stays in the outbox
+				this.requeueScheduler.shutdownNow();
+				this.requeueScheduler = null;
+			}
+		}
+		if (executor == null) {
+			return;
+		}
+		int timeout = this.configuration.getDispatchShutdownTimeout();
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+		logger.info(String.format("Draining %s queued notification(s); waiting at most %s second(s)", executor.getQueue().size(), timeout));
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.SECONDS)) {
+				List<Runnable> abandoned = executor.shutdownNow();
+				this.droppedCount.addAndGet(abandoned.size());
+				logger.warn(String.format("Notification queue not drained within %s second(s); %s notification(s) abandoned%s", timeout, abandoned.size(), 
+						this.outbox == null ? "" : " and left in the outbox for the next start-up"));
+			}
+			// Then whatever the transport still has in flight, within what is left of the deadline
+			int inFlight = transport.getInFlightCount();
+			if (!transport.shutdown(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				logger.warn(String.format("%s notification(s) still in flight at shut down%s", inFlight, 
+						this.outbox == null ? "" : "; left in the outbox for the next start-up"));
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		logger.info("Notification dispatcher shut down");
+	}
+
+	public int getQueueSize() {
+		synchronized (this.executorLock) {
+			return this.executor == null ? 0 : this.executor.getQueue().size();
+		}
+	}
+
+	public long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	public int getInFlightCount() {
+		HipChatNotificationTransport transport = this.getTransport();
+		return transport == null ? 0 : transport.getInFlightCount();
+	}
+
+	private HipChatNotificationTransport getTransport() {
+		synchronized (this.executorLock) {
+			return this.transport;
+		}
+	}
+
+	private ThreadPoolExecutor getExecutor() {
+		synchronized (this.executorLock) {
+			if (this.shutdown) {
+				return null;
+			}
+			// The configuration is only loaded after the beans have been created, so the pool is created on first use
+			if (this.executor == null) {
+				int threads = Math.max(1, this.configuration.getDispatchThreads());
+				int capacity = Math.max(1, this.configuration.getDispatchQueueCapacity());
+				HipChatDispatchOverflowPolicy policy = this.configuration.getDispatchOverflowPolicy();
+				if (policy == null) {
+					policy = HipChatDispatchOverflowPolicy.DROP_BUILD_STARTED_FIRST;
+				}
+				this.executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS, 
+						new LinkedBlockingQueue<Runnable>(capacity), new DispatchThreadFactory(), new OverflowHandler(policy, this.droppedCount));
+				this.executor.allowCoreThreadTimeOut(true);
+				logger.info(String.format("Notification dispatcher started: %s thread(s), queue capacity %s, overflow policy %s", threads, capacity, policy));
+				if (this.transport == null) {
+					int concurrency = this.configuration.getDeliveryConcurrency();
+					this.transport = concurrency > 1 ? new HipChatAsyncTransport(this.processor, concurrency) : new HipChatBlockingTransport(this.processor);
+				}
+			}
+			return this.executor;
+		}
+	}
+
+	private static class DispatchTask implements Runnable, HipChatDeliveryCallback {
+
+		private TeamCityEvent event;
+		private HipChatRoomNotification notification;
+		private String roomId;
+		private HipChatApiProcessor processor;
+		private HipChatNotificationOutbox outbox;
+		private long outboxId;
+		private HipChatNotificationTransport transport;
+		private HipChatNotificationDispatcher dispatcher;
+		private int requeues;
+
+		public DispatchTask(TeamCityEvent event, HipChatRoomNotification notification, String roomId, HipChatApiProcessor processor, HipChatNotificationOutbox outbox, long outboxId) {
+			this.event = event;
+			this.notification = notification;
+			this.roomId = roomId;
+			this.processor = processor;
+			this.outbox = outbox;
+			this.outboxId = outboxId;
+		}
+
+		public TeamCityEvent getEvent() {
+			return this.event;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// Hold queued work back while the HipChat circuit is open, or while another task probes it
+				this.processor.getCircuitBreaker().awaitPermit();
+				this.transport.send(this.notification, this.roomId, this);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void completed(boolean delivered) {
+			// HipChat turned it down or retrying it didn't help, so replaying it on the next start-up wouldn't either
+			if (delivered) {
+				this.acknowledge();
+			} else {
+				this.discard();
+			}
+		}
+
+		@Override
+		public void failed(Exception e) {
+			if (e instanceof HipChatApiUnavailableException) {
+				this.dispatcher.requeue(this);
+				return;
+			}
+			logger.error(String.format("Could not send %s notification to room %s", this.event, this.roomId), e);
+		}
+
+		public void acknowledge() {
+			if (this.outbox != null && this.outboxId != NOT_JOURNALLED) {
+				this.outbox.acknowledge(this.outboxId);
+			}
+		}
+
+		private void discard() {
+			if (this.outbox != null && this.outboxId != NOT_JOURNALLED) {
+				this.outbox.discard(this.outboxId);
+			}
+		}
+
+	}
+
+	private static class OverflowHandler implements RejectedExecutionHandler {
+
+		private HipChatDispatchOverflowPolicy policy;
+		private AtomicLong droppedCount;
+
+		public OverflowHandler(HipChatDispatchOverflowPolicy policy, AtomicLong droppedCount) {
+			this.policy = policy;
+			this.droppedCount = droppedCount;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			DispatchTask task = (DispatchTask) runnable;
+			if (executor.isShutdown()) {
+				// Left in the outbox, if there is one
+				this.droppedCount.incrementAndGet();
+				logger.warn(String.format("Dropped %s notification for room %s: dispatcher shut down", task.event, task.roomId));
+				return;
+			}
+			BlockingQueue<Runnable> queue = executor.getQueue();
+			switch (this.policy) {
+			case BLOCK:
+				try {
+					queue.put(task);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					this.drop(task, "interrupted while waiting for queue space");
+				}
+				return;
+			case DROP_NEWEST:
+				this.drop(task, "queue full");
+				return;
+			case DROP_BUILD_STARTED_FIRST:
+				if (this.evictBuildStarted(queue)) {
+					break;
+				}
+				if (task.getEvent() == TeamCityEvent.BUILD_STARTED) {
+					this.drop(task, "queue full");
+					return;
+				}
+				this.evictOldest(queue);
+				break;
+			case DROP_OLDEST:
+			default:
+				this.evictOldest(queue);
+				break;
+			}
+			// Space was freed, but another producer may have claimed it first, in which case we are called again
+			executor.execute(task);
+		}
+
+		private boolean evictBuildStarted(BlockingQueue<Runnable> queue) {
+			Iterator<Runnable> iterator = queue.iterator();
+			while (iterator.hasNext()) {
+				DispatchTask queuedTask = (DispatchTask) iterator.next();
+				if (queuedTask.getEvent() == TeamCityEvent.BUILD_STARTED && queue.remove(queuedTask)) {
+					this.drop(queuedTask, "evicted in favour of a newer notification");
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void evictOldest(BlockingQueue<Runnable> queue) {
+			Runnable oldest = queue.poll();
+			if (oldest != null) {
+				this.drop((DispatchTask) oldest, "evicted in favour of a newer notification");
+			}
+		}
+
+		private void drop(DispatchTask task, String reason) {
+			// Dropped deliberately, so not to be replayed either
+			task.acknowledge();
+			this.droppedCount.incrementAndGet();
+			logger.warn(String.format("Dropped %s notification for room %s: %s", task.event, task.roomId, reason));
+		}
+
+	}
+
+	private static class DispatchThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, String.format("HipChat notification dispatcher %s", this.threadNumber.getAndIncrement()));
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
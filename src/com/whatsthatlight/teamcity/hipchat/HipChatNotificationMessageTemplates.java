@@ -17,17 +17,31 @@ limitations under the License.
 package com.whatsthatlight.teamcity.hipchat;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jetbrains.buildServer.serverSide.ServerPaths;
 
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
-import freemarker.cache.StringTemplateLoader;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 
@@ -72,6 +86,11 @@ public class HipChatNotificationMessageTemplates {
 	public static final String SERVER_STARTUP_TEMPLATE_DEFAULT_KEY = "serverStartupTemplateDefault";
 	public static final String SERVER_SHUTDOWN_TEMPLATE_DEFAULT_KEY = "serverShutdownTemplateDefault";	
 
+	public static final String BUILD_STARTED_TEMPLATE_DATA_KEY = "buildStartedTemplateData";
+	public static final String BUILD_SUCCESSFUL_TEMPLATE_DATA_KEY = "buildSuccessfulTemplateData";
+	public static final String BUILD_FAILED_TEMPLATE_DATA_KEY = "buildFailedTemplateData";
+	public static final String BUILD_INTERRUPTED_TEMPLATE_DATA_KEY = "buildInterruptedTemplateData";
+
 	public static final String BUILD_STARTED_DEFAULT_TEMPLATE = "Build <a href=\"${serverUrl}/viewType.html?buildTypeId=${buildTypeId}\">${fullName}</a> <#if hasBranch>on branch <b>${branch}</b></#if> has started. This is build number <a href=\"${serverUrl}/viewLog.html?buildId=${buildId}\">#${buildNumber}</a> and was triggered by ${triggeredBy}. <#if hasContributors>Contributors: ${contributors}.</#if> <img src=\"${emoticonUrl}\">";
 	public static final String BUILD_SUCCESSFUL_DEFAULT_TEMPLATE = "Build <a href=\"${serverUrl}/viewType.html?buildTypeId=${buildTypeId}\">${fullName}</a> <#if hasBranch>on branch <b>${branch}</b></#if> was successful. It was build number <a href=\"${serverUrl}/viewLog.html?buildId=${buildId}\">#${buildNumber}</a> and was triggered by ${triggeredBy}. <#if hasContributors>Contributors: ${contributors}.</#if> <img src=\"${emoticonUrl}\">";
 	public static final String BUILD_FAILED_DEFAULT_TEMPLATE = "Build <a href=\"${serverUrl}/viewType.html?buildTypeId=${buildTypeId}\">${fullName}</a> <#if hasBranch>on branch <b>${branch}</b></#if> failed. It was build number <a href=\"${serverUrl}/viewLog.html?buildId=${buildId}\">#${buildNumber}</a> and was triggered by ${triggeredBy}. <#if hasContributors>Contributors: ${contributors}.</#if> <img src=\"${emoticonUrl}\">";
@@ -81,22 +100,30 @@ public class HipChatNotificationMessageTemplates {
 		
 	public static final String STATS_PARAMETERS_PREFIX = "stats";
 	private static final String TEMPLATE_NAME_EXTENSION = ".ftl";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Configuration VALIDATION_CONFIG = new Configuration();
 	private Configuration config;
-	private String templateBasePathName;
+	private File templatePath;
 	private Map<TeamCityEvent, String> defaultTemplateCache;
 	private Map<TeamCityEvent, String> eventMap;
+	private Map<TeamCityEvent, File> templateFiles;
+	private Map<String, TeamCityEvent> templateFileNames;
+	// Compiled templates, default or from disk, until the file changes
+	private final Map<TeamCityEvent, CompiledTemplate> compiledTemplates = new ConcurrentHashMap<TeamCityEvent, CompiledTemplate>();
+	private final AtomicLong generation = new AtomicLong();
+	private WatchService watchService;
 
 	public HipChatNotificationMessageTemplates(@NotNull ServerPaths serverPaths) throws IOException {		
-		// Template caching: http://fmpp.sourceforge.net/freemarker/pgui_config_templateloading.html
+		// One configuration for the lifetime of the plugin; compiled templates are cached here rather than by FreeMarker
 		this.config = new Configuration();
-		File templatePath = new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY);
-		if (!templatePath.exists()) {
-			templatePath.mkdir();
-		}
-		this.config.setDirectoryForTemplateLoading(templatePath);
 		this.config.setDefaultEncoding("UTF-8");
-		this.templateBasePathName = templatePath.getCanonicalPath();
-		logger.debug(String.format("Set \"%s\" as the template path", templateBasePathName));
+		this.templatePath = new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY);
+		if (!this.templatePath.exists()) {
+			this.templatePath.mkdir();
+		}
+		// So that <#include> and <#import> resolve against the templates' own directory
+		this.config.setDirectoryForTemplateLoading(this.templatePath);
+		logger.debug(String.format("Set \"%s\" as the template path", this.templatePath.getCanonicalPath()));
 		
 		this.defaultTemplateCache = new HashMap<TeamCityEvent, String>();
 		this.defaultTemplateCache.put(TeamCityEvent.BUILD_STARTED, BUILD_STARTED_DEFAULT_TEMPLATE);
@@ -113,54 +140,186 @@ public class HipChatNotificationMessageTemplates {
 		this.eventMap.put(TeamCityEvent.BUILD_INTERRUPTED, BUILD_INTERRUPTED_TEMPLATE_KEY);
 		this.eventMap.put(TeamCityEvent.SERVER_STARTUP, SERVER_STARTUP_TEMPLATE_KEY);
 		this.eventMap.put(TeamCityEvent.SERVER_SHUTDOWN, SERVER_SHUTDOWN_TEMPLATE_KEY);
+		
+		this.templateFiles = new HashMap<TeamCityEvent, File>();
+		this.templateFileNames = new HashMap<String, TeamCityEvent>();
+		for (Map.Entry<TeamCityEvent, String> entry : this.eventMap.entrySet()) {
+			String fileName = entry.getValue() + TEMPLATE_NAME_EXTENSION;
+			this.templateFiles.put(entry.getKey(), new File(this.templatePath, fileName).getCanonicalFile());
+			this.templateFileNames.put(fileName, entry.getKey());
+		}
+		
+		this.startWatching();
 	}
 	
 	public Template readTemplate(TeamCityEvent event) throws IOException {
-		String templateName = this.eventMap.get(event);
-		String fullPathName = getFullTemplatePath(this.templateBasePathName, templateName);
-		logger.debug(String.format("Reading template %s", templateName));
-		File fullPath = new File(fullPathName);
-		if (fullPath.exists()) {
-			return this.config.getTemplate(templateName + TEMPLATE_NAME_EXTENSION);
+		return this.getCompiledTemplate(event).getTemplate();
+	}
+	
+	// The variables referenced by the template for the event
+	public HipChatTemplateVariables getTemplateVariables(TeamCityEvent event) {
+		try {
+			return this.getCompiledTemplate(event).getVariables();
+		} catch (IOException e) {
+			// Collect everything rather than nothing
+			logger.warn(String.format("Could not analyse template for %s", event), e);
+			return HipChatTemplateVariables.ALL;
 		}
-		return createTemplate(this.defaultTemplateCache.get(event));		
 	}
 
 	public void writeTemplate(TeamCityEvent event, String template) throws IOException {
+		File fullPath = this.templateFiles.get(event);
+		logger.debug(String.format("Writing template to %s", fullPath));
+		Writer fileWriter = new OutputStreamWriter(new FileOutputStream(fullPath), UTF8);
+		try {
+			fileWriter.write(template);
+			fileWriter.flush();
+		} finally {
+			fileWriter.close();
+		}
+		// Recompiled here rather than waiting for the watcher, so the next message uses the new template
+		this.invalidate(event);
+		this.getCompiledTemplate(event);
+	}
+	
+	public void dispose() {
+		WatchService watchService = this.watchService;
+		this.watchService = null;
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				logger.warn("Could not stop watching the template directory", e);
+			}
+		}
+	}
+	
+	// The template and the variables it references, from the same compilation
+	public CompiledTemplate getCompiledTemplate(TeamCityEvent event) throws IOException {
+		CompiledTemplate compiledTemplate = this.compiledTemplates.get(event);
+		if (compiledTemplate != null) {
+			return compiledTemplate;
+		}
+		
+		// Only reached on first use and after the template has changed
+		long generation = this.generation.get();
 		String templateName = this.eventMap.get(event);
-		String fullPathName = getFullTemplatePath(this.templateBasePathName, templateName);
-		logger.debug(String.format("Writing template to %s", fullPathName));
-		File fullPath = new File(fullPathName);
-		if (!fullPath.exists()) {
-			fullPath.createNewFile();
+		File fullPath = this.templateFiles.get(event);
+		Template template;
+		if (fullPath.exists()) {
+			logger.debug(String.format("Reading template %s", fullPath));
+			Reader reader = new InputStreamReader(new FileInputStream(fullPath), UTF8);
+			try {
+				template = new Template(templateName + TEMPLATE_NAME_EXTENSION, reader, this.config);
+			} finally {
+				reader.close();
+			}
+		} else {
+			template = new Template(templateName, new StringReader(this.defaultTemplateCache.get(event)), this.config);
+		}
+		HipChatTemplateVariables variables = HipChatTemplateVariables.analyse(template);
+		logger.debug(String.format("Template for %s uses %s; collects %s", event, variables.isDynamic() ? "any variable" : variables.getNames(), variables.getDescription()));
+		compiledTemplate = new CompiledTemplate(template, variables);
+		this.compiledTemplates.put(event, compiledTemplate);
+		// The file may have changed while it was being compiled
+		if (generation != this.generation.get()) {
+			this.compiledTemplates.remove(event);
 		}
-		FileWriter fileWriter = new FileWriter(fullPath);
-		fileWriter.write(template);
-		fileWriter.flush();
-		fileWriter.close();
+		return compiledTemplate;
 	}
-
-	private static String getFullTemplatePath(String path, String templateName) throws IOException {
-		File filePath = new File(path, templateName + TEMPLATE_NAME_EXTENSION);
-		return filePath.getCanonicalPath();
+	
+	private void invalidate(TeamCityEvent event) {
+		this.generation.incrementAndGet();
+		if (event == null) {
+			this.compiledTemplates.clear();
+			// Including FreeMarker's own copies of the templates that were included or imported
+			this.config.clearTemplateCache();
+		} else {
+			this.compiledTemplates.remove(event);
+		}
 	}
-
-	private static Template createTemplate(String templateString) throws IOException {
-		String templateName = "template";
-		StringTemplateLoader loader = new StringTemplateLoader();
-		loader.putTemplate(templateName, templateString);
-		Configuration config = new Configuration();
-		config.setTemplateLoader(loader);
-		return config.getTemplate(templateName);
+	
+	private void startWatching() {
+		try {
+			final WatchService watchService = FileSystems.getDefault().newWatchService();
+			this.templatePath.toPath().register(watchService, 
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			this.watchService = watchService;
+			Thread watcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watch(watchService);
+				}
+			}, "HipChat template watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		} catch (IOException e) {
+			// Templates are then only picked up again when saved through the admin page
+			logger.warn("Could not watch the template directory for changes", e);
+		}
+	}
+	
+	private void watch(WatchService watchService) {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				for (WatchEvent<?> watchEvent : key.pollEvents()) {
+					if (watchEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+						logger.debug("Template directory events lost; invalidating all templates");
+						this.invalidate(null);
+						continue;
+					}
+					String fileName = watchEvent.context().toString();
+					TeamCityEvent event = this.templateFileNames.get(fileName);
+					if (event != null) {
+						logger.debug(String.format("Template for %s changed", event));
+						this.invalidate(event);
+					} else if (fileName.endsWith(TEMPLATE_NAME_EXTENSION)) {
+						// Any template may include or import it
+						logger.debug(String.format("Template %s changed; invalidating all templates", fileName));
+						this.invalidate(null);
+					}
+				}
+				if (!key.reset()) {
+					// The directory is gone, so every template is back to its default
+					this.invalidate(null);
+					return;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Disposed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 	public static boolean validateTemplate(String templateString) {
 		try {
-			createTemplate(templateString);
+			new Template("template", new StringReader(templateString), VALIDATION_CONFIG);
 			return true;
 		} catch (IOException e) {
 			logger.debug(e);
 			return false;
 		}
 	}
+	
+	public static class CompiledTemplate {
+		
+		private final Template template;
+		private final HipChatTemplateVariables variables;
+		
+		public CompiledTemplate(Template template, HipChatTemplateVariables variables) {
+			this.template = template;
+			this.variables = variables;
+		}
+		
+		public Template getTemplate() {
+			return this.template;
+		}
+		
+		public HipChatTemplateVariables getVariables() {
+			return this.variables;
+		}
+		
+	}
 }
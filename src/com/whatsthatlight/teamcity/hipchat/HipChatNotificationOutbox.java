@@ -0,0 +1,469 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+// Records are framed as [length][CRC32][payload], so a write torn by a crash is detected and ignored on recovery
+public class HipChatNotificationOutbox {
+
+	public static final String OUTBOX_DIRECTORY = "outbox";
+	private static final String SEGMENT_EXTENSION = ".journal";
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_RECORD_SIZE = 1024 * 1024;
+	// A notification that still hasn't been delivered after this many restarts is given up on
+	private static final int MAX_REPLAYS = 3;
+	private static final byte RECORD_APPEND = 1;
+	private static final byte RECORD_ACK = 2;
+	// Terminal, like an acknowledgement, but for a notification HipChat wouldn't take
+	private static final byte RECORD_DISCARD = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private File directory;
+	private long maxSegmentSize;
+	private boolean opened;
+	private long nextId = 1;
+	private long segmentNumber;
+	// The oldest segment written by this run that is still on disk
+	private long oldestSegmentNumber;
+	private FileChannel channel;
+	private long segmentSize;
+	private long writtenBytes;
+	private volatile long syncedBytes;
+	private final Object syncLock = new Object();
+	// Segments left over from a previous run, and the undelivered entries found in them
+	private List<File> recoveredSegments = new ArrayList<File>();
+	private List<Entry> recoveredEntries = new ArrayList<Entry>();
+	// Live entries by ID, mapped to the segment holding them, and the number of live entries per segment
+	private Map<Long, Long> liveEntries = new HashMap<Long, Long>();
+	private Map<Long, Integer> liveEntriesPerSegment = new HashMap<Long, Integer>();
+
+	public HipChatNotificationOutbox(@NotNull ServerPaths serverPaths) {
+		this(new File(new File(serverPaths.getConfigDir(), HipChatConfigurationController.HIPCHAT_CONFIG_DIRECTORY), OUTBOX_DIRECTORY));
+	}
+
+	public HipChatNotificationOutbox(@NotNull File directory) {
+		this(directory, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+
+	public HipChatNotificationOutbox(@NotNull File directory, long maxSegmentSize) {
+		this.directory = directory;
+		this.maxSegmentSize = maxSegmentSize;
+		logger.debug(String.format("Outbox directory: %s", directory));
+	}
+
+	public long append(TeamCityEvent event, HipChatRoomNotification notification, String roomId) throws IOException {
+		return this.append(event, notification, roomId, 0);
+	}
+
+	public void acknowledge(long id) {
+		this.complete(id, RECORD_ACK);
+	}
+
+	// For a notification that failed for good, so that it isn't replayed on every start-up
+	public void discard(long id) {
+		this.complete(id, RECORD_DISCARD);
+	}
+
+	private void complete(long id, byte type) {
+		try {
+			synchronized (this) {
+				if (this.channel == null) {
+					return;
+				}
+				// Not synced; losing one only means a duplicate after a crash
+				this.write(encodeCompletion(type, id));
+				Long segment = this.liveEntries.remove(id);
+				if (segment != null) {
+					this.release(segment);
+				}
+			}
+		} catch (IOException e) {
+			logger.error(String.format("Could not complete outbox entry %s", id), e);
+		}
+	}
+
+	public List<Entry> recover() throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		synchronized (this) {
+			this.open();
+			for (Entry entry : this.recoveredEntries) {
+				if (entry.getReplays() >= MAX_REPLAYS) {
+					logger.warn(String.format("Giving up on %s notification for room %s after %s restarts", entry.getEvent(), entry.getRoomId(), entry.getReplays()));
+					continue;
+				}
+				long id = this.appendRecord(entry.getEvent(), entry.getNotification(), entry.getRoomId(), entry.getReplays() + 1);
+				entries.add(new Entry(id, entry.getEvent(), entry.getNotification(), entry.getRoomId(), entry.getReplays() + 1));
+			}
+			this.recoveredEntries.clear();
+		}
+		// Only discard the old segments once their entries are safely in the current one
+		this.sync(this.getWrittenBytes());
+		synchronized (this) {
+			for (File segment : this.recoveredSegments) {
+				if (!segment.delete()) {
+					logger.warn(String.format("Could not delete outbox segment %s", segment));
+				}
+			}
+			this.recoveredSegments.clear();
+		}
+		logger.info(String.format("Recovered %s undelivered notification(s) from the outbox", entries.size()));
+		return entries;
+	}
+
+	public synchronized int getPendingCount() {
+		return this.liveEntries.size();
+	}
+
+	public void close() {
+		synchronized (this) {
+			if (this.channel == null) {
+				return;
+			}
+			try {
+				this.channel.force(false);
+				this.channel.close();
+			} catch (IOException e) {
+				logger.warn("Could not close outbox", e);
+			}
+			this.channel = null;
+		}
+		logger.debug("Outbox closed");
+	}
+
+	private long append(TeamCityEvent event, HipChatRoomNotification notification, String roomId, int replays) throws IOException {
+		long id;
+		long end;
+		synchronized (this) {
+			this.open();
+			id = this.appendRecord(event, notification, roomId, replays);
+			end = this.writtenBytes;
+		}
+		this.sync(end);
+		return id;
+	}
+
+	private long appendRecord(TeamCityEvent event, HipChatRoomNotification notification, String roomId, int replays) throws IOException {
+		long id = this.nextId++;
+		if (this.segmentSize >= this.maxSegmentSize) {
+			this.rotate();
+		}
+		this.write(encodeAppend(id, event, notification, roomId, replays));
+		this.liveEntries.put(id, this.segmentNumber);
+		Integer count = this.liveEntriesPerSegment.get(this.segmentNumber);
+		this.liveEntriesPerSegment.put(this.segmentNumber, count == null ? 1 : count + 1);
+		return id;
+	}
+
+	// Group commit: whoever syncs first makes everything written so far durable, and the appenders queued
+	// behind it find their records already synced rather than each paying for an fsync of their own
+	private void sync(long end) throws IOException {
+		if (this.syncedBytes >= end) {
+			return;
+		}
+		synchronized (this.syncLock) {
+			if (this.syncedBytes >= end) {
+				return;
+			}
+			FileChannel channel;
+			long target;
+			synchronized (this) {
+				channel = this.channel;
+				target = this.writtenBytes;
+			}
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				// Rotated or closed in the meantime, both of which force the segment first
+			}
+			this.syncedBytes = Math.max(this.syncedBytes, target);
+		}
+	}
+
+	private synchronized long getWrittenBytes() {
+		return this.writtenBytes;
+	}
+
+	private void write(byte[] record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+		this.segmentSize += record.length;
+		this.writtenBytes += record.length;
+	}
+
+	private void open() throws IOException {
+		if (this.opened) {
+			if (this.channel == null) {
+				throw new IOException("Outbox closed");
+			}
+			return;
+		}
+		if (!this.directory.exists() && !this.directory.mkdirs()) {
+			throw new IOException(String.format("Could not create outbox directory %s", this.directory));
+		}
+		File[] segments = this.directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_EXTENSION);
+			}
+		});
+		Arrays.sort(segments);
+		LinkedHashMap<Long, Entry> undelivered = new LinkedHashMap<Long, Entry>();
+		for (File segment : segments) {
+			this.segmentNumber = Math.max(this.segmentNumber, parseSegmentNumber(segment));
+			this.readSegment(segment, undelivered);
+			this.recoveredSegments.add(segment);
+		}
+		this.recoveredEntries.addAll(undelivered.values());
+		this.opened = true;
+		this.rotate();
+		this.oldestSegmentNumber = this.segmentNumber;
+	}
+
+	private void rotate() throws IOException {
+		boolean rotated = this.channel != null;
+		if (rotated) {
+			this.channel.force(false);
+			this.channel.close();
+			this.syncedBytes = Math.max(this.syncedBytes, this.writtenBytes);
+		}
+		this.segmentNumber++;
+		File file = this.getSegmentFile(this.segmentNumber);
+		this.channel = new FileOutputStream(file, true).getChannel();
+		this.segmentSize = 0;
+		logger.debug(String.format("Outbox segment %s opened", file));
+		if (rotated) {
+			this.deleteCompletedSegments();
+		}
+	}
+
+	private void release(long segment) {
+		Integer count = this.liveEntriesPerSegment.get(segment);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			this.liveEntriesPerSegment.put(segment, count - 1);
+			return;
+		}
+		this.liveEntriesPerSegment.remove(segment);
+		this.deleteCompletedSegments();
+	}
+
+	// Strictly oldest first: a segment may hold the only acknowledgements for entries in older segments, so it 
+	// can't go before they do. The current segment is never deleted.
+	private void deleteCompletedSegments() {
+		while (this.oldestSegmentNumber < this.segmentNumber && !this.liveEntriesPerSegment.containsKey(this.oldestSegmentNumber)) {
+			deleteSegment(this.getSegmentFile(this.oldestSegmentNumber));
+			this.oldestSegmentNumber++;
+		}
+	}
+
+	private void readSegment(File segment, Map<Long, Entry> undelivered) throws IOException {
+		InputStream stream = new BufferedInputStream(new FileInputStream(segment));
+		try {
+			DataInputStream input = new DataInputStream(stream);
+			while (true) {
+				int length;
+				long checksum;
+				byte[] payload;
+				try {
+					length = input.readInt();
+					checksum = input.readLong();
+					if (length <= 0 || length > MAX_RECORD_SIZE) {
+						logger.warn(String.format("Corrupt record in outbox segment %s; ignoring the rest of it", segment));
+						return;
+					}
+					payload = new byte[length];
+					input.readFully(payload);
+				} catch (EOFException e) {
+					// Clean end of segment, or a record torn by a crash
+					return;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (crc.getValue() != checksum) {
+					logger.warn(String.format("Checksum mismatch in outbox segment %s; ignoring the rest of it", segment));
+					return;
+				}
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = record.readByte();
+				long id = record.readLong();
+				this.nextId = Math.max(this.nextId, id + 1);
+				if (type == RECORD_APPEND) {
+					int replays = record.readInt();
+					TeamCityEvent event = TeamCityEvent.valueOf(readString(record));
+					String roomId = readString(record);
+					String message = readString(record);
+					String messageFormat = readString(record);
+					String colour = readString(record);
+					boolean notify = record.readBoolean();
+					undelivered.put(id, new Entry(id, event, new HipChatRoomNotification(message, messageFormat, colour, notify), roomId, replays));
+				} else if (type == RECORD_ACK || type == RECORD_DISCARD) {
+					undelivered.remove(id);
+				}
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private File getSegmentFile(long number) {
+		return new File(this.directory, String.format("%020d%s", number, SEGMENT_EXTENSION));
+	}
+
+	private static long parseSegmentNumber(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static void deleteSegment(File segment) {
+		if (segment.delete()) {
+			logger.debug(String.format("Outbox segment %s fully acknowledged and deleted", segment));
+		} else {
+			logger.warn(String.format("Could not delete outbox segment %s", segment));
+		}
+	}
+
+	private static byte[] encodeAppend(long id, TeamCityEvent event, HipChatRoomNotification notification, String roomId, int replays) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(payload);
+		output.writeByte(RECORD_APPEND);
+		output.writeLong(id);
+		output.writeInt(replays);
+		writeString(output, event.name());
+		writeString(output, roomId);
+		writeString(output, notification.message);
+		writeString(output, notification.messageFormat);
+		writeString(output, notification.color);
+		output.writeBoolean(notification.notify);
+		return frame(payload.toByteArray());
+	}
+
+	private static byte[] encodeCompletion(byte type, long id) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(payload);
+		output.writeByte(type);
+		output.writeLong(id);
+		return frame(payload.toByteArray());
+	}
+
+	private static byte[] frame(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 12);
+		DataOutputStream output = new DataOutputStream(record);
+		output.writeInt(payload.length);
+		output.writeLong(crc.getValue());
+		output.write(payload);
+		return record.toByteArray();
+	}
+
+	// Unlike writeUTF, not limited to 64K and able to represent null
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	public static class Entry {
+
+		private long id;
+		private TeamCityEvent event;
+		private HipChatRoomNotification notification;
+		private String roomId;
+		private int replays;
+
+		public Entry(long id, TeamCityEvent event, HipChatRoomNotification notification, String roomId, int replays) {
+			this.id = id;
+			this.event = event;
+			this.notification = notification;
+			this.roomId = roomId;
+			this.replays = replays;
+		}
+
+		public long getId() {
+			return this.id;
+		}
+
+		public TeamCityEvent getEvent() {
+			return this.event;
+		}
+
+		public HipChatRoomNotification getNotification() {
+			return this.notification;
+		}
+
+		public String getRoomId() {
+			return this.roomId;
+		}
+
+		public int getReplays() {
+			return this.replays;
+		}
+
+	}
+
+}
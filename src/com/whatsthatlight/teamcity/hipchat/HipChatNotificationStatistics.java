@@ -0,0 +1,95 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HipChatNotificationStatistics {
+
+	private final ConcurrentMap<String, RoomStatistics> rooms = new ConcurrentHashMap<String, RoomStatistics>();
+
+	public void delivered(String roomId) {
+		this.getOrCreate(roomId).delivered.incrementAndGet();
+	}
+
+	public void retried(String roomId) {
+		this.getOrCreate(roomId).retried.incrementAndGet();
+	}
+
+	public void failed(String roomId) {
+		this.getOrCreate(roomId).failed.incrementAndGet();
+	}
+
+	public void retryBudgetExhausted(String roomId) {
+		this.getOrCreate(roomId).retryBudgetExhausted.incrementAndGet();
+	}
+
+	public RoomStatistics getRoomStatistics(String roomId) {
+		return this.rooms.get(roomId);
+	}
+
+	public Map<String, RoomStatistics> getAll() {
+		return new TreeMap<String, RoomStatistics>(this.rooms);
+	}
+
+	private RoomStatistics getOrCreate(String roomId) {
+		RoomStatistics statistics = this.rooms.get(roomId);
+		if (statistics == null) {
+			RoomStatistics newStatistics = new RoomStatistics();
+			statistics = this.rooms.putIfAbsent(roomId, newStatistics);
+			if (statistics == null) {
+				statistics = newStatistics;
+			}
+		}
+		return statistics;
+	}
+
+	public static class RoomStatistics {
+
+		private final AtomicLong delivered = new AtomicLong();
+		private final AtomicLong retried = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong retryBudgetExhausted = new AtomicLong();
+
+		public long getDelivered() {
+			return this.delivered.get();
+		}
+
+		public long getRetried() {
+			return this.retried.get();
+		}
+
+		public long getFailed() {
+			return this.failed.get();
+		}
+
+		public long getRetryBudgetExhausted() {
+			return this.retryBudgetExhausted.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("delivered=%s, retried=%s, failed=%s, retryBudgetExhausted=%s", this.getDelivered(), this.getRetried(), this.getFailed(), this.getRetryBudgetExhausted());
+		}
+
+	}
+
+}
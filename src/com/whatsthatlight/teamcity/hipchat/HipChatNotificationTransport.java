@@ -0,0 +1,32 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public interface HipChatNotificationTransport {
+
+	// The callback, if any, is invoked on whichever thread completed the delivery
+	Future<Boolean> send(HipChatRoomNotification notification, String roomId, HipChatDeliveryCallback callback);
+
+	int getInFlightCount();
+
+	// Returns false if deliveries were still in flight when the timeout expired
+	boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException;
+
+}
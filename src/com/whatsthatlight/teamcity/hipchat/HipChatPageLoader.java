@@ -0,0 +1,137 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+// Loads a paged HipChat catalogue. HipChat doesn't say how many pages there are, so once the first page comes 
+// back full, the following pages are requested a few at a time in parallel until one comes back short or empty. 
+// Pages are returned in order, whatever order they arrived in; if any of them fails, nothing is.
+public abstract class HipChatPageLoader<P> {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	public static final int DEFAULT_PARALLEL_PAGES = 4;
+	// A catalogue that never seems to end is given up on rather than loaded forever
+	public static final int MAX_PAGES = 100;
+	private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
+	private int parallelPages;
+	
+	public HipChatPageLoader() {
+		this(DEFAULT_PARALLEL_PAGES);
+	}
+	
+	public HipChatPageLoader(int parallelPages) {
+		this.parallelPages = Math.max(1, parallelPages);
+	}
+	
+	// The page starting at the index, or null if it couldn't be retrieved
+	protected abstract P getPage(int startIndex);
+	
+	protected abstract int getItemCount(P page);
+	
+	protected abstract int getMaxResults(P page);
+	
+	protected boolean hasNext(P page) {
+		return true;
+	}
+	
+	// Null if any page couldn't be retrieved, so that part of a catalogue is never taken for the whole of it
+	public List<P> load() {
+		List<P> pages = new ArrayList<P>();
+		P firstPage = this.getPage(0);
+		if (firstPage == null) {
+			return null;
+		}
+		pages.add(firstPage);
+		int pageSize = this.getMaxResults(firstPage);
+		int startIndex = this.getItemCount(firstPage);
+		if (pageSize <= 0 || startIndex < pageSize || !this.hasNext(firstPage)) {
+			return pages;
+		}
+		
+		logger.debug(String.format("Loading pages of %s, %s at a time", pageSize, this.parallelPages));
+		ExecutorService executor = Executors.newFixedThreadPool(this.parallelPages, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("HipChat page loader %s", THREAD_NUMBER.getAndIncrement()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			boolean more = true;
+			while (more) {
+				if (pages.size() >= MAX_PAGES) {
+					logger.error(String.format("Gave up loading pages after %s; the catalogue doesn't seem to end", pages.size()));
+					return null;
+				}
+				List<Future<P>> window = new ArrayList<Future<P>>(this.parallelPages);
+				for (int i = 0; i < this.parallelPages; i++) {
+					final int pageStartIndex = startIndex + i * pageSize;
+					window.add(executor.submit(new Callable<P>() {
+						@Override
+						public P call() throws Exception {
+							return getPage(pageStartIndex);
+						}
+					}));
+				}
+				for (Future<P> future : window) {
+					if (!more) {
+						// Past the end
+						future.cancel(true);
+						continue;
+					}
+					P page = future.get();
+					if (page == null) {
+						logger.warn(String.format("Page %s could not be retrieved; discarding the %s page(s) loaded", pages.size() + 1, pages.size()));
+						return null;
+					}
+					int itemCount = this.getItemCount(page);
+					if (itemCount == 0) {
+						more = false;
+						continue;
+					}
+					pages.add(page);
+					more = itemCount >= pageSize && this.hasNext(page);
+				}
+				startIndex += this.parallelPages * pageSize;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while loading pages");
+			return null;
+		} catch (ExecutionException e) {
+			logger.error("Could not load page", e.getCause());
+			return null;
+		} finally {
+			executor.shutdownNow();
+		}
+		logger.debug(String.format("Loaded %s page(s)", pages.size()));
+		return pages;
+	}
+	
+}
@@ -30,10 +30,19 @@ public class HipChatProjectConfiguration {
 	@XStreamAlias(HipChatConfiguration.NOTIFY_STATUS_KEY)
 	private boolean notify;
 	
+	// Branch filter rules, applied after the global ones; see HipChatBranchFilter
+	@XStreamAlias(HipChatConfiguration.BRANCH_FILTER_REGEX_KEY)
+	private String branchFilter;
+	
 	public HipChatProjectConfiguration(String projectId, String roomId, boolean notifyStatus) {
+		this(projectId, roomId, notifyStatus, null);
+	}
+	
+	public HipChatProjectConfiguration(String projectId, String roomId, boolean notifyStatus, String branchFilter) {
 		this.projectId = projectId;
 		this.roomId = roomId;
 		this.notify = notifyStatus;
+		this.branchFilter = branchFilter;
 	}
 	
 	public String getProjectId() {
@@ -55,4 +64,12 @@ public class HipChatProjectConfiguration {
 	public void setNotifyStatus(boolean status) {
 		this.notify = status;
 	}
+	
+	public String getBranchFilter() {
+		return this.branchFilter;
+	}
+	
+	public void setBranchFilter(String branchFilter) {
+		this.branchFilter = branchFilter;
+	}
 }
@@ -72,6 +72,7 @@ public class HipChatProjectSettings extends EditProjectTab {
 			if (projectConfiguration != null) {
 				model.put(HipChatConfiguration.ROOM_ID_KEY, projectConfiguration.getRoomId());
 				model.put(HipChatConfiguration.NOTIFY_STATUS_KEY, projectConfiguration.getNotifyStatus());
+				model.put(HipChatConfiguration.BRANCH_FILTER_REGEX_KEY, projectConfiguration.getBranchFilter());
 			} else if (isRootProject) {
 				model.put(HipChatConfiguration.ROOM_ID_KEY, HipChatConfiguration.ROOM_ID_DEFAULT_VALUE);
 				model.put(HipChatConfiguration.NOTIFY_STATUS_KEY, configuration.getDefaultNotifyStatus());
@@ -0,0 +1,224 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.log4j.Logger;
+
+public class HipChatRateLimiter {
+
+	public static final String RATE_LIMIT_REMAINING_HEADER = "X-Ratelimit-Remaining";
+	public static final String RATE_LIMIT_RESET_HEADER = "X-Ratelimit-Reset";
+	public static final String RETRY_AFTER_HEADER = "Retry-After";
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	// HipChat allows 100 requests per 5 minutes per token, and 30 notifications per minute per room
+	public static final int DEFAULT_TOKEN_CAPACITY = 100;
+	public static final long DEFAULT_TOKEN_PERIOD_MILLISECONDS = 300000;
+	public static final int DEFAULT_ROOM_CAPACITY = 30;
+	public static final long DEFAULT_ROOM_PERIOD_MILLISECONDS = 60000;
+
+	// Used when throttled without being told for how long, and as an upper bound on what the server can ask for
+	private static final long DEFAULT_THROTTLE_MILLISECONDS = 10000;
+	private static final long MAX_THROTTLE_MILLISECONDS = 300000;
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private final int tokenCapacity;
+	private final long tokenPeriod;
+	private final int roomCapacity;
+	private final long roomPeriod;
+	private final Map<String, TokenBucket> tokenBuckets = new HashMap<String, TokenBucket>();
+	private final Map<String, TokenBucket> roomBuckets = new HashMap<String, TokenBucket>();
+
+	public HipChatRateLimiter() {
+		this(DEFAULT_TOKEN_CAPACITY, DEFAULT_TOKEN_PERIOD_MILLISECONDS, DEFAULT_ROOM_CAPACITY, DEFAULT_ROOM_PERIOD_MILLISECONDS);
+	}
+
+	public HipChatRateLimiter(int tokenCapacity, long tokenPeriod, int roomCapacity, long roomPeriod) {
+		this.tokenCapacity = tokenCapacity;
+		this.tokenPeriod = tokenPeriod;
+		this.roomCapacity = roomCapacity;
+		this.roomPeriod = roomPeriod;
+	}
+
+	public void acquire(String apiToken, String roomId) throws InterruptedException {
+		long wait;
+		while ((wait = this.tryAcquire(apiToken, roomId)) > 0) {
+			logger.debug(String.format("Rate limit reached; waiting %s ms before notifying room %s", wait, roomId));
+			Thread.sleep(wait);
+		}
+	}
+
+	// Takes a token and returns 0, or returns how long to wait before trying again, without waiting
+	public synchronized long tryAcquire(String apiToken, String roomId) {
+		long now = System.currentTimeMillis();
+		TokenBucket tokenBucket = this.getTokenBucket(apiToken);
+		TokenBucket roomBucket = this.getRoomBucket(roomId);
+		long wait = Math.max(tokenBucket.getWait(now), roomBucket == null ? 0 : roomBucket.getWait(now));
+		if (wait == 0) {
+			tokenBucket.take();
+			if (roomBucket != null) {
+				roomBucket.take();
+			}
+		}
+		return wait;
+	}
+
+	public void update(String apiToken, String roomId, HttpResponse response) {
+		long now = System.currentTimeMillis();
+		Long remaining = parseLong(response.getFirstHeader(RATE_LIMIT_REMAINING_HEADER));
+		Long reset = parseLong(response.getFirstHeader(RATE_LIMIT_RESET_HEADER));
+		// The reset header is in seconds since the epoch
+		long resetAt = reset == null ? 0 : reset * 1000;
+		synchronized (this) {
+			TokenBucket tokenBucket = this.getTokenBucket(apiToken);
+			if (remaining != null) {
+				tokenBucket.limitTo(remaining, resetAt, now);
+				if (remaining <= 0) {
+					tokenBucket.blockUntil(resetAt > now ? resetAt : now + DEFAULT_THROTTLE_MILLISECONDS, now);
+				}
+			}
+			if (isThrottled(response)) {
+				long until = getRetryAfter(response.getFirstHeader(RETRY_AFTER_HEADER), now);
+				if (until <= now) {
+					until = resetAt > now ? resetAt : now + DEFAULT_THROTTLE_MILLISECONDS;
+				}
+				logger.warn(String.format("Throttled by HipChat; pausing notifications to room %s for %s ms", roomId, until - now));
+				tokenBucket.blockUntil(until, now);
+				TokenBucket roomBucket = this.getRoomBucket(roomId);
+				if (roomBucket != null) {
+					roomBucket.blockUntil(until, now);
+				}
+			}
+		}
+	}
+
+	public static boolean isThrottled(HttpResponse response) {
+		return response.getStatusLine().getStatusCode() == SC_TOO_MANY_REQUESTS;
+	}
+
+	private TokenBucket getTokenBucket(String apiToken) {
+		String key = apiToken == null ? "" : apiToken;
+		TokenBucket bucket = this.tokenBuckets.get(key);
+		if (bucket == null) {
+			bucket = new TokenBucket(this.tokenCapacity, this.tokenPeriod);
+			this.tokenBuckets.put(key, bucket);
+		}
+		return bucket;
+	}
+
+	private TokenBucket getRoomBucket(String roomId) {
+		if (roomId == null) {
+			return null;
+		}
+		TokenBucket bucket = this.roomBuckets.get(roomId);
+		if (bucket == null) {
+			bucket = new TokenBucket(this.roomCapacity, this.roomPeriod);
+			this.roomBuckets.put(roomId, bucket);
+		}
+		return bucket;
+	}
+
+	private static long getRetryAfter(Header header, long now) {
+		if (header == null) {
+			return 0;
+		}
+		// Either a number of seconds or an HTTP date
+		Long seconds = parseLong(header);
+		if (seconds != null) {
+			return now + Math.min(seconds * 1000, MAX_THROTTLE_MILLISECONDS);
+		}
+		Date date = DateUtils.parseDate(header.getValue());
+		return date == null ? 0 : date.getTime();
+	}
+
+	private static Long parseLong(Header header) {
+		if (header == null) {
+			return null;
+		}
+		try {
+			return Long.parseLong(header.getValue().trim());
+		} catch (NumberFormatException e) {
+			logger.debug(String.format("Ignoring malformed %s header: %s", header.getName(), header.getValue()));
+			return null;
+		}
+	}
+
+	private static class TokenBucket {
+
+		private final int capacity;
+		private final double tokensPerMillisecond;
+		private double tokens;
+		private long lastRefill;
+		private long blockedUntil;
+		private long resetAt;
+
+		public TokenBucket(int capacity, long period) {
+			this.capacity = capacity;
+			this.tokensPerMillisecond = (double) capacity / period;
+			this.tokens = capacity;
+			this.lastRefill = System.currentTimeMillis();
+		}
+
+		public long getWait(long now) {
+			this.refill(now);
+			if (now < this.blockedUntil) {
+				return this.blockedUntil - now;
+			}
+			if (this.tokens >= 1) {
+				return 0;
+			}
+			return Math.max(1, (long) Math.ceil((1 - this.tokens) / this.tokensPerMillisecond));
+		}
+
+		public void take() {
+			this.tokens -= 1;
+		}
+
+		public void limitTo(long remaining, long resetAt, long now) {
+			this.refill(now);
+			this.tokens = Math.min(this.tokens, Math.max(0, remaining));
+			if (resetAt > now) {
+				this.resetAt = resetAt;
+			}
+		}
+
+		public void blockUntil(long until, long now) {
+			this.blockedUntil = Math.max(this.blockedUntil, Math.min(until, now + MAX_THROTTLE_MILLISECONDS));
+		}
+
+		private void refill(long now) {
+			// The server's window has started over
+			if (this.resetAt > 0 && now >= this.resetAt) {
+				this.tokens = this.capacity;
+				this.resetAt = 0;
+			}
+			if (now > this.lastRefill) {
+				this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerMillisecond);
+				this.lastRefill = now;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+public class HipChatRetryBudget {
+
+	// Every first attempt earns a fraction of a retry, and a trickle of retries is always allowed so that
+	// a quiet server can still recover from the odd failure
+	public static final double DEFAULT_RETRY_RATIO = 0.2;
+	public static final double DEFAULT_MIN_RETRIES_PER_SECOND = 0.1;
+	public static final int DEFAULT_MAX_BALANCE = 20;
+
+	private final double retryRatio;
+	private final double minRetriesPerMillisecond;
+	private final double maxBalance;
+	private double balance;
+	private long lastRefill;
+
+	public HipChatRetryBudget() {
+		this(DEFAULT_RETRY_RATIO, DEFAULT_MIN_RETRIES_PER_SECOND, DEFAULT_MAX_BALANCE);
+	}
+
+	public HipChatRetryBudget(double retryRatio, double minRetriesPerSecond, int maxBalance) {
+		this.retryRatio = retryRatio;
+		this.minRetriesPerMillisecond = minRetriesPerSecond / 1000;
+		this.maxBalance = maxBalance;
+		this.balance = maxBalance;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	public synchronized void deposit() {
+		this.refill();
+		this.balance = Math.min(this.maxBalance, this.balance + this.retryRatio);
+	}
+
+	public synchronized boolean tryWithdraw() {
+		this.refill();
+		if (this.balance < 1) {
+			return false;
+		}
+		this.balance -= 1;
+		return true;
+	}
+
+	public synchronized double getBalance() {
+		this.refill();
+		return this.balance;
+	}
+
+	private void refill() {
+		long now = System.currentTimeMillis();
+		if (now > this.lastRefill) {
+			this.balance = Math.min(this.maxBalance, this.balance + (now - this.lastRefill) * this.minRetriesPerMillisecond);
+			this.lastRefill = now;
+		}
+	}
+
+}
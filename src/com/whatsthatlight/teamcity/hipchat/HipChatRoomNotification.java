@@ -21,6 +21,9 @@ import org.codehaus.jackson.annotate.JsonProperty;
 // See: https://www.hipchat.com/docs/apiv2/method/send_room_notification
 public class HipChatRoomNotification {
 
+	// HipChat rejects longer messages
+	public static final int MAX_MESSAGE_LENGTH = 10000;
+
 	@JsonProperty("color")
 	public String color;
 
@@ -0,0 +1,146 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jetbrains.buildServer.serverSide.SProject;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+public class HipChatRoutingTable {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private HipChatConfiguration configuration;
+	// Resolved room and notify status per project, so the hierarchy is only walked once per project
+	private final Map<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	private final AtomicLong generation = new AtomicLong();
+
+	public HipChatRoutingTable(@NotNull HipChatConfiguration configuration) {
+		this.configuration = configuration;
+	}
+
+	// The room to notify for the project, with the default and parent placeholders resolved; the room is null if 
+	// the project's notifications are switched off
+	public HipChatProjectConfiguration resolve(SProject project) {
+		Route route = this.getRoute(project);
+		return new HipChatProjectConfiguration(project.getProjectId(), route.roomId, route.notify);
+	}
+	
+	// The global branch filter rules followed by those of the project, or of its nearest ancestor that has any
+	public HipChatBranchFilter getBranchFilter(SProject project) {
+		return this.getRoute(project).branchFilter;
+	}
+
+	// Drops the routes of the project and of every project below it
+	public void invalidate(String projectId) {
+		this.generation.incrementAndGet();
+		int removed = 0;
+		Iterator<Route> iterator = this.routes.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().path.contains(projectId)) {
+				iterator.remove();
+				removed++;
+			}
+		}
+		logger.debug(String.format("Invalidated %s route(s) for project ID %s", removed, projectId));
+	}
+
+	public void invalidateAll() {
+		this.generation.incrementAndGet();
+		this.routes.clear();
+		logger.debug("Invalidated all routes");
+	}
+
+	public int size() {
+		return this.routes.size();
+	}
+
+	private Route getRoute(SProject project) {
+		String projectId = project.getProjectId();
+		Route route = this.routes.get(projectId);
+		if (route == null) {
+			long generation = this.generation.get();
+			route = this.createRoute(project);
+			this.routes.put(projectId, route);
+			// The configuration or hierarchy may have changed while the route was being worked out
+			if (generation != this.generation.get()) {
+				this.routes.remove(projectId);
+			}
+		}
+		return route;
+	}
+
+	private Route createRoute(SProject project) {
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		HipChatProjectConfiguration projectConfiguration = Utils.determineProjectConfiguration(project, configuration);
+		String roomId = projectConfiguration.getRoomId();
+		boolean notify = projectConfiguration.getNotifyStatus();
+		if (!Utils.IsRoomIdNullOrNone(roomId)) {
+			if (roomId.equals(HipChatConfiguration.ROOM_ID_DEFAULT_VALUE)) {
+				roomId = configuration.getDefaultRoomId();
+			} else if (roomId.equals(HipChatConfiguration.ROOM_ID_PARENT_VALUE)) {
+				HipChatProjectConfiguration parentProjectConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
+				if (parentProjectConfiguration != null) {
+					logger.debug("Using specific configuration in hierarchy determined implicitly");
+					roomId = parentProjectConfiguration.getRoomId();
+					notify = parentProjectConfiguration.getNotifyStatus();
+				}
+			}
+		}
+		if (Utils.IsRoomIdNullOrNone(roomId)) {
+			roomId = null;
+		}
+		
+		Set<String> path = new HashSet<String>();
+		String branchFilterRules = null;
+		for (SProject ancestor = project; ancestor != null; ancestor = ancestor.getParentProject()) {
+			path.add(ancestor.getProjectId());
+			HipChatProjectConfiguration ancestorConfiguration = configuration.getProjectConfiguration(ancestor.getProjectId());
+			if (branchFilterRules == null && ancestorConfiguration != null && ancestorConfiguration.getBranchFilter() != null) {
+				branchFilterRules = ancestorConfiguration.getBranchFilter();
+			}
+		}
+		HipChatBranchFilter branchFilter = configuration.getBranchFilter().then(HipChatBranchFilter.compile(branchFilterRules));
+		logger.debug(String.format("Route for project ID %s: %s, %s, %s branch filter rule(s)", project.getProjectId(), roomId, notify, branchFilter.size()));
+		return new Route(roomId, notify, branchFilter, path);
+	}
+
+	private static class Route {
+
+		private final String roomId;
+		private final boolean notify;
+		private final HipChatBranchFilter branchFilter;
+		// The project and its ancestors; a change to any of them can change the route
+		private final Set<String> path;
+
+		public Route(String roomId, boolean notify, HipChatBranchFilter branchFilter, Set<String> path) {
+			this.roomId = roomId;
+			this.notify = notify;
+			this.branchFilter = branchFilter;
+			this.path = path;
+		}
+
+	}
+
+}
@@ -17,8 +17,6 @@ limitations under the License.
 package com.whatsthatlight.teamcity.hipchat;
 
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -27,20 +25,19 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.serverSide.Branch;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildStatistics;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildServer;
-import jetbrains.buildServer.serverSide.SFinishedBuild;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.users.SUser;
@@ -53,17 +50,45 @@ public class HipChatServerExtension extends BuildServerAdapter {
 	private SBuildServer server;
 	private HipChatConfiguration configuration;
 	private HipChatApiProcessor processor;
-	private static Random rng = new Random();
+	private static final ThreadLocal<HipChatMessageWriter> MESSAGE_WRITER = new ThreadLocal<HipChatMessageWriter>() {
+		@Override
+		protected HipChatMessageWriter initialValue() {
+			return new HipChatMessageWriter();
+		}
+	};
 	private String messageFormat;
 	private HashMap<TeamCityEvent, HipChatMessageBundle> eventMap;
 	private HipChatNotificationMessageTemplates templates;
 	private HipChatEmoticonCache emoticonCache;
+	private HipChatNotificationDispatcher dispatcher;
+	private HipChatNotificationCoalescer coalescer;
+	private HipChatBuildStatusIndex buildStatusIndex;
+	private HipChatRoutingTable routingTable;
 
 	public HipChatServerExtension(@NotNull SBuildServer server, 
 			@NotNull HipChatConfiguration configuration, 
 			@NotNull HipChatApiProcessor processor, 
 			@NotNull HipChatNotificationMessageTemplates templates, 
 			@NotNull HipChatEmoticonCache emoticonCache) {
+		this(server, configuration, processor, templates, emoticonCache, new HipChatNotificationDispatcher(configuration, processor));
+	}
+
+	public HipChatServerExtension(@NotNull SBuildServer server, 
+			@NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatApiProcessor processor, 
+			@NotNull HipChatNotificationMessageTemplates templates, 
+			@NotNull HipChatEmoticonCache emoticonCache,
+			@NotNull HipChatNotificationDispatcher dispatcher) {
+		this(server, configuration, processor, templates, emoticonCache, dispatcher, new HipChatRoutingTable(configuration));
+	}
+
+	public HipChatServerExtension(@NotNull SBuildServer server, 
+			@NotNull HipChatConfiguration configuration, 
+			@NotNull HipChatApiProcessor processor, 
+			@NotNull HipChatNotificationMessageTemplates templates, 
+			@NotNull HipChatEmoticonCache emoticonCache,
+			@NotNull HipChatNotificationDispatcher dispatcher,
+			@NotNull HipChatRoutingTable routingTable) {
 		this.server = server;
 		//this.configDirectory = serverPaths.getConfigDir();
 		this.configuration = configuration;
@@ -78,6 +103,10 @@ public class HipChatServerExtension extends BuildServerAdapter {
 		this.eventMap.put(TeamCityEvent.SERVER_STARTUP, new HipChatMessageBundle(null, HipChatMessageColour.NEUTRAL));
 		this.eventMap.put(TeamCityEvent.SERVER_SHUTDOWN,new HipChatMessageBundle(null, HipChatMessageColour.NEUTRAL));
 		this.emoticonCache = emoticonCache;
+		this.dispatcher = dispatcher;
+		this.coalescer = new HipChatNotificationCoalescer(configuration, dispatcher);
+		this.buildStatusIndex = new HipChatBuildStatusIndex();
+		this.routingTable = routingTable;
 		logger.debug("Server extension created");
 	}
 
@@ -91,39 +120,27 @@ public class HipChatServerExtension extends BuildServerAdapter {
 	public void changesLoaded(SRunningBuild build) {
 		logger.debug(String.format("Build started: %s", build.getBuildType().getName()));
 		super.changesLoaded(build);
-		if (this.configuration.getEvents() != null && this.configuration.getEvents().getBuildStartedStatus()) {
-			this.processBuildEvent(build, TeamCityEvent.BUILD_STARTED);
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		HipChatEventConfiguration events = configuration.getEvents();
+		if (events != null && events.getBuildStartedStatus()) {
+			this.processBuildEvent(configuration, build, TeamCityEvent.BUILD_STARTED);
 		}
 	}
 	
 	@Override
 	public void buildFinished(SRunningBuild build) {
 		super.buildFinished(build);
-		Branch branch = build.getBranch();
-		List<SFinishedBuild> buildHistory = build.getBuildType().getHistory();
-		SFinishedBuild previousBuild = null;
-				
-		if (branch != null) {			
-			for (SFinishedBuild tmpBuild : buildHistory) {
-				Branch tmpBranch = tmpBuild.getBranch();
-				if ((build.getBuildId() != tmpBuild.getBuildId()) && tmpBranch.getName().equals(branch.getName())) {
-					previousBuild = tmpBuild;
-					break;
-				}
-			}
-		} else {
-			if (buildHistory.size() > 1) {
-				previousBuild = buildHistory.get(1);
-			}
-		}
+		Status previousStatus = this.buildStatusIndex.update(build);
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		HipChatEventConfiguration events = configuration.getEvents();
 		
-		if (build.getBuildStatus().isSuccessful() && this.configuration.getEvents() != null && this.configuration.getEvents().getBuildSuccessfulStatus()) {
-			if (!this.configuration.getEvents().getOnlyAfterFirstBuildSuccessfulStatus() || previousBuild == null || previousBuild.getBuildStatus().isFailed()) {
-				this.processBuildEvent(build, TeamCityEvent.BUILD_SUCCESSFUL);
+		if (build.getBuildStatus().isSuccessful() && events != null && events.getBuildSuccessfulStatus()) {
+			if (!events.getOnlyAfterFirstBuildSuccessfulStatus() || previousStatus == null || previousStatus.isFailed()) {
+				this.processBuildEvent(configuration, build, TeamCityEvent.BUILD_SUCCESSFUL);
 			}
-		} else if (build.getBuildStatus().isFailed() && this.configuration.getEvents() != null && this.configuration.getEvents().getBuildFailedStatus()) {
-			if (!this.configuration.getEvents().getOnlyAfterFirstBuildFailedStatus() || previousBuild == null || previousBuild.getBuildStatus().isSuccessful()) {
-				this.processBuildEvent(build, TeamCityEvent.BUILD_FAILED);
+		} else if (build.getBuildStatus().isFailed() && events != null && events.getBuildFailedStatus()) {
+			if (!events.getOnlyAfterFirstBuildFailedStatus() || previousStatus == null || previousStatus.isSuccessful()) {
+				this.processBuildEvent(configuration, build, TeamCityEvent.BUILD_FAILED);
 			}
 		}
 	}
@@ -131,85 +148,104 @@ public class HipChatServerExtension extends BuildServerAdapter {
 	@Override
 	public void buildInterrupted(SRunningBuild build) {
 		super.buildInterrupted(build);
-		if (this.configuration.getEvents() != null && this.configuration.getEvents().getBuildInterruptedStatus()) {
-			this.processBuildEvent(build, TeamCityEvent.BUILD_INTERRUPTED);
+		this.buildStatusIndex.update(build);
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		HipChatEventConfiguration events = configuration.getEvents();
+		if (events != null && events.getBuildInterruptedStatus()) {
+			this.processBuildEvent(configuration, build, TeamCityEvent.BUILD_INTERRUPTED);
 		}
 	}
 	
+	@Override
+	public void projectCreated(String projectId, SUser user) {
+		super.projectCreated(projectId, user);
+		this.routingTable.invalidate(projectId);
+	}
+	
+	@Override
+	public void projectMoved(SProject project, SProject originalParentProject) {
+		super.projectMoved(project, originalParentProject);
+		this.routingTable.invalidate(project.getProjectId());
+	}
+	
+	@Override
+	public void projectRemoved(String projectId) {
+		super.projectRemoved(projectId);
+		this.routingTable.invalidate(projectId);
+	}
+	
+	@Override
+	public void projectRestored(String projectId) {
+		super.projectRestored(projectId);
+		this.routingTable.invalidate(projectId);
+	}
+	
 	@Override
 	public void serverStartup() {
-		if (this.configuration.getEvents() != null && this.configuration.getEvents().getServerStartupStatus()) {
-			this.processServerEvent(TeamCityEvent.SERVER_STARTUP);
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		HipChatEventConfiguration events = configuration.getEvents();
+		if (events != null && events.getServerStartupStatus()) {
+			this.processServerEvent(configuration, TeamCityEvent.SERVER_STARTUP);
 		}
 	}
 
 	@Override
 	public void serverShutdown() {
-		if (this.configuration.getEvents() != null && this.configuration.getEvents().getServerShutdownStatus()) {
-			this.processServerEvent(TeamCityEvent.SERVER_SHUTDOWN);
+		HipChatConfigurationSnapshot configuration = this.configuration.getSnapshot();
+		HipChatEventConfiguration events = configuration.getEvents();
+		if (events != null && events.getServerShutdownStatus()) {
+			this.processServerEvent(configuration, TeamCityEvent.SERVER_SHUTDOWN);
 		}
+		// Give the shutdown message and anything still queued a chance to go out
+		this.coalescer.shutdown();
+		this.dispatcher.shutdown();
 	}
 	
-	private void processServerEvent(TeamCityEvent event) {
+	private void processServerEvent(HipChatConfigurationSnapshot configuration, TeamCityEvent event) {
 		try {
-			boolean notify = this.configuration.getDefaultNotifyStatus();
+			boolean notify = configuration.getDefaultNotifyStatus();
 			HipChatMessageBundle bundle = this.eventMap.get(event);
 			String colour = bundle.getColour();
 			String message = renderTemplate(this.templates.readTemplate(event), new HashMap<String, Object>());
 			HipChatRoomNotification notification = new HipChatRoomNotification(message, this.messageFormat, colour, notify);
-			String roomId = this.configuration.getDefaultRoomId();
+			String roomId = configuration.getDefaultRoomId();
 			if ((event == TeamCityEvent.SERVER_STARTUP || event == TeamCityEvent.SERVER_SHUTDOWN) && 
-					this.configuration.getServerEventRoomId() != null) {
-				roomId = this.configuration.getServerEventRoomId();
+					configuration.getServerEventRoomId() != null) {
+				roomId = configuration.getServerEventRoomId();
 			}
 			if (roomId != null) {
-				this.processor.sendNotification(notification, roomId);
+				this.coalescer.dispatchNow(event, notification, roomId);
 			}
 		} catch (Exception e) {
 			logger.error(String.format("Error processing server event: %s", event), e);
 		}
 	}
 	
-	private void processBuildEvent(SRunningBuild build, TeamCityEvent event) {
+	private void processBuildEvent(HipChatConfigurationSnapshot configuration, SRunningBuild build, TeamCityEvent event) {
 		try {
 			logger.info(String.format("Received %s build event", event));
-			if (!this.configuration.getDisabledStatus() && !build.isPersonal()) {
-				
-		        Branch branch = build.getBranch();
-		        if ((this.configuration.getBranchFilterEnabledStatus()) && (branch != null)) {
-		          String branchDisplayName = branch.getDisplayName();
-		          if (branchDisplayName.matches(this.configuration.getBranchFilterRegex())) {
-		            logger.debug(String.format("Branch %s skipped", new Object[] { branchDisplayName }));
-		            return;
-		          }
-		        }
+			if (!configuration.getDisabledStatus() && !build.isPersonal()) {
+				ProjectManager projectManager = this.server.getProjectManager();
+				SProject project = projectManager.findProjectById(build.getProjectId());
+				Branch branch = build.getBranch();
+				if (branch != null && !this.routingTable.getBranchFilter(project).accept(branch.getDisplayName())) {
+					logger.debug(String.format("Branch %s skipped", branch.getDisplayName()));
+					return;
+				}
 				
 				logger.info("Processing build event");
+				HipChatProjectConfiguration route = this.routingTable.resolve(project);
+				String roomId = route.getRoomId();
+				if (roomId == null) {
+					logger.debug(String.format("No room to notify for project ID %s", project.getProjectId()));
+					return;
+				}
+				
 				String message = createHtmlBuildEventMessage(build, event);
 				String colour = getBuildEventMessageColour(event);
-				ProjectManager projectManager = this.server.getProjectManager();
-				SProject project = projectManager.findProjectById(build.getProjectId());
-				HipChatProjectConfiguration projectConfiguration = Utils.determineProjectConfiguration(project, configuration);
-				HipChatRoomNotification notification = new HipChatRoomNotification(message, this.messageFormat, colour, projectConfiguration.getNotifyStatus());
-				String roomId = projectConfiguration.getRoomId();
-				logger.debug(String.format("Room to be notified: %s", roomId));
-				if (!Utils.IsRoomIdNullOrNone(roomId)) {
-					if (roomId.equals(HipChatConfiguration.ROOM_ID_DEFAULT_VALUE)) {
-						roomId = configuration.getDefaultRoomId();
-					} else if (roomId.equals(HipChatConfiguration.ROOM_ID_PARENT_VALUE)) {
-						HipChatProjectConfiguration parentProjectConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
-						if (parentProjectConfiguration != null) {
-							logger.debug("Using specific configuration in hierarchy determined implicitly");
-							roomId = parentProjectConfiguration.getRoomId();
-							notification.notify = parentProjectConfiguration.getNotifyStatus();
-						}
-					}
-					
-					if (!Utils.IsRoomIdNullOrNone(roomId)) {
-						logger.debug(String.format("Room notified: %s", roomId));
-						this.processor.sendNotification(notification, roomId);
-					}
-				}
+				HipChatRoomNotification notification = new HipChatRoomNotification(message, this.messageFormat, colour, route.getNotifyStatus());
+				logger.debug(String.format("Room notified: %s", roomId));
+				this.coalescer.dispatch(event, notification, roomId);
 			}
 		} catch (Exception e) {
 			logger.error("Could not process build event", e);
@@ -220,14 +256,19 @@ public class HipChatServerExtension extends BuildServerAdapter {
 		return this.eventMap.get(buildEvent).getColour();
 	}
 		
-	private String createHtmlBuildEventMessage(SRunningBuild build, TeamCityEvent buildEvent) throws TemplateException, IOException {	
+	private String createHtmlBuildEventMessage(final SRunningBuild build, TeamCityEvent buildEvent) throws TemplateException, IOException {	
 		HipChatMessageBundle bundle = this.eventMap.get(buildEvent);
-		Template template = this.templates.readTemplate(buildEvent);
+		// One lookup, so a template change in between can't pair the template with another version's variables
+		HipChatNotificationMessageTemplates.CompiledTemplate compiledTemplate = this.templates.getCompiledTemplate(buildEvent);
+		Template template = compiledTemplate.getTemplate();
+		HipChatTemplateVariables variables = compiledTemplate.getVariables();
+		if (variables == null) {
+			variables = HipChatTemplateVariables.ALL;
+		}
 		
 		// Emoticon
-		String emoticon = getRandomEmoticon(bundle.getEmoticonSet());
-		logger.debug(String.format("Emoticon: %s", emoticon));
-		String emoticonUrl = this.emoticonCache.get(emoticon);
+		String emoticonUrl = this.emoticonCache.getRandomUrl(bundle.getEmoticonSet());
+		logger.debug(String.format("Emoticon URL: %s", emoticonUrl));
 
 		// Branch
 		Branch branch = build.getBranch();
@@ -239,73 +280,14 @@ public class HipChatServerExtension extends BuildServerAdapter {
 			logger.debug(String.format("Branch: %s", branchDisplayName));
 		}
 		
-		// Contributors (committers)
-		String contributors = getContributors(build);
-		boolean hasContributors = !contributors.isEmpty();
-		logger.debug(String.format("Has contributors: %s", hasContributors));
-		
-		// Fill the template.
-		Map<String, Object> templateMap = new HashMap<String, Object>();		
-		
-		// Build statistics
-		logger.debug("Adding standard build statistics");
-		BuildStatistics statistics = build.getFullStatistics();
-		logger.debug(String.format("\tNumber of tests: %s", statistics.getAllTestCount()));
-		logger.debug(String.format("\tNumber of passed tests: %s", statistics.getPassedTestCount()));
-		logger.debug(String.format("\tNumber of failed tests: %s", statistics.getFailedTestCount()));
-		logger.debug(String.format("\tNumber of new failed tests: %s", statistics.getNewFailedCount()));
-		logger.debug(String.format("\tNumber of ignored tests: %s", statistics.getIgnoredTestCount()));
-		logger.debug(String.format("\tTests duration: %s", statistics.getTotalDuration()));
-		templateMap.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_TESTS, statistics.getAllTestCount());
-		templateMap.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_PASSED_TESTS, statistics.getPassedTestCount());
-		templateMap.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_FAILED_TESTS, statistics.getFailedTestCount());
-		templateMap.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_NEW_FAILED_TESTS, statistics.getNewFailedCount());
-		templateMap.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_IGNORED_TESTS, statistics.getIgnoredTestCount());
-		templateMap.put(HipChatNotificationMessageTemplates.Parameters.DURATION_OF_TESTS, statistics.getTotalDuration());
-		logger.debug("Adding discovered build statistics - use in templates by accessing the data model and with prefix stats");
-		Map<String, BigDecimal> allStatistics = build.getStatisticValues();
-		for (Map.Entry<String, BigDecimal> statistic : allStatistics.entrySet()) {
-			logger.debug(String.format("\t%s: %s", statistic.getKey(), statistic.getValue()));
-			templateMap.put(String.format("%s.%s", HipChatNotificationMessageTemplates.STATS_PARAMETERS_PREFIX, statistic.getKey()), statistic.getValue());
-		}
+		// Fill the template; anything costly is only worked out if the template asks for it
+		HipChatTemplateDataModel templateMap = new HipChatTemplateDataModel(template.getObjectWrapper());
 		
-//		// TODO: Add artifact dependencies as a template variable
-//		try {
-//			SBuildType buildType = build.getBuildType();
-//			Collection<SBuildType> childDependencies = buildType.getChildDependencies();
-//			for (SBuildType sBuildType : childDependencies) {
-//				SFinishedBuild changes = sBuildType.getLastChangesFinished();
-//				changes.getCommitters(SelectPrevBuildPolicy.SINCE_LAST_BUILD);
-//			} 
-//			logger.debug(String.format("Children: %s", childDependencies.isEmpty()));
-//			List<Dependency> dependencies = buildType.getDependencies();
-//			//dependencies.get(0).
-//			logger.debug(String.format("Children: %s", dependencies.isEmpty()));
-//			List<SBuildType> dependencyReferences = buildType.getDependencyReferences();
-//			logger.debug(String.format("Children: %s", dependencyReferences.isEmpty()));
-//		} catch (Exception e) {
-//		}
-				
-		// Add all available project, build configuration, agent, server, etc. parameters to the data model
-		// These are accessed as ${.data_model["some.variable"]}
-		// See: http://freemarker.org/docs/ref_specvar.html
-		logger.debug("Adding build parameters");
-		for (Map.Entry<String, String> entry : build.getParametersProvider().getAll().entrySet()) {
-			logger.debug(String.format("\t%s: %s", entry.getKey(), entry.getValue()));
-			templateMap.put(entry.getKey(), entry.getValue());
-		}
-		logger.debug("Adding agent parameters");
-		for (Map.Entry<String, String> entry : build.getAgent().getAvailableParameters().entrySet()) {
-			logger.debug(String.format("\t%s: %s", entry.getKey(), entry.getValue()));
-			templateMap.put(entry.getKey(), entry.getValue());
-		}
 		// Standard plugin parameters
 		logger.debug("Adding standard parameters");
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.EMOTICON_URL, emoticonUrl == null ? "" : emoticonUrl);		
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.FULL_NAME, build.getBuildType().getFullName());
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.TRIGGERED_BY, build.getTriggeredBy().getAsString());
-	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS, hasContributors);
-	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS, contributors);
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.HAS_BRANCH, hasBranch);
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.BRANCH, branchDisplayName);
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.SERVER_URL, this.server.getRootUrl());
@@ -313,10 +295,81 @@ public class HipChatServerExtension extends BuildServerAdapter {
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.BUILD_ID, new Long(build.getBuildId()).toString());
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.BUILD_TYPE_ID, build.getBuildTypeExternalId());
 	    templateMap.put(HipChatNotificationMessageTemplates.Parameters.BUILD_NUMBER, build.getBuildNumber());
-		if (buildEvent == TeamCityEvent.BUILD_INTERRUPTED) {
-			long userId = build.getCanceledInfo().getUserId();
-			SUser user = this.server.getUserModel().findUserById(userId);
-			templateMap.put(HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY, user.getDescriptiveName());
+	    
+		// Contributors (committers)
+		if (variables.requires(HipChatTemplateVariables.Stage.CONTRIBUTORS)) {
+			templateMap.addSource(new HipChatTemplateDataModel.Source("contributors", HipChatTemplateVariables.CONTRIBUTORS_KEYS) {
+				@Override
+				protected Map<String, ?> load() {
+					String contributors = getContributors(build);
+					boolean hasContributors = !contributors.isEmpty();
+					logger.debug(String.format("Has contributors: %s", hasContributors));
+					Map<String, Object> values = new HashMap<String, Object>();
+					values.put(HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS, hasContributors);
+					values.put(HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS, contributors);
+					return values;
+				}
+			});
+		}
+		if (buildEvent == TeamCityEvent.BUILD_INTERRUPTED && variables.requires(HipChatTemplateVariables.Stage.CANCELLED_BY)) {
+			templateMap.addSource(new HipChatTemplateDataModel.Source("cancelled by", HipChatTemplateVariables.CANCELLED_BY_KEYS) {
+				@Override
+				protected Map<String, ?> load() {
+					long userId = build.getCanceledInfo().getUserId();
+					SUser user = HipChatServerExtension.this.server.getUserModel().findUserById(userId);
+					return Collections.singletonMap(HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY, user.getDescriptiveName());
+				}
+			});
+		}
+		
+		// Add all available project, build configuration, agent, server, etc. parameters to the data model
+		// These are accessed as ${.data_model["some.variable"]}
+		// See: http://freemarker.org/docs/ref_specvar.html
+		if (variables.requires(HipChatTemplateVariables.Stage.PARAMETERS)) {
+			templateMap.addSource(new HipChatTemplateDataModel.Source("agent parameters") {
+				@Override
+				protected Map<String, ?> load() {
+					return build.getAgent().getAvailableParameters();
+				}
+			});
+			templateMap.addSource(new HipChatTemplateDataModel.Source("build parameters") {
+				@Override
+				protected Map<String, ?> load() {
+					return build.getParametersProvider().getAll();
+				}
+			});
+		}
+		
+		// Discovered build statistics - use in templates by accessing the data model and with prefix stats
+		if (variables.requires(HipChatTemplateVariables.Stage.DISCOVERED_STATISTICS)) {
+			templateMap.addSource(new HipChatTemplateDataModel.Source("discovered build statistics", HipChatTemplateVariables.STATS_KEY_PREFIX) {
+				@Override
+				protected Map<String, ?> load() {
+					Map<String, Object> values = new HashMap<String, Object>();
+					for (Map.Entry<String, BigDecimal> statistic : build.getStatisticValues().entrySet()) {
+						values.put(HipChatTemplateVariables.STATS_KEY_PREFIX + statistic.getKey(), statistic.getValue());
+					}
+					return values;
+				}
+			});
+		}
+		
+		// Standard build statistics
+		if (variables.requires(HipChatTemplateVariables.Stage.TEST_STATISTICS)) {
+			templateMap.addSource(new HipChatTemplateDataModel.Source("standard build statistics", HipChatTemplateVariables.TEST_STATISTICS_KEYS) {
+				@Override
+				protected Map<String, ?> load() {
+					BuildStatistics statistics = build.getFullStatistics();
+					Map<String, Object> values = new HashMap<String, Object>();
+					values.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_TESTS, statistics.getAllTestCount());
+					values.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_PASSED_TESTS, statistics.getPassedTestCount());
+					values.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_FAILED_TESTS, statistics.getFailedTestCount());
+					values.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_NEW_FAILED_TESTS, statistics.getNewFailedCount());
+					values.put(HipChatNotificationMessageTemplates.Parameters.NO_OF_IGNORED_TESTS, statistics.getIgnoredTestCount());
+					values.put(HipChatNotificationMessageTemplates.Parameters.DURATION_OF_TESTS, statistics.getTotalDuration());
+					return values;
+				}
+			});
 		}
 		
 		return renderTemplate(template, templateMap);
@@ -334,18 +387,15 @@ public class HipChatServerExtension extends BuildServerAdapter {
 		return contributors;
 	}
 	
-	private static String renderTemplate(Template template, Map<String, Object> templateMap) throws TemplateException, IOException {
-		Writer writer = new StringWriter();
+	private static String renderTemplate(Template template, Object templateMap) throws TemplateException, IOException {
+		// Rendered into this thread's buffer, which stops taking output once the message is too long for HipChat
+		HipChatMessageWriter writer = MESSAGE_WRITER.get();
+		writer.reset();
 	    template.process(templateMap, writer);
-	    writer.flush();
-	    String renderedTemplate = writer.toString();
-	    writer.close();
-	    return renderedTemplate;		
-	}
-	
-	private static String getRandomEmoticon(String[] set) {
-		int i = rng.nextInt(set.length);
-		return set[i];
+	    if (writer.isTruncated()) {
+	    	logger.warn(String.format("Message rendered from template %s truncated to %s characters", template.getName(), writer.length()));
+	    }
+	    return writer.toString();
 	}
 
 }
@@ -0,0 +1,154 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.SimpleCollection;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+public class HipChatTemplateDataModel implements TemplateHashModelEx {
+
+	private static Logger logger = Logger.getLogger("com.whatsthatlight.teamcity.hipchat");
+	private ObjectWrapper wrapper;
+	private final Map<String, Object> values = new HashMap<String, Object>();
+	// In order of precedence
+	private final List<Source> sources = new ArrayList<Source>();
+	private final Map<String, TemplateModel> resolved = new HashMap<String, TemplateModel>();
+
+	public HipChatTemplateDataModel(ObjectWrapper wrapper) {
+		this.wrapper = wrapper;
+	}
+
+	public void put(String key, Object value) {
+		this.values.put(key, value);
+	}
+
+	// Sources added earlier take precedence over those added later, and all of them give way to put
+	public void addSource(Source source) {
+		this.sources.add(source);
+	}
+
+	@Override
+	public TemplateModel get(String key) throws TemplateModelException {
+		if (this.resolved.containsKey(key)) {
+			return this.resolved.get(key);
+		}
+		Object value = this.values.get(key);
+		if (value == null && !this.values.containsKey(key)) {
+			for (Source source : this.sources) {
+				if (source.handles(key)) {
+					Map<String, ?> sourceValues = source.getValues();
+					if (sourceValues.containsKey(key)) {
+						value = sourceValues.get(key);
+						break;
+					}
+				}
+			}
+		}
+		TemplateModel model = value == null ? null : this.wrapper.wrap(value);
+		this.resolved.put(key, model);
+		return model;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size() == 0;
+	}
+
+	@Override
+	public int size() {
+		return this.getAll().size();
+	}
+
+	@Override
+	public TemplateCollectionModel keys() {
+		return new SimpleCollection(this.getAll().keySet(), this.wrapper);
+	}
+
+	@Override
+	public TemplateCollectionModel values() {
+		return new SimpleCollection(this.getAll().values(), this.wrapper);
+	}
+
+	// Only needed when a template enumerates the data model, and then everything has to be loaded anyway
+	private Map<String, Object> getAll() {
+		Map<String, Object> all = new LinkedHashMap<String, Object>();
+		for (int i = this.sources.size() - 1; i >= 0; i--) {
+			all.putAll(this.sources.get(i).getValues());
+		}
+		all.putAll(this.values);
+		return all;
+	}
+
+	public static abstract class Source {
+
+		private String name;
+		private Set<String> keys;
+		private String prefix;
+		private Map<String, ?> values;
+
+		// Might hold any key
+		public Source(String name) {
+			this.name = name;
+		}
+
+		// Only holds the given keys
+		public Source(String name, Set<String> keys) {
+			this.name = name;
+			this.keys = keys;
+		}
+
+		// Only holds keys that start with the given prefix
+		public Source(String name, String prefix) {
+			this.name = name;
+			this.prefix = prefix;
+		}
+
+		protected abstract Map<String, ?> load();
+
+		public boolean handles(String key) {
+			if (this.keys != null) {
+				return this.keys.contains(key);
+			}
+			return this.prefix == null || key.startsWith(this.prefix);
+		}
+
+		public Map<String, ?> getValues() {
+			if (this.values == null) {
+				logger.debug(String.format("Loading %s", this.name));
+				Map<String, ?> values = this.load();
+				this.values = values == null ? Collections.<String, Object>emptyMap() : values;
+			}
+			return this.values;
+		}
+
+	}
+
+}
@@ -0,0 +1,368 @@
+/**
+Copyright 2014 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.hipchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.tree.TreeNode;
+
+import freemarker.core.TemplateElement;
+import freemarker.template.Template;
+
+public class HipChatTemplateVariables {
+
+	public enum Stage {
+		TEST_STATISTICS("test statistics"), 
+		DISCOVERED_STATISTICS("discovered statistics"), 
+		CONTRIBUTORS("contributors"), 
+		CANCELLED_BY("cancelling user"), 
+		PARAMETERS("build and agent parameters");
+
+		private String description;
+
+		private Stage(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return this.description;
+		}
+	}
+
+	public static final Set<String> CONTRIBUTORS_KEYS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS, 
+			HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS)));
+	public static final Set<String> CANCELLED_BY_KEYS = Collections.singleton(HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY);
+	public static final Set<String> TEST_STATISTICS_KEYS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_TESTS, 
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_PASSED_TESTS, 
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_FAILED_TESTS, 
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_NEW_FAILED_TESTS, 
+			HipChatNotificationMessageTemplates.Parameters.NO_OF_IGNORED_TESTS, 
+			HipChatNotificationMessageTemplates.Parameters.DURATION_OF_TESTS)));
+	public static final String STATS_KEY_PREFIX = String.format("%s.", HipChatNotificationMessageTemplates.STATS_PARAMETERS_PREFIX);
+	// Always present, and never shadowed by a parameter of the same name
+	private static final Set<String> STANDARD_KEYS = new HashSet<String>(Arrays.asList(
+			HipChatNotificationMessageTemplates.Parameters.EMOTICON_URL, 
+			HipChatNotificationMessageTemplates.Parameters.FULL_NAME, 
+			HipChatNotificationMessageTemplates.Parameters.TRIGGERED_BY, 
+			HipChatNotificationMessageTemplates.Parameters.HAS_BRANCH, 
+			HipChatNotificationMessageTemplates.Parameters.BRANCH, 
+			HipChatNotificationMessageTemplates.Parameters.SERVER_URL, 
+			HipChatNotificationMessageTemplates.Parameters.PROJECT_ID, 
+			HipChatNotificationMessageTemplates.Parameters.BUILD_ID, 
+			HipChatNotificationMessageTemplates.Parameters.BUILD_TYPE_ID, 
+			HipChatNotificationMessageTemplates.Parameters.BUILD_NUMBER, 
+			HipChatNotificationMessageTemplates.Parameters.CONTRIBUTORS, 
+			HipChatNotificationMessageTemplates.Parameters.HAS_CONTRIBUTORS, 
+			HipChatNotificationMessageTemplates.Parameters.CANCELLED_BY));
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("true", "false", "as", "in", "using", "gt", "gte", "lt", "lte"));
+	private static final Set<String> ASSIGNMENT_DIRECTIVES = new HashSet<String>(Arrays.asList("assign", "global", "local"));
+	private static final Set<String> DATA_MODEL_VARIABLES = new HashSet<String>(Arrays.asList("data_model", "vars", "globals", "main"));
+	// Nodes whose descriptions hold no expressions
+	private static final Set<String> OPAQUE_NODES = new HashSet<String>(Arrays.asList("TextBlock", "Comment", "MixedContent", "IfBlock"));
+	// Every node the scan understands. Anything else, including #include, #import, #visit and #recurse, whose effect 
+	// depends on templates or data the analysis cannot see, means everything could be needed
+	private static final Set<String> KNOWN_NODES = new HashSet<String>(Arrays.asList(
+			"MixedContent", "TextBlock", "Comment", "DollarVariable", "NumericalOutput", 
+			"IfBlock", "ConditionalBlock", "SwitchBlock", "Case", "IteratorBlock", "BreakInstruction", 
+			"Assignment", "AssignmentInstruction", "BlockAssignment", "PropertySetting", 
+			"Macro", "UnifiedCall", "BodyInstruction", "ReturnInstruction", 
+			"AttemptBlock", "RecoveryBlock", "CompressedBlock", "EscapeBlock", "NoEscapeBlock", "TransformBlock", 
+			"TrimInstruction", "FlushInstruction", "StopInstruction"));
+	// Built-ins that parse and run a string as template code
+	private static final Set<String> DYNAMIC_BUILT_INS = new HashSet<String>(Arrays.asList("eval", "interpret"));
+
+	public static final HipChatTemplateVariables ALL = new HipChatTemplateVariables(Collections.<String>emptySet(), true);
+
+	private Set<String> names;
+	private boolean dynamic;
+	private EnumSet<Stage> stages;
+
+	private HipChatTemplateVariables(Set<String> names, boolean dynamic) {
+		this.names = Collections.unmodifiableSet(names);
+		this.dynamic = dynamic;
+		this.stages = EnumSet.noneOf(Stage.class);
+		for (Stage stage : Stage.values()) {
+			if (this.isRequired(stage)) {
+				this.stages.add(stage);
+			}
+		}
+	}
+
+	// Conservative: anything that looks like a top-level variable counts, and a data model lookup by a computed key, 
+	// code evaluated at run time or a construct the scan doesn't know means everything could be needed
+	public static HipChatTemplateVariables analyse(Template template) {
+		Analysis analysis = new Analysis();
+		analysis.walk(template.getRootTreeNode());
+		analysis.names.removeAll(analysis.locals);
+		return new HipChatTemplateVariables(analysis.names, analysis.dynamic);
+	}
+
+	public Set<String> getNames() {
+		return this.names;
+	}
+
+	public boolean isDynamic() {
+		return this.dynamic;
+	}
+
+	public boolean requires(Stage stage) {
+		return this.stages.contains(stage);
+	}
+
+	public Set<Stage> getStages() {
+		return Collections.unmodifiableSet(this.stages);
+	}
+
+	public String getDescription() {
+		if (this.stages.isEmpty()) {
+			return "none";
+		}
+		List<String> descriptions = new ArrayList<String>();
+		for (Stage stage : this.stages) {
+			descriptions.add(stage.getDescription());
+		}
+		return Utils.join(descriptions);
+	}
+
+	private boolean isRequired(Stage stage) {
+		if (this.dynamic) {
+			return true;
+		}
+		switch (stage) {
+		case TEST_STATISTICS:
+			return !Collections.disjoint(this.names, TEST_STATISTICS_KEYS);
+		case CONTRIBUTORS:
+			return !Collections.disjoint(this.names, CONTRIBUTORS_KEYS);
+		case CANCELLED_BY:
+			return !Collections.disjoint(this.names, CANCELLED_BY_KEYS);
+		case DISCOVERED_STATISTICS:
+			for (String name : this.names) {
+				if (name.startsWith(STATS_KEY_PREFIX)) {
+					return true;
+				}
+			}
+			return false;
+		case PARAMETERS:
+		default:
+			// Parameters may hold any name, and shadow the statistics
+			for (String name : this.names) {
+				if (!STANDARD_KEYS.contains(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Analysis {
+
+		private final Set<String> names = new HashSet<String>();
+		private final Set<String> locals = new HashSet<String>();
+		private boolean dynamic;
+
+		private void walk(TreeNode node) {
+			if (this.dynamic) {
+				return;
+			}
+			TemplateElement element = (TemplateElement) node;
+			if (!KNOWN_NODES.contains(element.getNodeName())) {
+				this.dynamic = true;
+				return;
+			}
+			if (!OPAQUE_NODES.contains(element.getNodeName())) {
+				this.scan(element.getDescription());
+			}
+			Enumeration<?> children = node.children();
+			while (children.hasMoreElements()) {
+				this.walk((TreeNode) children.nextElement());
+			}
+		}
+
+		private void scan(String expression) {
+			int length = expression.length();
+			int i = 0;
+			boolean assignment = false;
+			boolean local = false;
+			while (i < length) {
+				char c = expression.charAt(i);
+				if (c == '"' || c == '\'') {
+					int end = skipString(expression, i);
+					String literal = expression.substring(i + 1, Math.max(i + 1, end - 1));
+					this.scanInterpolations(literal);
+					i = end;
+					continue;
+				}
+				if (isIdentifierStart(c)) {
+					int end = i;
+					while (end < length && isIdentifierPart(expression.charAt(end))) {
+						end++;
+					}
+					String identifier = expression.substring(i, end);
+					char previous = previousNonSpace(expression, i);
+					if (previous == '#' || previous == '@') {
+						// Directive or macro name; the first name assigned by #assign and friends is local
+						assignment = ASSIGNMENT_DIRECTIVES.contains(identifier);
+					} else if (previous == '?') {
+						// Built-in
+						this.dynamic |= DYNAMIC_BUILT_INS.contains(identifier);
+					} else if (previous == '.' && !isRange(expression, i)) {
+						if (DATA_MODEL_VARIABLES.contains(identifier) && isSpecialVariable(expression, i)) {
+							String key = getLiteralLookup(expression, end);
+							if (key == null) {
+								this.dynamic = true;
+							} else {
+								this.names.add(key);
+							}
+						}
+					} else if (KEYWORDS.contains(identifier)) {
+						local = identifier.equals("as");
+					} else if (assignment || local) {
+						this.locals.add(identifier);
+						assignment = false;
+						local = false;
+					} else {
+						this.names.add(identifier);
+					}
+					i = end;
+					continue;
+				}
+				i++;
+			}
+		}
+
+		// Interpolations inside string literals show up escaped in the canonical form
+		private void scanInterpolations(String literal) {
+			int start = literal.indexOf("${");
+			while (start >= 0) {
+				int depth = 0;
+				int end = start + 2;
+				while (end < literal.length() && (literal.charAt(end) != '}' || depth > 0)) {
+					if (literal.charAt(end) == '{') {
+						depth++;
+					} else if (literal.charAt(end) == '}') {
+						depth--;
+					}
+					end++;
+				}
+				this.scan(literal.substring(start + 2, end).replace("\\", ""));
+				start = literal.indexOf("${", end);
+			}
+		}
+
+		private static boolean isIdentifierStart(char c) {
+			return Character.isLetter(c) || c == '_';
+		}
+
+		private static boolean isIdentifierPart(char c) {
+			return Character.isLetterOrDigit(c) || c == '_';
+		}
+
+		private static int skipString(String expression, int start) {
+			char quote = expression.charAt(start);
+			int i = start + 1;
+			while (i < expression.length()) {
+				char c = expression.charAt(i);
+				if (c == '\\') {
+					i += 2;
+					continue;
+				}
+				if (c == quote) {
+					return i + 1;
+				}
+				i++;
+			}
+			return expression.length();
+		}
+
+		private static char previousNonSpace(String expression, int index) {
+			for (int i = index - 1; i >= 0; i--) {
+				char c = expression.charAt(i);
+				if (!Character.isWhitespace(c)) {
+					return c;
+				}
+			}
+			return ' ';
+		}
+
+		// A leading dot, as opposed to member access
+		private static boolean isSpecialVariable(String expression, int index) {
+			int dot = expression.lastIndexOf('.', index);
+			int i = dot - 1;
+			while (i >= 0 && Character.isWhitespace(expression.charAt(i))) {
+				i--;
+			}
+			if (i < 0) {
+				return true;
+			}
+			char previous = expression.charAt(i);
+			if (isIdentifierPart(previous)) {
+				// Unless what comes before is a directive name or a keyword, as in #list .data_model?keys
+				int end = i + 1;
+				while (i >= 0 && isIdentifierPart(expression.charAt(i))) {
+					i--;
+				}
+				char beforeIdentifier = previousNonSpace(expression, i + 1);
+				return beforeIdentifier == '#' || beforeIdentifier == '@' || KEYWORDS.contains(expression.substring(i + 1, end));
+			}
+			return !(previous == ')' || previous == ']' || previous == '"' || previous == '\'');
+		}
+
+		// Two dots, as in 1..n
+		private static boolean isRange(String expression, int index) {
+			int dot = expression.lastIndexOf('.', index);
+			return dot > 0 && expression.charAt(dot - 1) == '.';
+		}
+
+		// The key of a lookup such as ["some.parameter"], or null if the key is computed
+		private static String getLiteralLookup(String expression, int index) {
+			int i = skipSpace(expression, index);
+			if (i >= expression.length() || expression.charAt(i) != '[') {
+				return null;
+			}
+			i = skipSpace(expression, i + 1);
+			if (i >= expression.length() || (expression.charAt(i) != '"' && expression.charAt(i) != '\'')) {
+				return null;
+			}
+			int end = skipString(expression, i);
+			String key = expression.substring(i + 1, Math.max(i + 1, end - 1));
+			end = skipSpace(expression, end);
+			if (end >= expression.length() || expression.charAt(end) != ']' || key.contains("${") || key.contains("\\")) {
+				return null;
+			}
+			return key;
+		}
+
+		private static int skipSpace(String expression, int index) {
+			int i = index;
+			while (i < expression.length() && Character.isWhitespace(expression.charAt(i))) {
+				i++;
+			}
+			return i;
+		}
+
+	}
+
+}
@@ -18,6 +18,7 @@ package com.whatsthatlight.teamcity.hipchat;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
@@ -42,17 +43,37 @@ public class Utils {
 		return stringBuilder.toString();
 	}
 	
-	public static TreeMap<String, String> getRooms(HipChatApiProcessor processor) {
+	public static TreeMap<String, String> getRooms(final HipChatApiProcessor processor) {
 		TreeMap<String, String> map = new TreeMap<String, String>();
-		int startIndex = 0;
-		HipChatRooms rooms = null;
-		do {
-			rooms = processor.getRooms(startIndex);
+		List<HipChatRooms> pages = new HipChatPageLoader<HipChatRooms>() {
+			@Override
+			protected HipChatRooms getPage(int startIndex) {
+				return processor.getRooms(startIndex);
+			}
+
+			@Override
+			protected int getItemCount(HipChatRooms page) {
+				return page.items == null ? 0 : page.items.size();
+			}
+
+			@Override
+			protected int getMaxResults(HipChatRooms page) {
+				return page.maxResults;
+			}
+
+			@Override
+			protected boolean hasNext(HipChatRooms page) {
+				return page.links != null && page.links.next != null;
+			}
+		}.load();
+		if (pages == null) {
+			return map;
+		}
+		for (HipChatRooms rooms : pages) {
 			for (HipChatRoom room : rooms.items) {
 				map.put(room.name, room.id);
 			}
-			startIndex = startIndex + rooms.maxResults;
-		} while (rooms.links != null && rooms.links.next != null);
+		}
 		return map;
 	}
 	
@@ -60,7 +81,7 @@ public class Utils {
 		return project.getParentProject().getProjectId().equals(HipChatConfiguration.ROOT_PROJECT_ID_VALUE);
 	}
 
-	public static HipChatProjectConfiguration findFirstSpecificParentConfiguration(SProject project, HipChatConfiguration configuration) {
+	public static HipChatProjectConfiguration findFirstSpecificParentConfiguration(SProject project, HipChatConfigurationSnapshot configuration) {
 		HipChatProjectConfiguration projectConfiguration = configuration.getProjectConfiguration(project.getParentProjectId());
 		if ((!isRootProject(project) && projectConfiguration == null) ||
 				(projectConfiguration != null && projectConfiguration.getRoomId().equals(HipChatConfiguration.ROOM_ID_PARENT_VALUE))) {
@@ -71,7 +92,7 @@ public class Utils {
 		return null;
 	}
 	
-	public static HipChatProjectConfiguration determineProjectConfiguration(SProject project, HipChatConfiguration configuration) {
+	public static HipChatProjectConfiguration determineProjectConfiguration(SProject project, HipChatConfigurationSnapshot configuration) {
 		String projectId = project.getProjectId();
 		String roomId = configuration.getDefaultRoomId();
 		boolean notify = configuration.getDefaultNotifyStatus();
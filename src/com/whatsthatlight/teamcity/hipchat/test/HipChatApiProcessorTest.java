@@ -23,9 +23,16 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
@@ -44,11 +51,16 @@ import org.testng.annotations.BeforeClass;
 
 import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
 import com.whatsthatlight.teamcity.hipchat.HipChatApiResultLinks;
+import com.whatsthatlight.teamcity.hipchat.HipChatApiUnavailableException;
+import com.whatsthatlight.teamcity.hipchat.HipChatCircuitBreaker;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatDispatchOverflowPolicy;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticon;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticons;
 import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
 import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
+import com.whatsthatlight.teamcity.hipchat.HipChatRateLimiter;
+import com.whatsthatlight.teamcity.hipchat.HipChatRetryBudget;
 import com.whatsthatlight.teamcity.hipchat.HipChatRoom;
 import com.whatsthatlight.teamcity.hipchat.HipChatApiResponseLinks;
 import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
@@ -159,6 +171,172 @@ public class HipChatApiProcessorTest {
 		assertEquals(expectedEmoticonUrl, actualRoom.url);
 	}
 	
+	@Test
+	public void testGetEmoticonByShortcut() throws Exception {
+		// Test parameters
+		String expectedEmoticonId = "0";
+		String expectedEmoticonShortcut = "boom";
+		String expectedEmoticonUrl = "http://example.com/boom.png";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		String token = "token";
+
+		// JSON
+		HipChatEmoticon emoticon = new HipChatEmoticon(expectedEmoticonId, null, expectedEmoticonShortcut, expectedEmoticonUrl);
+		String expectedJson = new ObjectMapper().writeValueAsString(emoticon);
+
+		// Configuration
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(token);
+
+		// Handler; only the one emoticon exists
+		class Handler extends AbstractHandler {
+
+			private String response;
+
+			public Handler(String response) {
+				this.response = response;
+			}
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				if (target.equals("/emoticon/boom")) {
+					response.setContentType("application/json;charset=utf-8");
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.getWriter().write(this.response);
+				} else {
+					response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				}
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		SimpleServer server = new SimpleServer(port, new Handler(expectedJson));
+		server.start();
+
+		// Execute
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		HipChatEmoticon actualEmoticon = processor.getEmoticon(expectedEmoticonShortcut);
+		HipChatEmoticon missingEmoticon = processor.getEmoticon("missing");
+
+		// Clean up
+		server.stop();
+
+		// Test
+		assertNotNull(actualEmoticon);
+		assertEquals(expectedEmoticonId, actualEmoticon.id);
+		assertEquals(expectedEmoticonShortcut, actualEmoticon.shortcut);
+		assertEquals(expectedEmoticonUrl, actualEmoticon.url);
+		assertNull(missingEmoticon);
+	}
+	
+	@Test
+	public void testEmoticonLookupsAreRateLimited() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		List<Integer> statusCodes = new ArrayList<Integer>();
+		statusCodes.add(HttpServletResponse.SC_NOT_FOUND);
+
+		// Setup; the token allows a single request
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		HipChatRateLimiter rateLimiter = new HipChatRateLimiter(1, 60000, 1, 60000);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration, System.getProperties(), rateLimiter);
+		SequenceHandler handler = new SequenceHandler(statusCodes);
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Execute
+		HipChatEmoticon first = processor.getEmoticon("boom");
+		long start = System.currentTimeMillis();
+		HipChatEmoticons second = processor.getEmoticons(0);
+		long duration = System.currentTimeMillis() - start;
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test; the second lookup is turned away without waiting for the token
+		assertNull(first);
+		assertNull(second);
+		assertEquals(1, handler.getRequestCount());
+		assertTrue(duration < 5000);
+	}
+	
+	@Test
+	public void testGetEmoticonsRevalidatesWithETag() throws Exception {
+		// Test parameters
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		final String eTag = "\"v1\"";
+
+		// JSON
+		HipChatApiResponseLinks emoticonLinks = new HipChatApiResponseLinks("self", "webhooks", "members");
+		HipChatEmoticon emoticon = new HipChatEmoticon("0", emoticonLinks, "emo", "http://example.com/");
+		List<HipChatEmoticon> emoticonsList = new ArrayList<HipChatEmoticon>();
+		emoticonsList.add(emoticon);
+		HipChatEmoticons emoticons = new HipChatEmoticons(emoticonsList, 0, 1, new HipChatApiResultLinks("self", "prev", "next"));
+		final byte[] json = new ObjectMapper().writeValueAsBytes(emoticons);
+
+		// Handler; gzips the listing and answers a matching If-None-Match with 304
+		class Handler extends AbstractHandler {
+
+			public final List<String> acceptEncodings = new ArrayList<String>();
+			public final List<String> ifNoneMatches = new ArrayList<String>();
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.acceptEncodings.add(request.getHeader("Accept-Encoding"));
+				this.ifNoneMatches.add(request.getHeader("If-None-Match"));
+				if (eTag.equals(request.getHeader("If-None-Match"))) {
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				} else {
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.setContentType("application/json");
+					response.setHeader("ETag", eTag);
+					response.setHeader("Content-Encoding", "gzip");
+					GZIPOutputStream gzip = new GZIPOutputStream(response.getOutputStream());
+					gzip.write(json);
+					gzip.finish();
+				}
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		Handler handler = new Handler();
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Execute
+		HipChatEmoticons first = processor.getEmoticons(0);
+		HipChatEmoticons second = processor.getEmoticons(0);
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertNotNull(first);
+		assertEquals(1, first.items.size());
+		assertEquals("emo", first.items.get(0).shortcut);
+		assertSame(first, second);
+		assertEquals(2, handler.acceptEncodings.size());
+		assertEquals("gzip", handler.acceptEncodings.get(0));
+		assertNull(handler.ifNoneMatches.get(0));
+		assertEquals(eTag, handler.ifNoneMatches.get(1));
+	}
+
 	@Test
 	public void testGetEmoticonsException() throws Exception {
 		// Test parameters
@@ -502,7 +680,587 @@ public class HipChatApiProcessorTest {
 		}
 		assertTrue(exceptionFound);
 	}
-	
+
+	@Test
+	public void testSendNotificationReusesConnection() throws Exception {
+		// Test parameters
+		int expectedStatusCode = HttpServletResponse.SC_NO_CONTENT;
+		int expectedNumberOfConnections = 1;
+		int numberOfNotifications = 3;
+		String expectedRoomId = "1";
+		String expectedToken = "token";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+		Set<Integer> remotePorts = new HashSet<Integer>();
+
+		// Handler
+		class Handler extends AbstractHandler {
+
+			private int statusCode;
+			private Set<Integer> remotePorts;
+
+			public Handler(int statusCode, Set<Integer> remotePorts) {
+				this.statusCode = statusCode;
+				this.remotePorts = remotePorts;
+			}
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.remotePorts.add(request.getRemotePort());
+		        response.setStatus(this.statusCode);
+		        baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken(expectedToken);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler(expectedStatusCode, remotePorts));
+		server.start();
+
+		// Execute
+		for (int i = 0; i < numberOfNotifications; i++) {
+			processor.sendNotification(notification, expectedRoomId);
+		}
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertEquals(expectedNumberOfConnections, remotePorts.size());
+	}
+
+	@Test
+	public void testSendNotificationReusesRequestBuffer() throws Exception {
+		// Test parameters; a long message followed by a shorter, non-ASCII one must not leave any of the first behind
+		String expectedRoomId = "1";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		StringBuilder longMessage = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			longMessage.append("<b>long</b> ");
+		}
+		List<HipChatRoomNotification> notifications = new ArrayList<HipChatRoomNotification>();
+		notifications.add(new HipChatRoomNotification(longMessage.toString(), HipChatMessageFormat.HTML, HipChatMessageColour.SUCCESS, true));
+		notifications.add(new HipChatRoomNotification("Gebou \u00e9\u00e8 \u2603", HipChatMessageFormat.TEXT, HipChatMessageColour.ERROR, false));
+		ObjectMapper mapper = new ObjectMapper();
+		List<String> bodies = new ArrayList<String>();
+		List<String> contentTypes = new ArrayList<String>();
+
+		// Handler
+		class Handler extends AbstractHandler {
+
+			private List<String> bodies;
+			private List<String> contentTypes;
+
+			public Handler(List<String> bodies, List<String> contentTypes) {
+				this.bodies = bodies;
+				this.contentTypes = contentTypes;
+			}
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.contentTypes.add(request.getContentType());
+				this.bodies.add(new Scanner(request.getInputStream(), "UTF-8").useDelimiter("\\A").next());
+		        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		        baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler(bodies, contentTypes));
+		server.start();
+
+		// Execute
+		for (HipChatRoomNotification notification : notifications) {
+			assertTrue(processor.sendNotification(notification, expectedRoomId));
+		}
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertEquals(notifications.size(), bodies.size());
+		for (int i = 0; i < notifications.size(); i++) {
+			assertEquals(mapper.writeValueAsString(notifications.get(i)), bodies.get(i));
+			assertTrue(contentTypes.get(i).startsWith("application/json"));
+		}
+	}
+
+	@Test
+	public void testSendNotificationPausesWhenThrottled() throws Exception {
+		// Test parameters
+		int retryAfterSeconds = 1;
+		String expectedRoomId = "1";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+		List<Long> requestTimes = new ArrayList<Long>();
+
+		// Handler; throttles the first request only
+		class Handler extends AbstractHandler {
+
+			private int retryAfterSeconds;
+			private List<Long> requestTimes;
+
+			public Handler(int retryAfterSeconds, List<Long> requestTimes) {
+				this.retryAfterSeconds = retryAfterSeconds;
+				this.requestTimes = requestTimes;
+			}
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.requestTimes.add(System.currentTimeMillis());
+				if (this.requestTimes.size() == 1) {
+					response.setStatus(HipChatRateLimiter.SC_TOO_MANY_REQUESTS);
+					response.setHeader(HipChatRateLimiter.RETRY_AFTER_HEADER, Integer.toString(this.retryAfterSeconds));
+				} else {
+					response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				}
+		        baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new Handler(retryAfterSeconds, requestTimes));
+		server.start();
+
+		// Execute
+		processor.sendNotification(notification, expectedRoomId);
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertEquals(2, requestTimes.size());
+		assertTrue(requestTimes.get(1) - requestTimes.get(0) >= retryAfterSeconds * 1000 - 50);
+	}
+
+	@Test
+	public void testSendNotificationRetriesServerErrors() throws Exception {
+		// Test parameters
+		String expectedRoomId = "1";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+		List<Integer> statusCodes = new ArrayList<Integer>();
+		statusCodes.add(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		statusCodes.add(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		statusCodes.add(HttpServletResponse.SC_NO_CONTENT);
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryRetryDelay(10);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SequenceHandler handler = new SequenceHandler(statusCodes);
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Execute
+		boolean delivered = processor.sendNotification(notification, expectedRoomId);
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertTrue(delivered);
+		assertEquals(3, handler.getRequestCount());
+		assertEquals(1, processor.getStatistics().getRoomStatistics(expectedRoomId).getDelivered());
+		assertEquals(2, processor.getStatistics().getRoomStatistics(expectedRoomId).getRetried());
+		assertEquals(0, processor.getStatistics().getRoomStatistics(expectedRoomId).getFailed());
+	}
+
+	@Test
+	public void testSendNotificationGivesUpAfterMaxAttempts() throws Exception {
+		// Test parameters
+		int maxAttempts = 3;
+		String expectedRoomId = "1";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+		List<Integer> statusCodes = new ArrayList<Integer>();
+		statusCodes.add(HttpServletResponse.SC_BAD_GATEWAY);
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryMaxAttempts(maxAttempts);
+		configuration.setDeliveryRetryDelay(10);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SequenceHandler handler = new SequenceHandler(statusCodes);
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Execute
+		boolean delivered = processor.sendNotification(notification, expectedRoomId);
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertFalse(delivered);
+		assertEquals(maxAttempts, handler.getRequestCount());
+		assertEquals(maxAttempts - 1, processor.getStatistics().getRoomStatistics(expectedRoomId).getRetried());
+		assertEquals(1, processor.getStatistics().getRoomStatistics(expectedRoomId).getFailed());
+	}
+
+	@Test
+	public void testSendNotificationDoesNotRetryClientErrors() throws Exception {
+		// Test parameters
+		String expectedRoomId = "1";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+		List<Integer> statusCodes = new ArrayList<Integer>();
+		statusCodes.add(HttpServletResponse.SC_NOT_FOUND);
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryRetryDelay(10);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SequenceHandler handler = new SequenceHandler(statusCodes);
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Execute
+		boolean delivered = processor.sendNotification(notification, expectedRoomId);
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertFalse(delivered);
+		assertEquals(1, handler.getRequestCount());
+		assertEquals(0, processor.getStatistics().getRoomStatistics(expectedRoomId).getRetried());
+		assertEquals(1, processor.getStatistics().getRoomStatistics(expectedRoomId).getFailed());
+	}
+
+	@Test
+	public void testSendNotificationStopsRetryingWhenBudgetExhausted() throws Exception {
+		// Test parameters
+		String expectedRoomId = "1";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+		List<Integer> statusCodes = new ArrayList<Integer>();
+		statusCodes.add(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+		// Setup; the budget allows a single retry and never earns more
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryMaxAttempts(10);
+		configuration.setDeliveryRetryDelay(10);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration, System.getProperties(), new HipChatRateLimiter(), new HipChatRetryBudget(0, 0, 1));
+		SequenceHandler handler = new SequenceHandler(statusCodes);
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Execute
+		boolean firstDelivered = processor.sendNotification(notification, expectedRoomId);
+		boolean secondDelivered = processor.sendNotification(notification, expectedRoomId);
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertFalse(firstDelivered);
+		assertFalse(secondDelivered);
+		assertEquals(3, handler.getRequestCount());
+		assertEquals(1, processor.getStatistics().getRoomStatistics(expectedRoomId).getRetried());
+		assertEquals(2, processor.getStatistics().getRoomStatistics(expectedRoomId).getRetryBudgetExhausted());
+		assertEquals(2, processor.getStatistics().getRoomStatistics(expectedRoomId).getFailed());
+	}
+
+	@Test
+	public void testSendNotificationShortCircuitsWhenCircuitOpen() throws Exception {
+		// Test parameters
+		String expectedRoomId = "12345";
+		String host = "localhost";
+		int port = 8080;
+		URI uri = new URI(String.format("http://%s:%s/", host, port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+		List<Integer> statusCodes = new ArrayList<Integer>();
+		statusCodes.add(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+
+		// Setup; a single failure opens the circuit
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryMaxAttempts(5);
+		configuration.setDeliveryRetryDelay(10);
+		HipChatCircuitBreaker circuitBreaker = new HipChatCircuitBreaker(2, 1, 50, 60000);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration, System.getProperties(), new HipChatRateLimiter(), new HipChatRetryBudget(), circuitBreaker);
+		SequenceHandler handler = new SequenceHandler(statusCodes);
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Execute; neither notification is failed, but both are handed back to be sent again later
+		int unavailable = 0;
+		for (int i = 0; i < 2; i++) {
+			try {
+				processor.sendNotification(notification, expectedRoomId);
+			} catch (HipChatApiUnavailableException e) {
+				unavailable++;
+			}
+		}
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertEquals(2, unavailable);
+		assertEquals(1, handler.getRequestCount());
+		assertEquals(HipChatCircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertEquals(0, processor.getStatistics().getRoomStatistics(expectedRoomId).getFailed());
+	}
+
+	@Test
+	public void testOpenCircuitDoesNotTakeRateLimitToken() throws Exception {
+		// Test parameters
+		String expectedRoomId = "12345";
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Setup; the circuit is opened by a single failure and the room allows a single request
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl("http://localhost:8080/");
+		configuration.setApiToken("token");
+		HipChatCircuitBreaker circuitBreaker = new HipChatCircuitBreaker(2, 1, 50, 60000);
+		circuitBreaker.onFailure();
+		HipChatRateLimiter rateLimiter = new HipChatRateLimiter(1, 60000, 1, 60000);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration, System.getProperties(), rateLimiter, new HipChatRetryBudget(), circuitBreaker);
+
+		// Execute
+		boolean unavailable = false;
+		try {
+			processor.sendNotification(notification, expectedRoomId);
+		} catch (HipChatApiUnavailableException e) {
+			unavailable = true;
+		}
+
+		// Clean up
+		processor.dispose();
+
+		// Test
+		assertTrue(unavailable);
+		assertEquals(HipChatCircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertEquals(0, rateLimiter.tryAcquire("token", expectedRoomId));
+	}
+
+	@Test
+	public void testSendNotificationTimesOutOnSlowServer() throws Exception {
+		// Test parameters
+		String expectedRoomId = "12345";
+		String host = "localhost";
+		int port = 8080;
+		URI uri = new URI(String.format("http://%s:%s/", host, port));
+		HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler
+		class SlowHandler extends AbstractHandler {
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryMaxAttempts(1);
+		configuration.setSocketTimeout(200);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new SlowHandler());
+		server.start();
+
+		// Execute
+		long start = System.currentTimeMillis();
+		boolean delivered = processor.sendNotification(notification, expectedRoomId);
+		long duration = System.currentTimeMillis() - start;
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertFalse(delivered);
+		assertTrue(duration < 1500);
+	}
+
+	@Test
+	public void testSendNotificationSurvivesConnectionPoolRebuild() throws Exception {
+		// Test parameters
+		final String expectedRoomId = "12345";
+		String host = "localhost";
+		int port = 8080;
+		URI uri = new URI(String.format("http://%s:%s/", host, port));
+		final HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler
+		class SlowHandler extends AbstractHandler {
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryMaxAttempts(1);
+		final HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new SlowHandler());
+		server.start();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		// Execute; the pool is rebuilt while the first notification is still waiting for its response
+		Future<Boolean> firstDelivered = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return processor.sendNotification(notification, expectedRoomId);
+			}
+		});
+		Thread.sleep(200);
+		configuration.setSocketTimeout(configuration.getSocketTimeout() + 1);
+		boolean secondDelivered = processor.sendNotification(notification, expectedRoomId);
+
+		// Clean up
+		boolean delivered = firstDelivered.get();
+		executor.shutdown();
+		processor.dispose();
+		server.stop();
+
+		// Test
+		assertTrue(delivered);
+		assertTrue(secondDelivered);
+		assertEquals(2, processor.getStatistics().getRoomStatistics(expectedRoomId).getDelivered());
+	}
+
+	@Test
+	public void testSendNotificationWaitsForConnectionWhenBlocking() throws Exception {
+		int delivered = sendConcurrentNotifications(HipChatDispatchOverflowPolicy.BLOCK, 12);
+		assertEquals(12, delivered);
+	}
+
+	@Test
+	public void testSendNotificationHandsBackWhenConnectionsExhausted() throws Exception {
+		// Deliveries beyond their share of the connections are handed back to be requeued, not failed
+		int delivered = sendConcurrentNotifications(HipChatDispatchOverflowPolicy.DROP_NEWEST, 12);
+		assertTrue(delivered < 12);
+		assertTrue(delivered > 0);
+	}
+
+	private static int sendConcurrentNotifications(HipChatDispatchOverflowPolicy policy, int count) throws Exception {
+		// Test parameters
+		final String expectedRoomId = "12345";
+		int port = 8080;
+		URI uri = new URI(String.format("http://localhost:%s/", port));
+		final HipChatRoomNotification notification = new HipChatRoomNotification("foo", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, true);
+
+		// Handler
+		class SlowHandler extends AbstractHandler {
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(uri.toString());
+		configuration.setApiToken("token");
+		configuration.setDeliveryMaxAttempts(1);
+		configuration.setConnectionRequestTimeout(10);
+		configuration.setDispatchOverflowPolicy(policy);
+		final HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		SimpleServer server = new SimpleServer(port, new SlowHandler());
+		server.start();
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+
+		// Execute
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < count; i++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					try {
+						return processor.sendNotification(notification, expectedRoomId);
+					} catch (HipChatApiUnavailableException e) {
+						return false;
+					}
+				}
+			}));
+		}
+		int delivered = 0;
+		for (Future<Boolean> result : results) {
+			if (result.get()) {
+				delivered++;
+			}
+		}
+
+		// Clean up
+		executor.shutdown();
+		processor.dispose();
+		server.stop();
+
+		// Nothing turned away counts as a failed delivery
+		assertEquals(0, processor.getStatistics().getRoomStatistics(expectedRoomId).getFailed());
+		return delivered;
+	}
+
 	@Test
 	public void testProxySupport() throws Exception {
 		// Test parameters
@@ -734,4 +1492,27 @@ public class HipChatApiProcessorTest {
 		assertTrue(processor.testAuthentication());
 	}
 		
+	// Responds with the given status codes in turn, repeating the last one
+	private static class SequenceHandler extends AbstractHandler {
+
+		private List<Integer> statusCodes;
+		private int requestCount;
+
+		public SequenceHandler(List<Integer> statusCodes) {
+			this.statusCodes = statusCodes;
+		}
+
+		public synchronized int getRequestCount() {
+			return this.requestCount;
+		}
+
+		@Override
+		public synchronized void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+			response.setStatus(this.statusCodes.get(Math.min(this.requestCount, this.statusCodes.size() - 1)));
+			this.requestCount++;
+	        baseRequest.setHandled(true);
+		}
+
+	}
+
 }
@@ -0,0 +1,357 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.BasicConfigurator;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
+import com.whatsthatlight.teamcity.hipchat.HipChatApiUnavailableException;
+import com.whatsthatlight.teamcity.hipchat.HipChatAsyncTransport;
+import com.whatsthatlight.teamcity.hipchat.HipChatBlockingTransport;
+import com.whatsthatlight.teamcity.hipchat.HipChatCircuitBreaker;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatDeliveryCallback;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
+import com.whatsthatlight.teamcity.hipchat.HipChatRateLimiter;
+import com.whatsthatlight.teamcity.hipchat.HipChatRetryBudget;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
+
+public class HipChatAsyncTransportTest {
+
+	private static final int PORT = 8080;
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testKeepsSeveralNotificationsInFlight() throws Exception {
+		GatedHandler handler = new GatedHandler(3);
+		SimpleServer server = new SimpleServer(PORT, handler);
+		server.start();
+		HipChatApiProcessor processor = new HipChatApiProcessor(createConfiguration());
+		HipChatAsyncTransport transport = new HipChatAsyncTransport(processor, 3);
+
+		// Execute; the server only answers once all three requests are open together, and sending never waits for it
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 3; i++) {
+			futures.add(transport.send(createNotification(String.format("message %s", i)), "room", null));
+		}
+
+		// Test
+		for (Future<Boolean> future : futures) {
+			AssertJUnit.assertTrue(future.get(5, TimeUnit.SECONDS));
+		}
+		AssertJUnit.assertTrue(transport.shutdown(5, TimeUnit.SECONDS));
+		AssertJUnit.assertEquals(0, transport.getInFlightCount());
+		AssertJUnit.assertEquals(3, processor.getStatistics().getRoomStatistics("room").getDelivered());
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+	}
+
+	@Test
+	public void testSenderWaitsWhenLimitReached() throws Exception {
+		GatedHandler handler = new GatedHandler(2);
+		SimpleServer server = new SimpleServer(PORT, handler);
+		server.start();
+		HipChatApiProcessor processor = new HipChatApiProcessor(createConfiguration());
+		final HipChatAsyncTransport transport = new HipChatAsyncTransport(processor, 1);
+		final AtomicReference<Future<Boolean>> second = new AtomicReference<Future<Boolean>>();
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				second.set(transport.send(createNotification("second"), "room", null));
+			}
+		});
+
+		// Execute; the second send is held back until the first has been answered
+		Future<Boolean> first = transport.send(createNotification("first"), "room", null);
+		sender.start();
+		sender.join(500);
+		AssertJUnit.assertTrue(sender.isAlive());
+		AssertJUnit.assertEquals(1, handler.getRequestCount());
+		handler.open();
+		sender.join(5000);
+
+		// Test
+		AssertJUnit.assertTrue(first.get(5, TimeUnit.SECONDS));
+		AssertJUnit.assertTrue(second.get().get(5, TimeUnit.SECONDS));
+		AssertJUnit.assertTrue(transport.shutdown(5, TimeUnit.SECONDS));
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+	}
+
+	@Test
+	public void testCallbackReportsOutcome() throws Exception {
+		// Handler
+		class RoomHandler extends AbstractHandler {
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				response.setStatus(target.contains("undelivered") ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_NO_CONTENT);
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup; the circuit of the second processor is already open
+		SimpleServer server = new SimpleServer(PORT, new RoomHandler());
+		server.start();
+		HipChatApiProcessor processor = new HipChatApiProcessor(createConfiguration());
+		HipChatAsyncTransport transport = new HipChatAsyncTransport(processor, 2);
+		HipChatCircuitBreaker circuitBreaker = new HipChatCircuitBreaker(2, 1, 50, 60000);
+		circuitBreaker.onFailure();
+		HipChatApiProcessor unavailableProcessor = new HipChatApiProcessor(createConfiguration(), System.getProperties(), new HipChatRateLimiter(), new HipChatRetryBudget(), circuitBreaker);
+		HipChatAsyncTransport unavailableTransport = new HipChatAsyncTransport(unavailableProcessor, 2);
+		RecordingCallback delivered = new RecordingCallback();
+		RecordingCallback undelivered = new RecordingCallback();
+		RecordingCallback unavailable = new RecordingCallback();
+
+		// Execute
+		transport.send(createNotification("delivered"), "delivered", delivered);
+		transport.send(createNotification("undelivered"), "undelivered", undelivered);
+		unavailableTransport.send(createNotification("unavailable"), "unavailable", unavailable);
+		AssertJUnit.assertTrue(transport.shutdown(5, TimeUnit.SECONDS));
+		AssertJUnit.assertTrue(unavailableTransport.shutdown(5, TimeUnit.SECONDS));
+
+		// Clean up
+		processor.dispose();
+		unavailableProcessor.dispose();
+		server.stop();
+
+		// Test
+		AssertJUnit.assertEquals(Boolean.TRUE, delivered.outcome.get());
+		AssertJUnit.assertEquals(Boolean.FALSE, undelivered.outcome.get());
+		AssertJUnit.assertNull(unavailable.outcome.get());
+		AssertJUnit.assertTrue(unavailable.exception.get() instanceof HipChatApiUnavailableException);
+	}
+
+	@Test
+	public void testRetriesServerErrors() throws Exception {
+		// Handler
+		class FlakyHandler extends AbstractHandler {
+
+			private final AtomicInteger requestCount = new AtomicInteger();
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				response.setStatus(this.requestCount.incrementAndGet() == 1 ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_NO_CONTENT);
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		FlakyHandler handler = new FlakyHandler();
+		SimpleServer server = new SimpleServer(PORT, handler);
+		server.start();
+		HipChatConfiguration configuration = createConfiguration();
+		configuration.setDeliveryMaxAttempts(3);
+		configuration.setDeliveryRetryDelay(10);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		HipChatAsyncTransport transport = new HipChatAsyncTransport(processor, 1);
+
+		// Execute
+		boolean delivered = transport.send(createNotification("message"), "room", null).get(5, TimeUnit.SECONDS);
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		AssertJUnit.assertTrue(delivered);
+		AssertJUnit.assertEquals(2, handler.requestCount.get());
+		AssertJUnit.assertEquals(1, processor.getStatistics().getRoomStatistics("room").getRetried());
+	}
+
+	@Test
+	public void testRateLimitedNotificationIsScheduledNotWaitedFor() throws Exception {
+		// Setup; one notification per second to the room
+		GatedHandler handler = new GatedHandler(1);
+		SimpleServer server = new SimpleServer(PORT, handler);
+		server.start();
+		HipChatRateLimiter rateLimiter = new HipChatRateLimiter(100, 1000, 1, 1000);
+		HipChatApiProcessor processor = new HipChatApiProcessor(createConfiguration(), System.getProperties(), rateLimiter);
+		HipChatAsyncTransport transport = new HipChatAsyncTransport(processor, 2);
+
+		// Execute
+		long start = System.currentTimeMillis();
+		Future<Boolean> first = transport.send(createNotification("first"), "room", null);
+		Future<Boolean> second = transport.send(createNotification("second"), "room", null);
+		long duration = System.currentTimeMillis() - start;
+		boolean firstDelivered = first.get(5, TimeUnit.SECONDS);
+		boolean secondPending = !second.isDone();
+		boolean secondDelivered = second.get(5, TimeUnit.SECONDS);
+		long deliveryDuration = System.currentTimeMillis() - start;
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test; the second is held back by the room's limit, but not on the sender's thread
+		AssertJUnit.assertTrue(duration < 500);
+		AssertJUnit.assertTrue(firstDelivered);
+		AssertJUnit.assertTrue(secondPending);
+		AssertJUnit.assertTrue(secondDelivered);
+		AssertJUnit.assertTrue(deliveryDuration >= 500);
+		AssertJUnit.assertEquals(2, handler.getRequestCount());
+	}
+
+	@Test
+	public void testDisposeCompletesScheduledRetries() throws Exception {
+		// Handler
+		class UnavailableHandler extends AbstractHandler {
+
+			private final CountDownLatch requested = new CountDownLatch(1);
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				baseRequest.setHandled(true);
+				this.requested.countDown();
+			}
+
+		}
+
+		// Setup; the retry is far enough off that it is still waiting when the processor goes
+		UnavailableHandler handler = new UnavailableHandler();
+		SimpleServer server = new SimpleServer(PORT, handler);
+		server.start();
+		HipChatConfiguration configuration = createConfiguration();
+		configuration.setDeliveryMaxAttempts(3);
+		configuration.setDeliveryRetryDelay(60000);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		HipChatAsyncTransport transport = new HipChatAsyncTransport(processor, 1);
+		RecordingCallback retried = new RecordingCallback();
+		transport.send(createNotification("retried"), "room", retried);
+		AssertJUnit.assertTrue(handler.requested.await(5, TimeUnit.SECONDS));
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((processor.getStatistics().getRoomStatistics("room") == null || processor.getStatistics().getRoomStatistics("room").getRetried() == 0) 
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		// Execute
+		processor.dispose();
+		RecordingCallback late = new RecordingCallback();
+		transport.send(createNotification("late"), "room", late);
+		boolean drained = transport.shutdown(5, TimeUnit.SECONDS);
+
+		// Clean up
+		server.stop();
+
+		// Test; both are handed back, to stay in the outbox, and the transport's slots are released
+		AssertJUnit.assertTrue(drained);
+		AssertJUnit.assertEquals(0, transport.getInFlightCount());
+		AssertJUnit.assertTrue(retried.exception.get() instanceof HipChatApiUnavailableException);
+		AssertJUnit.assertTrue(late.exception.get() instanceof HipChatApiUnavailableException);
+	}
+
+	@Test
+	public void testBlockingTransportDeliversOnCallersThread() throws Exception {
+		// Setup
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		HipChatApiProcessor processor = new HipChatApiProcessor(new HipChatConfiguration()) {
+			@Override
+			public boolean sendNotification(HipChatRoomNotification notification, String roomId) {
+				threads.add(Thread.currentThread().getName());
+				return true;
+			}
+		};
+		HipChatBlockingTransport transport = new HipChatBlockingTransport(processor);
+
+		// Execute
+		Future<Boolean> future = transport.send(createNotification("message"), "room", null);
+
+		// Test
+		AssertJUnit.assertTrue(future.isDone());
+		AssertJUnit.assertTrue(future.get());
+		AssertJUnit.assertEquals(Thread.currentThread().getName(), threads.get(0));
+	}
+
+	private static HipChatConfiguration createConfiguration() {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(String.format("http://localhost:%s/", PORT));
+		configuration.setApiToken("token");
+		return configuration;
+	}
+
+	private static HipChatRoomNotification createNotification(String message) {
+		return new HipChatRoomNotification(message, HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+	}
+
+	// Holds every request until the expected number are open together, or until opened explicitly
+	private static class GatedHandler extends AbstractHandler {
+
+		private final CountDownLatch gate;
+		private final AtomicInteger requestCount = new AtomicInteger();
+		public GatedHandler(int parties) {
+			this.gate = new CountDownLatch(parties);
+		}
+
+		public int getRequestCount() {
+			return this.requestCount.get();
+		}
+
+		public void open() {
+			while (this.gate.getCount() > 0) {
+				this.gate.countDown();
+			}
+		}
+
+		@Override
+		public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+			this.requestCount.incrementAndGet();
+			this.gate.countDown();
+			try {
+				response.setStatus(this.gate.await(5, TimeUnit.SECONDS) ? HttpServletResponse.SC_NO_CONTENT : HttpServletResponse.SC_GATEWAY_TIMEOUT);
+			} catch (InterruptedException e) {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+			baseRequest.setHandled(true);
+		}
+
+	}
+
+	private static class RecordingCallback implements HipChatDeliveryCallback {
+
+		public final AtomicReference<Boolean> outcome = new AtomicReference<Boolean>();
+		public final AtomicReference<Exception> exception = new AtomicReference<Exception>();
+
+		@Override
+		public void completed(boolean delivered) {
+			this.outcome.set(delivered);
+		}
+
+		@Override
+		public void failed(Exception e) {
+			this.exception.set(e);
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.junit.Assert.*;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatBranchFilter;
+
+public class HipChatBranchFilterTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testEmptyFilterAcceptsEverything() {
+		assertSame(HipChatBranchFilter.NONE, HipChatBranchFilter.compile(null));
+		assertSame(HipChatBranchFilter.NONE, HipChatBranchFilter.compile(" \n "));
+		assertTrue(HipChatBranchFilter.NONE.accept("master"));
+	}
+
+	@Test
+	public void testUnprefixedRegexExcludes() {
+		// Test parameters
+		HipChatBranchFilter filter = HipChatBranchFilter.compile("foo|bar");
+
+		// Test
+		assertFalse(filter.accept("foo"));
+		assertFalse(filter.accept("bar"));
+		assertTrue(filter.accept("foobar"));
+		assertTrue(filter.accept("master"));
+	}
+
+	@Test
+	public void testIncludeRulesExcludeUnmatchedBranches() {
+		// Test parameters
+		HipChatBranchFilter filter = HipChatBranchFilter.compile("+:master\n+:release/.*");
+
+		// Test
+		assertTrue(filter.accept("master"));
+		assertTrue(filter.accept("release/1.0"));
+		assertFalse(filter.accept("feature/foo"));
+	}
+
+	@Test
+	public void testLastMatchingRuleWins() {
+		// Test parameters
+		HipChatBranchFilter filter = HipChatBranchFilter.compile("+:release/.*\r\n-:release/.*-rc\n");
+
+		// Test
+		assertEquals(2, filter.size());
+		assertTrue(filter.accept("release/1.0"));
+		assertFalse(filter.accept("release/1.0-rc"));
+		assertFalse(filter.accept("master"));
+		// Cached decisions are the same
+		assertFalse(filter.accept("release/1.0-rc"));
+	}
+
+	@Test
+	public void testLaterFilterTakesPrecedence() {
+		// Test parameters
+		HipChatBranchFilter global = HipChatBranchFilter.compile("-:feature/.*");
+		HipChatBranchFilter project = HipChatBranchFilter.compile("+:feature/important");
+
+		// Execute
+		HipChatBranchFilter filter = global.then(project);
+
+		// Test
+		assertSame(global, global.then(HipChatBranchFilter.NONE));
+		assertSame(project, HipChatBranchFilter.NONE.then(project));
+		assertTrue(filter.accept("feature/important"));
+		assertFalse(filter.accept("feature/other"));
+		assertFalse(filter.accept("master"));
+	}
+
+	@Test
+	public void testInvalidRuleIsIgnored() {
+		// Test parameters
+		HipChatBranchFilter filter = HipChatBranchFilter.compile("-:feature/(\n-:master");
+
+		// Test
+		assertEquals(1, filter.size());
+		assertTrue(filter.accept("feature/("));
+		assertFalse(filter.accept("master"));
+	}
+
+}
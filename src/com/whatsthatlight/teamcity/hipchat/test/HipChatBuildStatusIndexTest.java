@@ -0,0 +1,160 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatBuildStatusIndex;
+
+public class HipChatBuildStatusIndexTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testSeedsFromHistoryOnlyOnMiss() {
+		List<SFinishedBuild> history = new ArrayList<SFinishedBuild>();
+		history.add(createFinishedBuild(1, null, Status.NORMAL));
+		history.add(createFinishedBuild(2, null, Status.FAILURE));
+		SBuildType buildType = createBuildType(history);
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex();
+
+		// Execute
+		Status first = index.update(createBuild(1, buildType, null, Status.NORMAL));
+		Status second = index.update(createBuild(3, buildType, null, Status.FAILURE));
+		Status third = index.update(createBuild(4, buildType, null, Status.NORMAL));
+
+		// Test
+		AssertJUnit.assertEquals(Status.FAILURE, first);
+		AssertJUnit.assertEquals(Status.NORMAL, second);
+		AssertJUnit.assertEquals(Status.FAILURE, third);
+		verify(buildType, times(1)).getHistory();
+	}
+
+	@Test
+	public void testTracksBranchesSeparately() {
+		List<SFinishedBuild> history = new ArrayList<SFinishedBuild>();
+		history.add(createFinishedBuild(1, "feature", Status.FAILURE));
+		history.add(createFinishedBuild(2, "master", Status.NORMAL));
+		SBuildType buildType = createBuildType(history);
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex();
+
+		// Execute
+		Status master = index.update(createBuild(3, buildType, "master", Status.FAILURE));
+		Status feature = index.update(createBuild(4, buildType, "feature", Status.NORMAL));
+		Status other = index.update(createBuild(5, buildType, "other", Status.NORMAL));
+		Status masterAgain = index.update(createBuild(6, buildType, "master", Status.NORMAL));
+
+		// Test
+		AssertJUnit.assertEquals(Status.NORMAL, master);
+		AssertJUnit.assertEquals(Status.FAILURE, feature);
+		AssertJUnit.assertNull(other);
+		AssertJUnit.assertEquals(Status.FAILURE, masterAgain);
+		AssertJUnit.assertEquals(3, index.size());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsedBranch() {
+		SBuildType buildType = createBuildType(new ArrayList<SFinishedBuild>());
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex(2);
+		index.update(createBuild(1, buildType, "a", Status.NORMAL));
+		index.update(createBuild(2, buildType, "b", Status.NORMAL));
+		index.update(createBuild(3, buildType, "a", Status.NORMAL));
+
+		// Execute; b is the least recently used, so makes way for c
+		index.update(createBuild(4, buildType, "c", Status.NORMAL));
+		Status a = index.update(createBuild(5, buildType, "a", Status.NORMAL));
+		Status b = index.update(createBuild(6, buildType, "b", Status.NORMAL));
+
+		// Test
+		AssertJUnit.assertEquals(2, index.size());
+		AssertJUnit.assertEquals(Status.NORMAL, a);
+		AssertJUnit.assertNull(b);
+	}
+
+	@Test
+	public void testPersonalBuildsAreNotRecorded() {
+		SBuildType buildType = createBuildType(new ArrayList<SFinishedBuild>());
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex();
+		index.update(createBuild(1, buildType, null, Status.NORMAL));
+		SRunningBuild personalBuild = createBuild(2, buildType, null, Status.FAILURE);
+		when(personalBuild.isPersonal()).thenReturn(true);
+
+		// Execute
+		Status personal = index.update(personalBuild);
+		Status next = index.update(createBuild(3, buildType, null, Status.NORMAL));
+
+		// Test; the next build is compared with the last one that wasn't personal
+		AssertJUnit.assertEquals(Status.NORMAL, personal);
+		AssertJUnit.assertEquals(Status.NORMAL, next);
+	}
+
+	@Test
+	public void testBuildIsRecordedOnce() {
+		SBuildType buildType = createBuildType(new ArrayList<SFinishedBuild>());
+		HipChatBuildStatusIndex index = new HipChatBuildStatusIndex();
+		index.update(createBuild(1, buildType, null, Status.NORMAL));
+		SRunningBuild interruptedBuild = createBuild(2, buildType, null, Status.FAILURE);
+
+		// Execute; reported as interrupted, then as finished
+		Status interrupted = index.update(interruptedBuild);
+		Status finished = index.update(interruptedBuild);
+		Status next = index.update(createBuild(3, buildType, null, Status.NORMAL));
+
+		// Test
+		AssertJUnit.assertEquals(Status.NORMAL, interrupted);
+		AssertJUnit.assertEquals(Status.NORMAL, finished);
+		AssertJUnit.assertEquals(Status.FAILURE, next);
+	}
+
+	private static SBuildType createBuildType(List<SFinishedBuild> history) {
+		SBuildType buildType = mock(SBuildType.class);
+		when(buildType.getHistory()).thenReturn(history);
+		return buildType;
+	}
+
+	private static SFinishedBuild createFinishedBuild(long buildId, String branchName, Status status) {
+		SFinishedBuild build = mock(SFinishedBuild.class);
+		when(build.getBuildId()).thenReturn(buildId);
+		when(build.getBuildStatus()).thenReturn(status);
+		Branch branch = createBranch(branchName);
+		when(build.getBranch()).thenReturn(branch);
+		return build;
+	}
+
+	private static SRunningBuild createBuild(long buildId, SBuildType buildType, String branchName, Status status) {
+		SRunningBuild build = mock(SRunningBuild.class);
+		when(build.getBuildId()).thenReturn(buildId);
+		when(build.getBuildTypeId()).thenReturn("bt1");
+		when(build.getBuildType()).thenReturn(buildType);
+		when(build.getBuildStatus()).thenReturn(status);
+		Branch branch = createBranch(branchName);
+		when(build.getBranch()).thenReturn(branch);
+		return build;
+	}
+
+	private static Branch createBranch(String branchName) {
+		if (branchName == null) {
+			return null;
+		}
+		Branch branch = mock(Branch.class);
+		when(branch.getName()).thenReturn(branchName);
+		return branch;
+	}
+
+}
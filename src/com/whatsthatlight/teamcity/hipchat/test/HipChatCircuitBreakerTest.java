@@ -0,0 +1,143 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatCircuitBreaker;
+
+public class HipChatCircuitBreakerTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testStaysClosedBelowMinimumCalls() {
+		HipChatCircuitBreaker breaker = new HipChatCircuitBreaker(10, 5, 50, 60000);
+
+		// Execute
+		for (int i = 0; i < 4; i++) {
+			AssertJUnit.assertTrue(breaker.tryAcquire());
+			breaker.onFailure();
+		}
+
+		// Test
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.CLOSED, breaker.getState());
+		AssertJUnit.assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testOpensWhenFailureRateExceedsThreshold() {
+		HipChatCircuitBreaker breaker = new HipChatCircuitBreaker(10, 4, 50, 60000);
+
+		// Execute
+		breaker.onSuccess();
+		breaker.onSuccess();
+		breaker.onFailure();
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.onFailure();
+
+		// Test
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.OPEN, breaker.getState());
+		AssertJUnit.assertFalse(breaker.tryAcquire());
+		AssertJUnit.assertTrue(breaker.getRemainingOpenMillis() > 0);
+	}
+
+	@Test
+	public void testOldOutcomesLeaveTheWindow() {
+		HipChatCircuitBreaker breaker = new HipChatCircuitBreaker(4, 4, 50, 60000);
+
+		// Execute; the early failure is pushed out by later successes
+		breaker.onFailure();
+		for (int i = 0; i < 4; i++) {
+			breaker.onSuccess();
+		}
+		breaker.onFailure();
+
+		// Test
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testHalfOpenAllowsSingleProbe() throws InterruptedException {
+		HipChatCircuitBreaker breaker = new HipChatCircuitBreaker(2, 1, 50, 50);
+		breaker.onFailure();
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.OPEN, breaker.getState());
+
+		// Execute
+		Thread.sleep(100);
+
+		// Test
+		AssertJUnit.assertEquals(0, breaker.getRemainingOpenMillis());
+		AssertJUnit.assertTrue(breaker.tryAcquire());
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.HALF_OPEN, breaker.getState());
+		AssertJUnit.assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testSuccessfulProbeClosesCircuit() throws InterruptedException {
+		HipChatCircuitBreaker breaker = new HipChatCircuitBreaker(2, 1, 50, 50);
+		breaker.onFailure();
+		Thread.sleep(100);
+		AssertJUnit.assertTrue(breaker.tryAcquire());
+
+		// Execute
+		breaker.onSuccess();
+
+		// Test
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.CLOSED, breaker.getState());
+		AssertJUnit.assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testFailedProbeReopensCircuit() throws InterruptedException {
+		HipChatCircuitBreaker breaker = new HipChatCircuitBreaker(2, 1, 50, 50);
+		breaker.onFailure();
+		Thread.sleep(100);
+		AssertJUnit.assertTrue(breaker.tryAcquire());
+
+		// Execute
+		breaker.onFailure();
+
+		// Test
+		AssertJUnit.assertEquals(HipChatCircuitBreaker.State.OPEN, breaker.getState());
+		AssertJUnit.assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testAwaitPermitWaitsForProbe() throws InterruptedException {
+		final HipChatCircuitBreaker breaker = new HipChatCircuitBreaker(2, 1, 50, 50);
+		breaker.onFailure();
+		Thread.sleep(100);
+		AssertJUnit.assertTrue(breaker.tryAcquire());
+		final CountDownLatch permitted = new CountDownLatch(1);
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					breaker.awaitPermit();
+					permitted.countDown();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		waiter.start();
+
+		// Execute; held back while the probe is in flight, let through once it succeeds
+		AssertJUnit.assertFalse(permitted.await(200, TimeUnit.MILLISECONDS));
+		breaker.onSuccess();
+
+		// Test
+		AssertJUnit.assertTrue(permitted.await(5, TimeUnit.SECONDS));
+		AssertJUnit.assertTrue(breaker.tryAcquire());
+	}
+
+}
@@ -20,10 +20,16 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.testng.annotations.Test;
 
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfigurationSnapshot;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
 
 public class HipChatConfigurationTest {
@@ -56,4 +62,167 @@ public class HipChatConfigurationTest {
 		assertEquals(expectedNotifyStatusLatter, projectConfigurationLatter.getNotifyStatus());
 	}
 
+	@Test
+	public void testProjectConfigurationIndexIsBuiltFromLoadedList() {
+		// Test parameters
+		String expectedProjectId = "project2";
+		String expectedRoomId = "room2";
+				
+		// Prepare; entries added to the list directly, as when deserialised
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.getProjectRoomMap().add(new HipChatProjectConfiguration("project1", "room1", true));
+		configuration.getProjectRoomMap().add(new HipChatProjectConfiguration(expectedProjectId, expectedRoomId, false));
+		
+		// Execute
+		HipChatProjectConfiguration projectConfiguration = configuration.getProjectConfiguration(expectedProjectId);
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("project3", "room3", true));
+		
+		// Test
+		assertEquals(expectedRoomId, projectConfiguration.getRoomId());
+		assertNull(configuration.getProjectConfiguration("project4"));
+		assertEquals("room3", configuration.getProjectConfiguration("project3").getRoomId());
+		assertEquals(3, configuration.getProjectRoomMap().size());
+	}
+
+	@Test
+	public void testSnapshotIsPublishedAtEndOfUpdate() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl("http://old.example.com/");
+		configuration.setApiToken("old_token");
+		HipChatConfigurationSnapshot before = configuration.getSnapshot();
+		
+		// Execute
+		configuration.beginUpdate();
+		configuration.setApiUrl("http://new.example.com/");
+		HipChatConfigurationSnapshot during = configuration.getSnapshot();
+		configuration.setApiToken("new_token");
+		configuration.endUpdate();
+		HipChatConfigurationSnapshot after = configuration.getSnapshot();
+		
+		// Test
+		assertSame(before, during);
+		assertEquals("http://old.example.com/", during.getApiUrl());
+		assertEquals("old_token", during.getApiToken());
+		assertEquals("http://new.example.com/", after.getApiUrl());
+		assertEquals("new_token", after.getApiToken());
+		assertSame(after, configuration.getSnapshot());
+	}
+	
+	@Test
+	public void testSnapshotFollowsChangesMadeOutsideAnUpdate() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("project1", "room1", true));
+		HipChatConfigurationSnapshot before = configuration.getSnapshot();
+		
+		// Execute
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("project1", "room2", true));
+		HipChatConfigurationSnapshot after = configuration.getSnapshot();
+		
+		// Test
+		assertEquals("room1", before.getProjectConfiguration("project1").getRoomId());
+		assertEquals("room2", after.getProjectConfiguration("project1").getRoomId());
+	}
+	
+	@Test
+	public void testSnapshotCannotBeChangedThroughWhatItReturns() {
+		// Prepare
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("project1", "room1", true));
+		HipChatConfigurationSnapshot snapshot = configuration.getSnapshot();
+		
+		// Execute
+		snapshot.getProjectConfiguration("project1").setRoomId("room2");
+		snapshot.getEvents().setBuildStartedStatus(false);
+		configuration.getProjectConfiguration("project1").setNotifyStatus(false);
+		configuration.getEvents().setBuildFailedStatus(false);
+		
+		// Test
+		assertEquals("room1", snapshot.getProjectConfiguration("project1").getRoomId());
+		assertTrue(snapshot.getProjectConfiguration("project1").getNotifyStatus());
+		assertTrue(snapshot.getEvents().getBuildStartedStatus());
+		assertTrue(snapshot.getEvents().getBuildFailedStatus());
+	}
+	
+	@Test
+	public void testConcurrentChangesAreAllPublished() throws InterruptedException {
+		// Test parameters
+		final int threads = 8;
+		final int changes = 1000;
+		
+		// Setup
+		final HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.getSnapshot();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final int thread = i;
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int change = 0; change < changes; change++) {
+						configuration.setDispatchQueueCapacity(thread * changes + change);
+						configuration.getSnapshot();
+					}
+				}
+			});
+			writer.start();
+			writers.add(writer);
+		}
+		
+		// Execute
+		start.countDown();
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		
+		// Test; no version bump was lost, so the last change is seen
+		assertEquals(configuration.getDispatchQueueCapacity(), configuration.getSnapshot().getDispatchQueueCapacity());
+	}
+	
+	@Test
+	public void testUpdateIsNeverPublishedHalfApplied() throws InterruptedException {
+		// Test parameters
+		final int updates = 2000;
+		
+		// Setup
+		final HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl("http://0.example.com/");
+		configuration.setApiToken("0");
+		final AtomicBoolean done = new AtomicBoolean();
+		final List<String> mismatches = Collections.synchronizedList(new ArrayList<String>());
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!done.get()) {
+					HipChatConfigurationSnapshot snapshot = configuration.getSnapshot();
+					if (!snapshot.getApiUrl().equals(String.format("http://%s.example.com/", snapshot.getApiToken()))) {
+						mismatches.add(String.format("%s %s", snapshot.getApiUrl(), snapshot.getApiToken()));
+					}
+				}
+			}
+		});
+		reader.start();
+		
+		// Execute
+		for (int update = 1; update <= updates; update++) {
+			configuration.beginUpdate();
+			configuration.setApiUrl(String.format("http://%s.example.com/", update));
+			configuration.setApiToken(String.valueOf(update));
+			configuration.endUpdate();
+		}
+		done.set(true);
+		reader.join();
+		
+		// Test
+		assertTrue(mismatches.toString(), mismatches.isEmpty());
+		assertEquals(String.valueOf(updates), configuration.getSnapshot().getApiToken());
+	}
+
 }
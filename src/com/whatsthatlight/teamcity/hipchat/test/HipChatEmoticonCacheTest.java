@@ -1,17 +1,34 @@
 package com.whatsthatlight.teamcity.hipchat.test;
 
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.BasicConfigurator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.AssertJUnit;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
@@ -19,16 +36,28 @@ import com.whatsthatlight.teamcity.hipchat.HipChatApiResultLinks;
 import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticon;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonCache;
+import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonResolution;
+import com.whatsthatlight.teamcity.hipchat.HipChatEmoticonSet;
 import com.whatsthatlight.teamcity.hipchat.HipChatEmoticons;
 
 public class HipChatEmoticonCacheTest {
 
+	private static final File SNAPSHOT_FILE = new File(HipChatEmoticonCache.SNAPSHOT_FILE);
+
 	@BeforeClass
 	public static void ClassSetup() {
 		// Set up a basic logger for debugging purposes
 		BasicConfigurator.configure();
 	}
 	
+	@BeforeMethod
+	@AfterMethod
+	public void deleteSnapshot() {
+		if (SNAPSHOT_FILE.exists()) {
+			AssertJUnit.assertTrue(SNAPSHOT_FILE.delete());
+		}
+	}
+	
 	@Test(enabled = false)
 	public void testReload() throws URISyntaxException {
 		String apiUrl = "https://api.hipchat.com/v2/";
@@ -68,6 +97,7 @@ public class HipChatEmoticonCacheTest {
 
 		// API call mocks
 		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(processor);
 		when(processor.getEmoticons(startIndex)).thenReturn(expectedEmoticons1);
 
 		// Execute
@@ -115,6 +145,7 @@ public class HipChatEmoticonCacheTest {
 
 		// API call mocks
 		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(processor);
 		when(processor.getEmoticons(startIndex1)).thenReturn(expectedEmoticons1);
 		when(processor.getEmoticons(startIndex2)).thenReturn(expectedEmoticons2);
 
@@ -130,4 +161,404 @@ public class HipChatEmoticonCacheTest {
 		verify(processor).getEmoticons(startIndex2);
 	}
 	
+	@Test
+	public void testRandomUrlOnlyPicksAvailableEmoticons() throws IOException {
+		// Test parameters; only two of the negative set exist
+		String expectedUrl1 = "http://example.com/boom.png";
+		String expectedUrl2 = "http://example.com/poo.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", expectedUrl1));
+		items.add(new HipChatEmoticon("id2", null, "poo", expectedUrl2));
+		items.add(new HipChatEmoticon("id3", null, "notinanyset", "http://example.com/other.png"));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, items.size(), new HipChatApiResultLinks(null, null, null));
+
+		// API call mocks
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(processor);
+		when(processor.getEmoticons(0)).thenReturn(emoticons);
+
+		// Execute
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor);
+		AssertJUnit.assertNull(emoticonCache.getRandomUrl(HipChatEmoticonSet.NEGATIVE));
+		emoticonCache.reload();
+
+		// Test
+		for (int i = 0; i < 50; i++) {
+			String url = emoticonCache.getRandomUrl(HipChatEmoticonSet.NEGATIVE);
+			AssertJUnit.assertTrue(url.equals(expectedUrl1) || url.equals(expectedUrl2));
+		}
+		AssertJUnit.assertNull(emoticonCache.getRandomUrl(HipChatEmoticonSet.INDIFFERENT));
+		AssertJUnit.assertEquals(expectedUrl2, emoticonCache.getRandomUrl(new String[] { "poo", "missing" }));
+	}
+
+	@Test
+	public void testFailedReloadKeepsCachedEmoticons() throws IOException {
+		// Test parameters
+		String expectedUrl = "http://example.com/boom.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", expectedUrl));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, items.size(), new HipChatApiResultLinks(null, null, null));
+
+		// API call mocks; the first reload succeeds, the second gets nothing back
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(processor);
+		when(processor.getEmoticons(0)).thenReturn(emoticons).thenReturn(null);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor);
+		emoticonCache.reload();
+
+		// Execute
+		int size = emoticonCache.reload();
+
+		// Test
+		AssertJUnit.assertEquals(1, size);
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.get("boom"));
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.getRandomUrl(HipChatEmoticonSet.NEGATIVE));
+	}
+	
+	@Test
+	public void testLookupsDuringReloadSeePreviousEmoticons() throws Exception {
+		// Test parameters
+		String expectedUrl = "http://example.com/boom.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", expectedUrl));
+		final HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, items.size(), new HipChatApiResultLinks(null, null, null));
+		final CountDownLatch reloading = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+
+		// API call mocks; the second reload blocks half way
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(processor);
+		when(processor.getEmoticons(0)).thenReturn(emoticons).thenAnswer(new Answer<HipChatEmoticons>() {
+			@Override
+			public HipChatEmoticons answer(InvocationOnMock invocation) throws Throwable {
+				reloading.countDown();
+				proceed.await();
+				return new HipChatEmoticons(new ArrayList<HipChatEmoticon>(), 0, 0, null);
+			}
+		});
+		final HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor);
+		emoticonCache.reload();
+
+		// Execute
+		Thread reloader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				emoticonCache.reload();
+			}
+		});
+		reloader.start();
+		AssertJUnit.assertTrue(reloading.await(10, TimeUnit.SECONDS));
+		String duringReload = emoticonCache.get("boom");
+		proceed.countDown();
+		reloader.join(10000);
+
+		// Test
+		AssertJUnit.assertEquals(expectedUrl, duringReload);
+		AssertJUnit.assertEquals(0, emoticonCache.getSize());
+	}
+
+	@Test
+	public void testScheduledRefreshReloadsInBackground() throws Exception {
+		// Test parameters
+		String expectedUrl = "http://example.com/boom.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", expectedUrl));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, items.size(), new HipChatApiResultLinks(null, null, null));
+
+		// API call mocks
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(processor);
+		when(processor.getEmoticons(0)).thenReturn(emoticons);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, new HipChatConfiguration());
+
+		// Execute
+		emoticonCache.scheduleRefresh();
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (emoticonCache.getLastRefreshTime() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		} finally {
+			emoticonCache.dispose();
+		}
+
+		// Test
+		AssertJUnit.assertTrue(emoticonCache.getLastRefreshTime() > 0);
+		AssertJUnit.assertTrue(emoticonCache.getLastRefreshDuration() >= 0);
+		AssertJUnit.assertEquals(1, emoticonCache.getSize());
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.get("boom"));
+	}
+	
+	@Test
+	public void testRefreshDelayStaysWithinJitter() {
+		// Test parameters
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setEmoticonRefreshInterval(60);
+		configuration.setEmoticonRefreshJitter(5);
+		long minimum = TimeUnit.MINUTES.toMillis(55);
+		long maximum = TimeUnit.MINUTES.toMillis(65);
+
+		for (int i = 0; i < 1000; i++) {
+			// Execute
+			long delay = HipChatEmoticonCache.getRefreshDelay(configuration.getSnapshot());
+			
+			// Test
+			AssertJUnit.assertTrue(delay >= minimum);
+			AssertJUnit.assertTrue(delay <= maximum);
+		}
+	}
+	
+	@Test
+	public void testRefreshDelayWithoutJitter() {
+		// Test parameters
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setEmoticonRefreshInterval(30);
+		configuration.setEmoticonRefreshJitter(0);
+
+		// Execute
+		long delay = HipChatEmoticonCache.getRefreshDelay(configuration.getSnapshot());
+
+		// Test
+		AssertJUnit.assertEquals(TimeUnit.MINUTES.toMillis(30), delay);
+	}
+
+	@Test
+	public void testSnapshotIsLoadedOnWarmStart() throws Exception {
+		// Test parameters
+		String expectedUrl = "http://example.com/boom.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", expectedUrl));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, items.size(), new HipChatApiResultLinks(null, null, null));
+		HipChatConfiguration configuration = new HipChatConfiguration();
+
+		// Saved by the previous run
+		HipChatApiProcessor previousProcessor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(previousProcessor);
+		when(previousProcessor.getEmoticons(0)).thenReturn(emoticons);
+		HipChatEmoticonCache previousCache = new HipChatEmoticonCache(previousProcessor, configuration, SNAPSHOT_FILE);
+		previousCache.reload();
+		AssertJUnit.assertTrue(SNAPSHOT_FILE.exists());
+
+		// HipChat can't be reached this time around
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, configuration, SNAPSHOT_FILE);
+
+		// Execute
+		emoticonCache.scheduleRefresh();
+		emoticonCache.dispose();
+
+		// Test
+		AssertJUnit.assertEquals(1, emoticonCache.getSize());
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.get("boom"));
+		AssertJUnit.assertEquals(previousCache.getLastRefreshTime(), emoticonCache.getLastRefreshTime());
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.getRandomUrl(HipChatEmoticonSet.NEGATIVE));
+	}
+	
+	@Test
+	public void testWarmStartRevalidatesSavedPagesWhenDue() throws Exception {
+		// Test parameters
+		int port = 8080;
+		final String eTag = "\"v1\"";
+		String expectedUrl = "http://example.com/boom.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", expectedUrl));
+		final byte[] json = new ObjectMapper().writeValueAsBytes(new HipChatEmoticons(items, 0, HipChatApiProcessor.MAX_RESULTS, null));
+
+		// Handler; answers a matching If-None-Match with 304
+		class Handler extends AbstractHandler {
+
+			public final List<String> ifNoneMatches = new ArrayList<String>();
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				this.ifNoneMatches.add(request.getHeader("If-None-Match"));
+				if (eTag.equals(request.getHeader("If-None-Match"))) {
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				} else {
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.setContentType("application/json");
+					response.setHeader("ETag", eTag);
+					response.getOutputStream().write(json);
+				}
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(String.format("http://localhost:%s/", port));
+		configuration.setApiToken("token");
+		configuration.setEmoticonResolution(HipChatEmoticonResolution.CATALOGUE);
+		Handler handler = new Handler();
+		SimpleServer server = new SimpleServer(port, handler);
+		server.start();
+
+		// Saved by the previous run
+		HipChatApiProcessor previousProcessor = new HipChatApiProcessor(configuration);
+		new HipChatEmoticonCache(previousProcessor, configuration, SNAPSHOT_FILE).reload();
+		previousProcessor.dispose();
+
+		// Execute; the saved emoticons are fresh, so nothing is downloaded on start
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, configuration, SNAPSHOT_FILE);
+		emoticonCache.scheduleRefresh();
+		Thread.sleep(500);
+		int requestsOnStart = handler.ifNoneMatches.size();
+		int size = emoticonCache.reload();
+
+		// Clean up
+		emoticonCache.dispose();
+		processor.dispose();
+		server.stop();
+
+		// Test
+		AssertJUnit.assertEquals(1, requestsOnStart);
+		AssertJUnit.assertEquals(2, handler.ifNoneMatches.size());
+		AssertJUnit.assertNull(handler.ifNoneMatches.get(0));
+		AssertJUnit.assertEquals(eTag, handler.ifNoneMatches.get(1));
+		AssertJUnit.assertEquals(1, size);
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.get("boom"));
+	}
+	
+	@Test
+	public void testSnapshotForAnotherServerIsIgnored() throws Exception {
+		// Test parameters
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", "http://example.com/boom.png"));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, items.size(), new HipChatApiResultLinks(null, null, null));
+		HipChatConfiguration previousConfiguration = new HipChatConfiguration();
+		previousConfiguration.setApiUrl("http://hipchat.example.com/v2/");
+		HipChatApiProcessor previousProcessor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(previousProcessor);
+		when(previousProcessor.getEmoticons(0)).thenReturn(emoticons);
+		new HipChatEmoticonCache(previousProcessor, previousConfiguration, SNAPSHOT_FILE).reload();
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, new HipChatConfiguration(), SNAPSHOT_FILE);
+
+		// Execute
+		emoticonCache.scheduleRefresh();
+		emoticonCache.dispose();
+
+		// Test
+		AssertJUnit.assertEquals(0, emoticonCache.getSize());
+		AssertJUnit.assertEquals(0, emoticonCache.getLastRefreshTime());
+	}
+	
+	@Test
+	public void testCorruptSnapshotIsIgnored() throws Exception {
+		// Test parameters
+		FileOutputStream output = new FileOutputStream(SNAPSHOT_FILE);
+		output.write(new byte[] { 0x48, 0x43, 0x45, 0x43, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x10, 0x01 });
+		output.close();
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, new HipChatConfiguration(), SNAPSHOT_FILE);
+
+		// Execute
+		emoticonCache.scheduleRefresh();
+		emoticonCache.dispose();
+
+		// Test
+		AssertJUnit.assertEquals(0, emoticonCache.getSize());
+	}
+
+	@Test
+	public void testSelectiveResolutionOnlyFetchesEmoticonsInTheSets() {
+		// Test parameters
+		String expectedUrl = "http://example.com/boom.png";
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setEmoticonResolution(HipChatEmoticonResolution.SELECTIVE);
+
+		// API call mocks; only one of the emoticons exists
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getEmoticon("boom")).thenReturn(new HipChatEmoticon("id1", null, "boom", expectedUrl));
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, configuration);
+
+		// Execute
+		int size = emoticonCache.reload();
+
+		// Test
+		AssertJUnit.assertEquals(1, size);
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.getRandomUrl(HipChatEmoticonSet.NEGATIVE));
+		AssertJUnit.assertNull(emoticonCache.getRandomUrl(HipChatEmoticonSet.POSITIVE));
+
+		// Verifications
+		verify(processor).getEmoticon("allthethings");
+		verify(processor).getEmoticon("boom");
+		verify(processor).getEmoticon("shrug");
+		verify(processor, never()).getEmoticons(anyInt());
+	}
+	
+	@Test
+	public void testSelectiveResolutionFallsBackToTheCatalogue() {
+		// Test parameters
+		String expectedUrl = "http://example.com/boom.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", expectedUrl));
+		items.add(new HipChatEmoticon("id2", null, "custom", "http://example.com/custom.png"));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, HipChatApiProcessor.MAX_RESULTS, new HipChatApiResultLinks(null, null, null));
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setEmoticonResolution(HipChatEmoticonResolution.SELECTIVE);
+
+		// API call mocks; the emoticons can't be looked up individually
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		stubEndOfCatalogue(processor);
+		when(processor.getEmoticons(0)).thenReturn(emoticons);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, configuration);
+
+		// Execute
+		int size = emoticonCache.reload();
+
+		// Test
+		AssertJUnit.assertEquals(2, size);
+		AssertJUnit.assertEquals(expectedUrl, emoticonCache.get("boom"));
+		verify(processor).getEmoticons(0);
+	}
+	
+	@Test
+	public void testEmoticonOutsideTheSetsLoadsTheCatalogueOnDemand() throws Exception {
+		// Test parameters
+		String expectedUrl = "http://example.com/custom.png";
+		List<HipChatEmoticon> items = new ArrayList<HipChatEmoticon>();
+		items.add(new HipChatEmoticon("id1", null, "boom", "http://example.com/boom.png"));
+		items.add(new HipChatEmoticon("id2", null, "custom", expectedUrl));
+		HipChatEmoticons emoticons = new HipChatEmoticons(items, 0, HipChatApiProcessor.MAX_RESULTS, new HipChatApiResultLinks(null, null, null));
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setEmoticonResolution(HipChatEmoticonResolution.SELECTIVE);
+
+		// API call mocks
+		HipChatApiProcessor processor = mock(HipChatApiProcessor.class);
+		when(processor.getEmoticon("boom")).thenReturn(new HipChatEmoticon("id1", null, "boom", "http://example.com/boom.png"));
+		stubEndOfCatalogue(processor);
+		when(processor.getEmoticons(0)).thenReturn(emoticons);
+		HipChatEmoticonCache emoticonCache = new HipChatEmoticonCache(processor, configuration);
+		emoticonCache.scheduleRefresh();
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (emoticonCache.getLastRefreshTime() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			AssertJUnit.assertEquals(1, emoticonCache.getSize());
+
+			// Execute
+			String missed = emoticonCache.get("custom");
+			String url = null;
+			while (url == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+				url = emoticonCache.get("custom");
+			}
+
+			// Test
+			AssertJUnit.assertNull(missed);
+			AssertJUnit.assertEquals(expectedUrl, url);
+		} finally {
+			emoticonCache.dispose();
+		}
+	}
+
+	private static void stubEndOfCatalogue(HipChatApiProcessor processor) {
+		// HipChat answers past the last emoticon with an empty page; a null page means the request failed
+		when(processor.getEmoticons(anyInt())).thenReturn(new HipChatEmoticons(new ArrayList<HipChatEmoticon>(), 0, 0, null));
+	}
+
 }
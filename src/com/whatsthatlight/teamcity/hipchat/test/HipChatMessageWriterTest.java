@@ -0,0 +1,120 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageWriter;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+public class HipChatMessageWriterTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testShortMessageIsUnchanged() throws IOException {
+		// Test parameters
+		String expectedMessage = "Build <b>Project :: Config</b> &amp; friends";
+		HipChatMessageWriter writer = new HipChatMessageWriter(100);
+
+		// Execute
+		writer.write(expectedMessage);
+
+		// Test
+		assertFalse(writer.isTruncated());
+		assertEquals(expectedMessage, writer.toString());
+	}
+
+	@Test
+	public void testLongMessageIsTruncated() throws IOException {
+		// Test parameters
+		HipChatMessageWriter writer = new HipChatMessageWriter(20);
+
+		// Execute
+		writer.write("0123456789");
+		writer.write("0123456789");
+		writer.write('x');
+		writer.write("more output that is discarded");
+
+		// Test
+		assertTrue(writer.isTruncated());
+		assertEquals("01234567890123456...", writer.toString());
+	}
+
+	@Test
+	public void testTruncationDoesNotSplitTag() throws IOException {
+		// Test parameters
+		HipChatMessageWriter writer = new HipChatMessageWriter(20);
+
+		// Execute
+		writer.write("Build <a href=\"http://example.com\">link</a>");
+
+		// Test
+		assertEquals("Build ...", writer.toString());
+	}
+
+	@Test
+	public void testTruncationDoesNotSplitEntity() throws IOException {
+		// Test parameters
+		HipChatMessageWriter writer = new HipChatMessageWriter(20);
+
+		// Execute
+		writer.write("Build 1 &amp; build 2 failed");
+
+		// Test
+		assertEquals("Build 1 &amp; bui...", writer.toString());
+
+		// Execute
+		writer.reset();
+		writer.write("Build 123456 &amp; 2 failed");
+
+		// Test
+		assertFalse(writer.toString().contains("&"));
+		assertEquals("Build 123456 ...", writer.toString());
+	}
+
+	@Test
+	public void testResetReusesWriter() throws IOException {
+		// Test parameters
+		HipChatMessageWriter writer = new HipChatMessageWriter(10);
+		writer.write("0123456789 and more");
+
+		// Execute
+		writer.reset();
+		writer.write("short");
+
+		// Test
+		assertFalse(writer.isTruncated());
+		assertEquals("short", writer.toString());
+	}
+
+	@Test
+	public void testTemplateRendersIntoWriter() throws IOException, TemplateException {
+		// Test parameters
+		HipChatMessageWriter writer = new HipChatMessageWriter();
+		Template template = new Template("template", new StringReader("<#list 1..5000 as i><b>${i}</b></#list>"), new Configuration());
+
+		// Execute
+		template.process(new Object(), writer);
+
+		// Test
+		String message = writer.toString();
+		assertTrue(writer.isTruncated());
+		assertTrue(message.length() <= 10000);
+		assertTrue(message.endsWith(HipChatMessageWriter.TRUNCATION_MARKER));
+		String body = message.substring(0, message.length() - HipChatMessageWriter.TRUNCATION_MARKER.length());
+		assertTrue(body.lastIndexOf('<') < body.lastIndexOf('>'));
+	}
+
+}
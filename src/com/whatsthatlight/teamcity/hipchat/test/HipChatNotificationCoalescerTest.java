@@ -0,0 +1,250 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationCoalescer;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationDispatcher;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationOutbox;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
+import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
+
+public class HipChatNotificationCoalescerTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testDisabledByDefault() throws URISyntaxException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		RecordingDispatcher dispatcher = new RecordingDispatcher(configuration);
+		HipChatNotificationCoalescer coalescer = new HipChatNotificationCoalescer(configuration, dispatcher);
+
+		// Execute
+		coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("one", HipChatMessageColour.SUCCESS, false), "room");
+		coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("two", HipChatMessageColour.SUCCESS, false), "room");
+
+		// Test
+		AssertJUnit.assertEquals(2, dispatcher.notifications.size());
+	}
+
+	@Test
+	public void testBurstIsCoalescedPerRoom() throws URISyntaxException, InterruptedException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(1);
+		RecordingDispatcher dispatcher = new RecordingDispatcher(configuration);
+		HipChatNotificationCoalescer coalescer = new HipChatNotificationCoalescer(configuration, dispatcher);
+
+		// Execute
+		coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("one", HipChatMessageColour.SUCCESS, false), "room1");
+		coalescer.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("two", HipChatMessageColour.ERROR, true), "room1");
+		coalescer.dispatch(TeamCityEvent.BUILD_INTERRUPTED, createNotification("three", HipChatMessageColour.WARNING, false), "room1");
+		coalescer.dispatch(TeamCityEvent.BUILD_STARTED, createNotification("four", HipChatMessageColour.INFO, false), "room2");
+		AssertJUnit.assertEquals(0, dispatcher.notifications.size());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (dispatcher.notifications.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		// Test
+		AssertJUnit.assertEquals(2, dispatcher.notifications.size());
+		int room1 = dispatcher.roomIds.indexOf("room1");
+		HipChatRoomNotification digest = dispatcher.notifications.get(room1);
+		AssertJUnit.assertEquals("one<br/>two<br/>three", digest.message);
+		AssertJUnit.assertEquals(HipChatMessageColour.ERROR, digest.color);
+		AssertJUnit.assertEquals(HipChatMessageFormat.HTML, digest.messageFormat);
+		AssertJUnit.assertTrue(digest.notify);
+		AssertJUnit.assertEquals(TeamCityEvent.BUILD_FAILED, dispatcher.events.get(room1));
+		HipChatRoomNotification single = dispatcher.notifications.get(dispatcher.roomIds.indexOf("room2"));
+		AssertJUnit.assertEquals("four", single.message);
+		AssertJUnit.assertEquals(HipChatMessageColour.INFO, single.color);
+	}
+
+	@Test
+	public void testDigestIsSplitAtMaximumMessageLength() throws URISyntaxException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(60);
+		RecordingDispatcher dispatcher = new RecordingDispatcher(configuration);
+		HipChatNotificationCoalescer coalescer = new HipChatNotificationCoalescer(configuration, dispatcher);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < HipChatRoomNotification.MAX_MESSAGE_LENGTH / 3; i++) {
+			builder.append('x');
+		}
+		String message = builder.toString();
+
+		// Execute
+		for (int i = 0; i < 4; i++) {
+			coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification(message, HipChatMessageColour.SUCCESS, false), "room");
+		}
+		coalescer.flush("room");
+
+		// Test
+		AssertJUnit.assertEquals(2, dispatcher.notifications.size());
+		for (HipChatRoomNotification notification : dispatcher.notifications) {
+			AssertJUnit.assertTrue(notification.message.length() <= HipChatRoomNotification.MAX_MESSAGE_LENGTH);
+		}
+	}
+
+	@Test
+	public void testDispatchNowFlushesRoomFirst() throws URISyntaxException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(60);
+		RecordingDispatcher dispatcher = new RecordingDispatcher(configuration);
+		HipChatNotificationCoalescer coalescer = new HipChatNotificationCoalescer(configuration, dispatcher);
+
+		// Execute
+		coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("build", HipChatMessageColour.SUCCESS, false), "room");
+		coalescer.dispatchNow(TeamCityEvent.SERVER_SHUTDOWN, createNotification("shutdown", HipChatMessageColour.NEUTRAL, false), "room");
+		coalescer.shutdown();
+		coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("late", HipChatMessageColour.SUCCESS, false), "room");
+
+		// Test
+		AssertJUnit.assertEquals(3, dispatcher.notifications.size());
+		AssertJUnit.assertEquals("build", dispatcher.notifications.get(0).message);
+		AssertJUnit.assertEquals("shutdown", dispatcher.notifications.get(1).message);
+		AssertJUnit.assertEquals("late", dispatcher.notifications.get(2).message);
+	}
+
+	@Test
+	public void testPendingNotificationsAreJournalled() throws URISyntaxException, IOException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(60);
+		File outboxDirectory = new File("coalescer-outbox");
+		deleteDirectory(outboxDirectory);
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(outboxDirectory);
+		RecordingDispatcher dispatcher = new RecordingDispatcher(configuration, outbox);
+		HipChatNotificationCoalescer coalescer = new HipChatNotificationCoalescer(configuration, dispatcher);
+
+		// Execute
+		coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("one", HipChatMessageColour.SUCCESS, false), "room");
+		coalescer.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("two", HipChatMessageColour.ERROR, false), "room");
+		int pendingBeforeFlush = outbox.getPendingCount();
+		coalescer.flush("room");
+		int pendingAfterFlush = outbox.getPendingCount();
+		outbox.close();
+		HipChatNotificationOutbox recoveredOutbox = new HipChatNotificationOutbox(outboxDirectory);
+		List<HipChatNotificationOutbox.Entry> entries = recoveredOutbox.recover();
+		recoveredOutbox.close();
+		deleteDirectory(outboxDirectory);
+
+		// Test; the recording dispatcher never delivers, so only the digest is left
+		AssertJUnit.assertEquals(2, pendingBeforeFlush);
+		AssertJUnit.assertEquals(1, pendingAfterFlush);
+		AssertJUnit.assertEquals(1, entries.size());
+		AssertJUnit.assertEquals("one<br/>two", entries.get(0).getNotification().message);
+	}
+
+	@Test
+	public void testSlowJournalDoesNotHoldUpOtherRooms() throws URISyntaxException, InterruptedException {
+		// Test parameters
+		final CountDownLatch journalling = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		// Setup
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setCoalescingWindow(60);
+		RecordingDispatcher dispatcher = new RecordingDispatcher(configuration) {
+			@Override
+			public long journal(TeamCityEvent event, HipChatRoomNotification notification, String roomId) {
+				if (roomId.equals("slow")) {
+					journalling.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.journal(event, notification, roomId);
+			}
+		};
+		final HipChatNotificationCoalescer coalescer = new HipChatNotificationCoalescer(configuration, dispatcher);
+		Thread slow = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("slow", HipChatMessageColour.SUCCESS, false), "slow");
+			}
+		});
+		slow.start();
+		AssertJUnit.assertTrue(journalling.await(5, TimeUnit.SECONDS));
+
+		// Execute
+		final CountDownLatch flushed = new CountDownLatch(1);
+		Thread fast = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				coalescer.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("fast", HipChatMessageColour.SUCCESS, false), "fast");
+				coalescer.flush("fast");
+				flushed.countDown();
+			}
+		});
+		fast.start();
+		boolean fastFlushed = flushed.await(5, TimeUnit.SECONDS);
+
+		// Clean up
+		release.countDown();
+		slow.join(5000);
+		fast.join(5000);
+		coalescer.shutdown();
+
+		// Test
+		AssertJUnit.assertTrue(fastFlushed);
+		AssertJUnit.assertEquals(2, dispatcher.notifications.size());
+		AssertJUnit.assertEquals("fast", dispatcher.notifications.get(0).message);
+		AssertJUnit.assertEquals("slow", dispatcher.notifications.get(1).message);
+	}
+
+	private static void deleteDirectory(File directory) {
+		if (directory.exists()) {
+			for (File file : directory.listFiles()) {
+				AssertJUnit.assertTrue(file.delete());
+			}
+			AssertJUnit.assertTrue(directory.delete());
+		}
+	}
+
+	private static HipChatRoomNotification createNotification(String message, String colour, boolean notify) {
+		return new HipChatRoomNotification(message, HipChatMessageFormat.HTML, colour, notify);
+	}
+
+	private static class RecordingDispatcher extends HipChatNotificationDispatcher {
+
+		public final List<TeamCityEvent> events = Collections.synchronizedList(new ArrayList<TeamCityEvent>());
+		public final List<HipChatRoomNotification> notifications = Collections.synchronizedList(new ArrayList<HipChatRoomNotification>());
+		public final List<String> roomIds = Collections.synchronizedList(new ArrayList<String>());
+
+		public RecordingDispatcher(HipChatConfiguration configuration) throws URISyntaxException {
+			this(configuration, null);
+		}
+
+		public RecordingDispatcher(HipChatConfiguration configuration, HipChatNotificationOutbox outbox) throws URISyntaxException {
+			super(configuration, new HipChatApiProcessor(configuration), outbox);
+		}
+
+		@Override
+		public synchronized void dispatch(TeamCityEvent event, HipChatRoomNotification notification, String roomId, long outboxId) {
+			this.events.add(event);
+			this.notifications.add(notification);
+			this.roomIds.add(roomId);
+		}
+
+	}
+
+}
@@ -0,0 +1,395 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.BasicConfigurator;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatApiProcessor;
+import com.whatsthatlight.teamcity.hipchat.HipChatApiUnavailableException;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatDispatchOverflowPolicy;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationDispatcher;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationOutbox;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
+import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
+
+public class HipChatNotificationDispatcherTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testDispatchIsAsynchronous() throws URISyntaxException, InterruptedException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		BlockingProcessor processor = new BlockingProcessor(configuration);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+
+		// Execute; the processor blocks, so returning at all shows the caller isn't held up
+		dispatcher.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("first"), "room");
+		AssertJUnit.assertTrue(processor.awaitStarted());
+		AssertJUnit.assertFalse(processor.threads.contains(Thread.currentThread().getName()));
+		processor.release();
+		dispatcher.shutdown();
+
+		// Test
+		AssertJUnit.assertEquals(1, processor.messages.size());
+		AssertJUnit.assertEquals("first", processor.messages.get(0));
+	}
+
+	@Test
+	public void testDeliveryConcurrencyKeepsSeveralInFlight() throws Exception {
+		// Handler; only answers once all three requests are open together
+		final CountDownLatch gate = new CountDownLatch(3);
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		class GatedHandler extends AbstractHandler {
+
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+				gate.countDown();
+				try {
+					response.setStatus(gate.await(5, TimeUnit.SECONDS) ? HttpServletResponse.SC_NO_CONTENT : HttpServletResponse.SC_GATEWAY_TIMEOUT);
+				} catch (InterruptedException e) {
+					response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				}
+				messages.add(target);
+				baseRequest.setHandled(true);
+			}
+
+		}
+
+		// Setup
+		int port = 8080;
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setApiUrl(String.format("http://localhost:%s/", port));
+		configuration.setApiToken("token");
+		configuration.setDeliveryConcurrency(3);
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		SimpleServer server = new SimpleServer(port, new GatedHandler());
+		server.start();
+
+		// Execute; a single dispatch thread hands every notification to the transport
+		for (int i = 0; i < 3; i++) {
+			dispatcher.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification(String.format("message %s", i)), "room");
+		}
+		AssertJUnit.assertTrue(gate.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+
+		// Clean up
+		processor.dispose();
+		server.stop();
+
+		// Test
+		AssertJUnit.assertEquals(3, messages.size());
+		AssertJUnit.assertEquals(3, processor.getStatistics().getRoomStatistics("room").getDelivered());
+		AssertJUnit.assertEquals(0, dispatcher.getInFlightCount());
+	}
+
+	@Test
+	public void testDropNewest() throws URISyntaxException, InterruptedException {
+		List<String> messages = dispatchToFullQueue(HipChatDispatchOverflowPolicy.DROP_NEWEST, TeamCityEvent.BUILD_SUCCESSFUL);
+		AssertJUnit.assertEquals(3, messages.size());
+		AssertJUnit.assertEquals("in-flight", messages.get(0));
+		AssertJUnit.assertEquals("queued1", messages.get(1));
+		AssertJUnit.assertEquals("queued2", messages.get(2));
+	}
+
+	@Test
+	public void testDropOldest() throws URISyntaxException, InterruptedException {
+		List<String> messages = dispatchToFullQueue(HipChatDispatchOverflowPolicy.DROP_OLDEST, TeamCityEvent.BUILD_SUCCESSFUL);
+		AssertJUnit.assertEquals(3, messages.size());
+		AssertJUnit.assertEquals("in-flight", messages.get(0));
+		AssertJUnit.assertEquals("queued2", messages.get(1));
+		AssertJUnit.assertEquals("overflow", messages.get(2));
+	}
+
+	@Test
+	public void testDropBuildStartedFirst() throws URISyntaxException, InterruptedException {
+		// The second queued notification is a build started event and must be the one evicted
+		List<String> messages = dispatchToFullQueue(HipChatDispatchOverflowPolicy.DROP_BUILD_STARTED_FIRST, TeamCityEvent.BUILD_SUCCESSFUL);
+		AssertJUnit.assertEquals(3, messages.size());
+		AssertJUnit.assertEquals("in-flight", messages.get(0));
+		AssertJUnit.assertEquals("queued1", messages.get(1));
+		AssertJUnit.assertEquals("overflow", messages.get(2));
+	}
+
+	@Test
+	public void testDropBuildStartedFirstDropsIncomingBuildStarted() throws URISyntaxException, InterruptedException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDispatchQueueCapacity(1);
+		configuration.setDispatchOverflowPolicy(HipChatDispatchOverflowPolicy.DROP_BUILD_STARTED_FIRST);
+		BlockingProcessor processor = new BlockingProcessor(configuration);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("in-flight"), "room");
+		AssertJUnit.assertTrue(processor.awaitStarted());
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("queued"), "room");
+
+		// Execute
+		dispatcher.dispatch(TeamCityEvent.BUILD_STARTED, createNotification("overflow"), "room");
+		processor.release();
+		dispatcher.shutdown();
+
+		// Test
+		AssertJUnit.assertEquals(1, dispatcher.getDroppedCount());
+		AssertJUnit.assertEquals(2, processor.messages.size());
+		AssertJUnit.assertEquals("queued", processor.messages.get(1));
+	}
+
+	@Test
+	public void testBlock() throws URISyntaxException, InterruptedException {
+		List<String> messages = dispatchToFullQueue(HipChatDispatchOverflowPolicy.BLOCK, TeamCityEvent.BUILD_SUCCESSFUL);
+		AssertJUnit.assertEquals(4, messages.size());
+		AssertJUnit.assertEquals("overflow", messages.get(3));
+	}
+
+	@Test
+	public void testShutdownAbandonsQueueAfterTimeout() throws URISyntaxException, InterruptedException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDispatchShutdownTimeout(1);
+		BlockingProcessor processor = new BlockingProcessor(configuration);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("in-flight"), "room");
+		AssertJUnit.assertTrue(processor.awaitStarted());
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("queued"), "room");
+
+		// Execute; the processor never completes, so the deadline must cut the drain short
+		long start = System.currentTimeMillis();
+		dispatcher.shutdown();
+		long duration = System.currentTimeMillis() - start;
+
+		// Test
+		AssertJUnit.assertTrue(duration < 5000);
+		AssertJUnit.assertEquals(1, dispatcher.getDroppedCount());
+		AssertJUnit.assertEquals(0, processor.messages.size());
+	}
+
+	@Test
+	public void testDispatchAfterShutdownIsLeftInOutbox() throws URISyntaxException, IOException {
+		File outboxDirectory = new File("late-outbox");
+		deleteDirectory(outboxDirectory);
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		BlockingProcessor processor = new BlockingProcessor(configuration);
+		processor.release();
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(outboxDirectory);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor, outbox);
+		dispatcher.shutdown();
+
+		// Execute
+		dispatcher.dispatch(TeamCityEvent.SERVER_SHUTDOWN, createNotification("late"), "room");
+		outbox.close();
+		HipChatNotificationOutbox recoveredOutbox = new HipChatNotificationOutbox(outboxDirectory);
+		List<HipChatNotificationOutbox.Entry> entries = recoveredOutbox.recover();
+		recoveredOutbox.close();
+		deleteDirectory(outboxDirectory);
+
+		// Test; not sent on the caller's thread, but replayed on the next start-up
+		AssertJUnit.assertEquals(0, processor.messages.size());
+		AssertJUnit.assertEquals(1, entries.size());
+		AssertJUnit.assertEquals("late", entries.get(0).getNotification().message);
+	}
+
+	@Test
+	public void testUndeliveredNotificationsAreReplayedFromOutbox() throws URISyntaxException, IOException {
+		File outboxDirectory = new File("outbox");
+		deleteDirectory(outboxDirectory);
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		final List<String> sentMessages = Collections.synchronizedList(new ArrayList<String>());
+		HipChatApiProcessor failingProcessor = new HipChatApiProcessor(configuration) {
+			@Override
+			public boolean sendNotification(HipChatRoomNotification notification, String roomId) throws HipChatApiUnavailableException {
+				sentMessages.add(notification.message);
+				if (notification.message.equals("undelivered")) {
+					// Handed back, and still not sent when the server stops
+					throw new HipChatApiUnavailableException("Circuit open");
+				}
+				return true;
+			}
+		};
+		HipChatNotificationOutbox failingOutbox = new HipChatNotificationOutbox(outboxDirectory);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, failingProcessor, failingOutbox);
+		dispatcher.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("delivered"), "room");
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("undelivered"), "room");
+		dispatcher.shutdown();
+		failingOutbox.close();
+		AssertJUnit.assertEquals(2, sentMessages.size());
+
+		// Execute; as if restarted
+		BlockingProcessor processor = new BlockingProcessor(configuration);
+		processor.release();
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(outboxDirectory);
+		HipChatNotificationDispatcher restartedDispatcher = new HipChatNotificationDispatcher(configuration, processor, outbox);
+		int recovered = restartedDispatcher.recover();
+		restartedDispatcher.shutdown();
+
+		// Test
+		AssertJUnit.assertEquals(1, recovered);
+		AssertJUnit.assertEquals(1, processor.messages.size());
+		AssertJUnit.assertEquals("undelivered", processor.messages.get(0));
+		AssertJUnit.assertEquals(0, outbox.getPendingCount());
+		outbox.close();
+		deleteDirectory(outboxDirectory);
+	}
+
+	@Test
+	public void testRejectedNotificationIsNotReplayed() throws URISyntaxException, IOException {
+		File outboxDirectory = new File("outbox");
+		deleteDirectory(outboxDirectory);
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		HipChatApiProcessor rejectingProcessor = new HipChatApiProcessor(configuration) {
+			@Override
+			public boolean sendNotification(HipChatRoomNotification notification, String roomId) {
+				// As for a 400 or a 404
+				return false;
+			}
+		};
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(outboxDirectory);
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, rejectingProcessor, outbox);
+
+		// Execute
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("rejected"), "missing");
+		dispatcher.shutdown();
+		int pending = outbox.getPendingCount();
+		outbox.close();
+		HipChatNotificationOutbox restartedOutbox = new HipChatNotificationOutbox(outboxDirectory);
+		int recovered = new HipChatNotificationDispatcher(configuration, rejectingProcessor, restartedOutbox).recover();
+		restartedOutbox.close();
+
+		// Test
+		AssertJUnit.assertEquals(0, pending);
+		AssertJUnit.assertEquals(0, recovered);
+		deleteDirectory(outboxDirectory);
+	}
+
+	private static List<String> dispatchToFullQueue(HipChatDispatchOverflowPolicy policy, final TeamCityEvent overflowEvent) throws URISyntaxException, InterruptedException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDispatchThreads(1);
+		configuration.setDispatchQueueCapacity(2);
+		configuration.setDispatchOverflowPolicy(policy);
+		final BlockingProcessor processor = new BlockingProcessor(configuration);
+		final HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+
+		// Occupy the single worker, then fill the queue
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("in-flight"), "room");
+		AssertJUnit.assertTrue(processor.awaitStarted());
+		dispatcher.dispatch(TeamCityEvent.BUILD_FAILED, createNotification("queued1"), "room");
+		dispatcher.dispatch(TeamCityEvent.BUILD_STARTED, createNotification("queued2"), "room");
+		AssertJUnit.assertEquals(2, dispatcher.getQueueSize());
+
+		// Overflow; this blocks under the block policy, so do it on another thread
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatcher.dispatch(overflowEvent, createNotification("overflow"), "room");
+			}
+		});
+		producer.start();
+		producer.join(500);
+		AssertJUnit.assertEquals(policy == HipChatDispatchOverflowPolicy.BLOCK, producer.isAlive());
+
+		processor.release();
+		producer.join(5000);
+		dispatcher.shutdown();
+		AssertJUnit.assertEquals(policy == HipChatDispatchOverflowPolicy.BLOCK ? 0 : 1, dispatcher.getDroppedCount());
+		return processor.messages;
+	}
+
+	@Test
+	public void testUnavailableNotificationIsRequeued() throws URISyntaxException, InterruptedException {
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		final CountDownLatch delivered = new CountDownLatch(1);
+		final List<String> attempts = Collections.synchronizedList(new ArrayList<String>());
+		HipChatApiProcessor processor = new HipChatApiProcessor(configuration) {
+			@Override
+			public boolean sendNotification(HipChatRoomNotification notification, String roomId) throws HipChatApiUnavailableException {
+				// Turned away the first time, as when another task holds the half-open probe
+				attempts.add(notification.message);
+				if (attempts.size() == 1) {
+					throw new HipChatApiUnavailableException("HipChat circuit open");
+				}
+				delivered.countDown();
+				return true;
+			}
+		};
+		HipChatNotificationDispatcher dispatcher = new HipChatNotificationDispatcher(configuration, processor);
+
+		// Execute
+		dispatcher.dispatch(TeamCityEvent.BUILD_SUCCESSFUL, createNotification("first"), "room");
+		boolean sent = delivered.await(5, TimeUnit.SECONDS);
+		dispatcher.shutdown();
+
+		// Test
+		AssertJUnit.assertTrue(sent);
+		AssertJUnit.assertEquals(2, attempts.size());
+		AssertJUnit.assertEquals("first", attempts.get(1));
+		AssertJUnit.assertEquals(0, dispatcher.getDroppedCount());
+	}
+
+	private static void deleteDirectory(File directory) {
+		if (directory.exists()) {
+			for (File file : directory.listFiles()) {
+				AssertJUnit.assertTrue(file.delete());
+			}
+			AssertJUnit.assertTrue(directory.delete());
+		}
+	}
+
+	private static HipChatRoomNotification createNotification(String message) {
+		return new HipChatRoomNotification(message, HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+	}
+
+	private static class BlockingProcessor extends HipChatApiProcessor {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch released = new CountDownLatch(1);
+		public final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+		public final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+		public BlockingProcessor(HipChatConfiguration configuration) throws URISyntaxException {
+			super(configuration);
+		}
+
+		public boolean awaitStarted() throws InterruptedException {
+			return this.started.await(5, TimeUnit.SECONDS);
+		}
+
+		public void release() {
+			this.released.countDown();
+		}
+
+		@Override
+		public boolean sendNotification(HipChatRoomNotification notification, String roomId) {
+			this.threads.add(Thread.currentThread().getName());
+			this.started.countDown();
+			try {
+				this.released.await();
+			} catch (InterruptedException e) {
+				return false;
+			}
+			this.messages.add(notification.message);
+			return true;
+		}
+
+	}
+
+}
@@ -3,9 +3,11 @@ package com.whatsthatlight.teamcity.hipchat.test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -20,6 +22,7 @@ import org.testng.annotations.DataProvider;
 import org.apache.log4j.BasicConfigurator;
 
 import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateVariables;
 import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
 
 import freemarker.cache.StringTemplateLoader;
@@ -175,6 +178,138 @@ public class HipChatNotificationMessageTemplatesTest {
 	    assertEquals(expectedTemplateString, actualTemplate.toString());
 	}
 	
+	@Test
+	public void testWrittenTemplateIsAnalysed() throws IOException {
+		// Parameters
+		String expectedConfigDir = ".";
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(expectedConfigDir);
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		
+		// Pre-conditions; the default template only needs the contributors
+		templates.readTemplate(TeamCityEvent.BUILD_FAILED);
+		assertEquals(EnumSet.of(HipChatTemplateVariables.Stage.CONTRIBUTORS), templates.getTemplateVariables(TeamCityEvent.BUILD_FAILED).getStages());
+		
+		// Execute
+		templates.writeTemplate(TeamCityEvent.BUILD_FAILED, "${fullName} failed ${noOfFailedTests} test(s)");
+		HipChatTemplateVariables variables = templates.getTemplateVariables(TeamCityEvent.BUILD_FAILED);
+		
+		// Clean up
+		assertTrue(new File("hipchat", "buildFailedTemplate.ftl").delete());
+		
+		// Test
+		assertTrue(variables.requires(HipChatTemplateVariables.Stage.TEST_STATISTICS));
+		assertFalse(variables.requires(HipChatTemplateVariables.Stage.CONTRIBUTORS));
+		assertFalse(variables.requires(HipChatTemplateVariables.Stage.DISCOVERED_STATISTICS));
+	}
+	
+	@Test
+	public void testCompiledTemplateKeepsTemplateAndVariablesTogether() throws IOException {
+		// Parameters
+		String expectedConfigDir = ".";
+		String expectedTemplateString = "${fullName} was cancelled by ${cancelledBy}";
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(expectedConfigDir);
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		HipChatNotificationMessageTemplates.CompiledTemplate before = templates.getCompiledTemplate(TeamCityEvent.BUILD_INTERRUPTED);
+		
+		// Execute
+		templates.writeTemplate(TeamCityEvent.BUILD_INTERRUPTED, expectedTemplateString);
+		HipChatNotificationMessageTemplates.CompiledTemplate after = templates.getCompiledTemplate(TeamCityEvent.BUILD_INTERRUPTED);
+		
+		// Clean up
+		assertTrue(new File("hipchat", "buildInterruptedTemplate.ftl").delete());
+		
+		// Test; a lookup taken before the change still pairs the old template with its own variables
+		assertFalse(expectedTemplateString.equals(before.getTemplate().toString()));
+		assertEquals(HipChatTemplateVariables.analyse(before.getTemplate()).getNames(), before.getVariables().getNames());
+		assertEquals(expectedTemplateString, after.getTemplate().toString());
+		assertTrue(after.getVariables().requires(HipChatTemplateVariables.Stage.CANCELLED_BY));
+	}
+	
+	@Test
+	public void testCompiledTemplateIsReused() throws IOException {
+		// Parameters
+		String expectedConfigDir = ".";
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(expectedConfigDir);
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		
+		// Execute
+		Template first = templates.readTemplate(TeamCityEvent.BUILD_STARTED);
+		Template second = templates.readTemplate(TeamCityEvent.BUILD_STARTED);
+		templates.dispose();
+		
+		// Test
+		assertSame(first, second);
+	}
+	
+	@Test
+	public void testExternallyChangedTemplateIsReloaded() throws IOException, InterruptedException {
+		// Parameters
+		String expectedConfigDir = ".";
+		String expectedTemplateString = "${fullName} was changed on disk";
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(expectedConfigDir);
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		File templateFile = new File("hipchat", "buildInterruptedTemplate.ftl");
+		
+		// Pre-conditions
+		assertFalse(templateFile.exists());
+		Template defaultTemplate = templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED);
+		assertEquals(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_DEFAULT_TEMPLATE, defaultTemplate.toString());
+		
+		// Execute; changed behind the plugin's back
+		Writer writer = new FileWriter(templateFile);
+		writer.write(expectedTemplateString);
+		writer.close();
+		Template actualTemplate = templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (actualTemplate == defaultTemplate && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			actualTemplate = templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED);
+		}
+		
+		// Clean up
+		templates.dispose();
+		assertTrue(templateFile.delete());
+		
+		// Test
+		assertEquals(expectedTemplateString, actualTemplate.toString());
+	}
+	
+	@Test
+	public void testIncludedTemplateIsResolvedAndReloaded() throws IOException, TemplateException, InterruptedException {
+		// Parameters
+		String expectedConfigDir = ".";
+		ServerPaths serverPaths = mock(ServerPaths.class);
+		when(serverPaths.getConfigDir()).thenReturn(expectedConfigDir);
+		HipChatNotificationMessageTemplates templates = new HipChatNotificationMessageTemplates(serverPaths);
+		File includedFile = new File("hipchat", "footer.ftl");
+		File templateFile = new File("hipchat", "buildInterruptedTemplate.ftl");
+		writeFile(includedFile, "first footer");
+		templates.writeTemplate(TeamCityEvent.BUILD_INTERRUPTED, "Cancelled. <#include \"footer.ftl\">");
+		String before = process(templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED));
+		
+		// Execute; only the included file changes
+		writeFile(includedFile, "second footer");
+		String after = process(templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (after.equals(before) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			after = process(templates.readTemplate(TeamCityEvent.BUILD_INTERRUPTED));
+		}
+		
+		// Clean up
+		templates.dispose();
+		assertTrue(includedFile.delete());
+		assertTrue(templateFile.delete());
+		
+		// Test
+		assertEquals("Cancelled. first footer", before);
+		assertEquals("Cancelled. second footer", after);
+	}
+	
 	@Test(dataProvider = "dataProvider")
 	public void testReadDefaultTemplate(TeamCityEvent expectedEvent, String expectedFileName, String ignored, String expectedTemplateString) throws IOException, TemplateException {
 		// Parameters
@@ -234,4 +369,16 @@ public class HipChatNotificationMessageTemplatesTest {
 	    assertEquals(expectedTemplateStringSecond, actualTemplate.toString());
 	}
 	
+	private static void writeFile(File file, String content) throws IOException {
+		Writer writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+	}
+	
+	private static String process(Template template) throws IOException, TemplateException {
+		StringWriter writer = new StringWriter();
+		template.process(new HashMap<String, Object>(), writer);
+		return writer.toString();
+	}
+
 }
@@ -0,0 +1,194 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageColour;
+import com.whatsthatlight.teamcity.hipchat.HipChatMessageFormat;
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationOutbox;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
+import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
+
+public class HipChatNotificationOutboxTest {
+
+	private static final File OUTBOX_DIRECTORY = new File("outbox");
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@BeforeMethod
+	@AfterMethod
+	public void deleteOutbox() {
+		if (OUTBOX_DIRECTORY.exists()) {
+			for (File file : OUTBOX_DIRECTORY.listFiles()) {
+				AssertJUnit.assertTrue(file.delete());
+			}
+			AssertJUnit.assertTrue(OUTBOX_DIRECTORY.delete());
+		}
+	}
+
+	@Test
+	public void testUnacknowledgedEntriesAreRecovered() throws IOException {
+		HipChatRoomNotification notification = new HipChatRoomNotification("<b>Build failed</b> \u2639", HipChatMessageFormat.HTML, HipChatMessageColour.ERROR, true);
+
+		// Execute
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+		long deliveredId = outbox.append(TeamCityEvent.BUILD_SUCCESSFUL, new HipChatRoomNotification("ok", HipChatMessageFormat.TEXT, HipChatMessageColour.SUCCESS, false), "room1");
+		outbox.append(TeamCityEvent.BUILD_FAILED, notification, "room2");
+		outbox.acknowledge(deliveredId);
+		AssertJUnit.assertEquals(1, outbox.getPendingCount());
+		outbox.close();
+		List<HipChatNotificationOutbox.Entry> entries = new HipChatNotificationOutbox(OUTBOX_DIRECTORY).recover();
+
+		// Test
+		AssertJUnit.assertEquals(1, entries.size());
+		HipChatNotificationOutbox.Entry entry = entries.get(0);
+		AssertJUnit.assertEquals(TeamCityEvent.BUILD_FAILED, entry.getEvent());
+		AssertJUnit.assertEquals("room2", entry.getRoomId());
+		AssertJUnit.assertEquals(1, entry.getReplays());
+		AssertJUnit.assertEquals(notification.message, entry.getNotification().message);
+		AssertJUnit.assertEquals(notification.messageFormat, entry.getNotification().messageFormat);
+		AssertJUnit.assertEquals(notification.color, entry.getNotification().color);
+		AssertJUnit.assertEquals(notification.notify, entry.getNotification().notify);
+	}
+
+	@Test
+	public void testRecoveryDiscardsOldSegments() throws IOException {
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+		outbox.append(TeamCityEvent.BUILD_FAILED, new HipChatRoomNotification("failed", HipChatMessageFormat.TEXT, HipChatMessageColour.ERROR, true), "room");
+		outbox.close();
+
+		// Execute; the recovered entry is rewritten to the new segment, and acknowledging it there retires it for good
+		HipChatNotificationOutbox recoveredOutbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+		List<HipChatNotificationOutbox.Entry> entries = recoveredOutbox.recover();
+		AssertJUnit.assertEquals(1, entries.size());
+		AssertJUnit.assertEquals(1, OUTBOX_DIRECTORY.listFiles().length);
+		recoveredOutbox.acknowledge(entries.get(0).getId());
+		recoveredOutbox.close();
+
+		// Test
+		AssertJUnit.assertEquals(0, new HipChatNotificationOutbox(OUTBOX_DIRECTORY).recover().size());
+	}
+
+	@Test
+	public void testTornRecordIsIgnored() throws IOException {
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+		outbox.append(TeamCityEvent.BUILD_FAILED, new HipChatRoomNotification("complete", HipChatMessageFormat.TEXT, HipChatMessageColour.ERROR, true), "room");
+		outbox.append(TeamCityEvent.BUILD_FAILED, new HipChatRoomNotification("torn", HipChatMessageFormat.TEXT, HipChatMessageColour.ERROR, true), "room");
+		outbox.close();
+
+		// Simulate a crash halfway through writing the last record
+		File segment = OUTBOX_DIRECTORY.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 5);
+		file.close();
+
+		// Execute
+		List<HipChatNotificationOutbox.Entry> entries = new HipChatNotificationOutbox(OUTBOX_DIRECTORY).recover();
+
+		// Test
+		AssertJUnit.assertEquals(1, entries.size());
+		AssertJUnit.assertEquals("complete", entries.get(0).getNotification().message);
+	}
+
+	@Test
+	public void testEntriesAreGivenUpAfterRepeatedReplays() throws IOException {
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+		outbox.append(TeamCityEvent.BUILD_FAILED, new HipChatRoomNotification("undeliverable", HipChatMessageFormat.TEXT, HipChatMessageColour.ERROR, true), "room");
+		outbox.close();
+
+		// Execute; restart repeatedly without ever delivering
+		int replays = 0;
+		while (true) {
+			HipChatNotificationOutbox restartedOutbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+			List<HipChatNotificationOutbox.Entry> entries = restartedOutbox.recover();
+			restartedOutbox.close();
+			if (entries.isEmpty()) {
+				break;
+			}
+			replays++;
+			AssertJUnit.assertTrue(replays < 10);
+		}
+
+		// Test
+		AssertJUnit.assertEquals(3, replays);
+	}
+
+	@Test
+	public void testSegmentHoldingAcknowledgementsOutlivesOlderLiveSegments() throws IOException {
+		// Test parameters; segments that take exactly two entries
+		HipChatRoomNotification notification = new HipChatRoomNotification("entry", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		HipChatNotificationOutbox probe = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+		probe.append(TeamCityEvent.BUILD_STARTED, notification, "room");
+		probe.close();
+		long recordSize = OUTBOX_DIRECTORY.listFiles()[0].length();
+		this.deleteOutbox();
+
+		// Setup
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY, recordSize + 1);
+		long first = outbox.append(TeamCityEvent.BUILD_STARTED, notification, "room");
+		outbox.append(TeamCityEvent.BUILD_FAILED, notification, "room");
+
+		// Execute; the first entry is acknowledged in the second segment, which then has nothing live of its own
+		long second = outbox.append(TeamCityEvent.BUILD_STARTED, notification, "room");
+		outbox.acknowledge(first);
+		outbox.acknowledge(second);
+		outbox.append(TeamCityEvent.BUILD_SUCCESSFUL, notification, "room");
+		int segments = OUTBOX_DIRECTORY.listFiles().length;
+		outbox.close();
+		List<HipChatNotificationOutbox.Entry> entries = new HipChatNotificationOutbox(OUTBOX_DIRECTORY).recover();
+
+		// Test
+		AssertJUnit.assertEquals(3, segments);
+		AssertJUnit.assertEquals(2, entries.size());
+		AssertJUnit.assertEquals(TeamCityEvent.BUILD_FAILED, entries.get(0).getEvent());
+		AssertJUnit.assertEquals(TeamCityEvent.BUILD_SUCCESSFUL, entries.get(1).getEvent());
+	}
+
+	@Test
+	public void testSegmentsAreDeletedOldestFirst() throws IOException {
+		HipChatRoomNotification notification = new HipChatRoomNotification("entry", HipChatMessageFormat.TEXT, HipChatMessageColour.INFO, false);
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY, 1);
+		long first = outbox.append(TeamCityEvent.BUILD_STARTED, notification, "room");
+		long second = outbox.append(TeamCityEvent.BUILD_STARTED, notification, "room");
+		outbox.append(TeamCityEvent.BUILD_STARTED, notification, "room");
+
+		// Execute
+		outbox.acknowledge(second);
+		int segmentsWhileFirstIsLive = OUTBOX_DIRECTORY.listFiles().length;
+		outbox.acknowledge(first);
+		int segmentsAfterwards = OUTBOX_DIRECTORY.listFiles().length;
+		outbox.close();
+
+		// Test; only the current segment is left
+		AssertJUnit.assertEquals(3, segmentsWhileFirstIsLive);
+		AssertJUnit.assertEquals(1, segmentsAfterwards);
+	}
+
+	@Test
+	public void testDiscardedEntriesAreNotRecovered() throws IOException {
+		HipChatNotificationOutbox outbox = new HipChatNotificationOutbox(OUTBOX_DIRECTORY);
+		long id = outbox.append(TeamCityEvent.BUILD_FAILED, new HipChatRoomNotification("rejected", HipChatMessageFormat.TEXT, HipChatMessageColour.ERROR, true), "missing");
+
+		// Execute
+		outbox.discard(id);
+		AssertJUnit.assertEquals(0, outbox.getPendingCount());
+		outbox.close();
+
+		// Test
+		AssertJUnit.assertEquals(0, new HipChatNotificationOutbox(OUTBOX_DIRECTORY).recover().size());
+	}
+
+}
@@ -0,0 +1,166 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatPageLoader;
+
+public class HipChatPageLoaderTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testPagesAreReturnedInOrder() {
+		// Test parameters
+		TestPageLoader loader = new TestPageLoader(10, 95, 3);
+
+		// Execute
+		List<List<Integer>> pages = loader.load();
+
+		// Test
+		assertEquals(10, pages.size());
+		int expectedItem = 0;
+		for (List<Integer> page : pages) {
+			for (int item : page) {
+				assertEquals(expectedItem++, item);
+			}
+		}
+		assertEquals(95, expectedItem);
+	}
+
+	@Test
+	public void testShortFirstPageIsTheOnlyRequest() {
+		// Test parameters
+		TestPageLoader loader = new TestPageLoader(10, 7, 4);
+
+		// Execute
+		List<List<Integer>> pages = loader.load();
+
+		// Test
+		assertEquals(1, pages.size());
+		assertEquals(7, pages.get(0).size());
+		assertEquals(Collections.singletonList(0), loader.getRequestedStartIndices());
+	}
+
+	@Test
+	public void testCatalogueEndingOnAPageBoundaryStopsAtTheEmptyPage() {
+		// Test parameters
+		TestPageLoader loader = new TestPageLoader(10, 40, 2);
+
+		// Execute
+		List<List<Integer>> pages = loader.load();
+
+		// Test
+		assertEquals(4, pages.size());
+		assertTrue(loader.getRequestedStartIndices().contains(40));
+		assertFalse(loader.getRequestedStartIndices().contains(60));
+	}
+
+	@Test
+	public void testFailedFirstPageReturnsNothing() {
+		// Test parameters
+		TestPageLoader loader = new TestPageLoader(10, -1, 4);
+
+		// Execute
+		List<List<Integer>> pages = loader.load();
+
+		// Test
+		assertNull(pages);
+	}
+
+	@Test
+	public void testFailedLaterPageReturnsNothing() {
+		// Test parameters
+		TestPageLoader loader = new TestPageLoader(10, 95, 3, 30);
+
+		// Execute
+		List<List<Integer>> pages = loader.load();
+
+		// Test; not mistaken for the end of the catalogue
+		assertNull(pages);
+	}
+
+	@Test
+	public void testFailedPagePastTheEndIsIgnored() {
+		// Test parameters
+		TestPageLoader loader = new TestPageLoader(10, 25, 4, 30);
+
+		// Execute
+		List<List<Integer>> pages = loader.load();
+
+		// Test
+		assertEquals(3, pages.size());
+	}
+
+	@Test
+	public void testEndlessCatalogueIsGivenUp() {
+		// Test parameters
+		TestPageLoader loader = new TestPageLoader(10, Integer.MAX_VALUE, 4);
+
+		// Execute
+		List<List<Integer>> pages = loader.load();
+
+		// Test
+		assertNull(pages);
+		assertTrue(loader.getRequestedStartIndices().size() < HipChatPageLoader.MAX_PAGES + 4);
+	}
+
+	private static class TestPageLoader extends HipChatPageLoader<List<Integer>> {
+
+		private final int pageSize;
+		private final int itemCount;
+		private final int failingStartIndex;
+		private final List<Integer> requestedStartIndices = Collections.synchronizedList(new ArrayList<Integer>());
+
+		// A negative item count makes every request fail
+		public TestPageLoader(int pageSize, int itemCount, int parallelPages) {
+			this(pageSize, itemCount, parallelPages, -1);
+		}
+
+		public TestPageLoader(int pageSize, int itemCount, int parallelPages, int failingStartIndex) {
+			super(parallelPages);
+			this.pageSize = pageSize;
+			this.itemCount = itemCount;
+			this.failingStartIndex = failingStartIndex;
+		}
+
+		public List<Integer> getRequestedStartIndices() {
+			return this.requestedStartIndices;
+		}
+
+		@Override
+		protected List<Integer> getPage(int startIndex) {
+			this.requestedStartIndices.add(startIndex);
+			if (this.itemCount < 0 || startIndex == this.failingStartIndex) {
+				return null;
+			}
+			List<Integer> page = new ArrayList<Integer>();
+			for (int item = startIndex; item < Math.min(startIndex + this.pageSize, this.itemCount); item++) {
+				page.add(item);
+			}
+			return page;
+		}
+
+		@Override
+		protected int getItemCount(List<Integer> page) {
+			return page.size();
+		}
+
+		@Override
+		protected int getMaxResults(List<Integer> page) {
+			return this.pageSize;
+		}
+
+	}
+
+}
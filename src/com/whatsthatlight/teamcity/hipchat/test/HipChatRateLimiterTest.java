@@ -0,0 +1,142 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatRateLimiter;
+
+public class HipChatRateLimiterTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testBurstWithinCapacityIsNotPaced() throws InterruptedException {
+		HipChatRateLimiter limiter = new HipChatRateLimiter(10, 60000, 5, 60000);
+
+		// Execute
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			limiter.acquire("token", "room");
+		}
+		long duration = System.currentTimeMillis() - start;
+
+		// Test
+		AssertJUnit.assertTrue(duration < 100);
+	}
+
+	@Test
+	public void testRoomBucketPaces() throws InterruptedException {
+		// Two notifications per second per room
+		HipChatRateLimiter limiter = new HipChatRateLimiter(100, 1000, 2, 1000);
+		limiter.acquire("token", "room");
+		limiter.acquire("token", "room");
+
+		// Execute; another room is unaffected, but the third notification to the same room must wait for a refill
+		long start = System.currentTimeMillis();
+		limiter.acquire("token", "other room");
+		long otherRoomDuration = System.currentTimeMillis() - start;
+		limiter.acquire("token", "room");
+		long sameRoomDuration = System.currentTimeMillis() - start;
+
+		// Test
+		AssertJUnit.assertTrue(otherRoomDuration < 100);
+		AssertJUnit.assertTrue(sameRoomDuration >= 400);
+	}
+
+	@Test
+	public void testTokenBucketPacesAcrossRooms() throws InterruptedException {
+		HipChatRateLimiter limiter = new HipChatRateLimiter(2, 1000, 100, 1000);
+		limiter.acquire("token", "room1");
+		limiter.acquire("token", "room2");
+
+		// Execute
+		long start = System.currentTimeMillis();
+		limiter.acquire("other token", "room3");
+		long otherTokenDuration = System.currentTimeMillis() - start;
+		limiter.acquire("token", "room3");
+		long sameTokenDuration = System.currentTimeMillis() - start;
+
+		// Test
+		AssertJUnit.assertTrue(otherTokenDuration < 100);
+		AssertJUnit.assertTrue(sameTokenDuration >= 400);
+	}
+
+	@Test
+	public void testTryAcquireReturnsWaitWithoutWaiting() {
+		// One notification per second per room
+		HipChatRateLimiter limiter = new HipChatRateLimiter(100, 1000, 1, 1000);
+
+		// Execute
+		long first = limiter.tryAcquire("token", "room");
+		long start = System.currentTimeMillis();
+		long second = limiter.tryAcquire("token", "room");
+		long duration = System.currentTimeMillis() - start;
+
+		// Test
+		AssertJUnit.assertEquals(0, first);
+		AssertJUnit.assertTrue(second > 0 && second <= 1000);
+		AssertJUnit.assertTrue(duration < 100);
+	}
+
+	@Test
+	public void testRetryAfterBlocksRoom() throws InterruptedException {
+		HipChatRateLimiter limiter = new HipChatRateLimiter();
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HipChatRateLimiter.SC_TOO_MANY_REQUESTS, "Too Many Requests");
+		response.addHeader(HipChatRateLimiter.RETRY_AFTER_HEADER, "1");
+
+		// Execute
+		limiter.update("token", "room", response);
+		long start = System.currentTimeMillis();
+		limiter.acquire("token", "room");
+		long duration = System.currentTimeMillis() - start;
+
+		// Test
+		AssertJUnit.assertTrue(HipChatRateLimiter.isThrottled(response));
+		AssertJUnit.assertTrue(duration >= 900);
+	}
+
+	@Test
+	public void testRemainingZeroBlocksTokenUntilReset() throws InterruptedException {
+		HipChatRateLimiter limiter = new HipChatRateLimiter();
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 204, "No Content");
+		long reset = System.currentTimeMillis() / 1000 + 2;
+		response.addHeader(HipChatRateLimiter.RATE_LIMIT_REMAINING_HEADER, "0");
+		response.addHeader(HipChatRateLimiter.RATE_LIMIT_RESET_HEADER, Long.toString(reset));
+
+		// Execute
+		limiter.update("token", null, response);
+		limiter.acquire("token", "any room");
+		long end = System.currentTimeMillis();
+
+		// Test
+		AssertJUnit.assertFalse(HipChatRateLimiter.isThrottled(response));
+		AssertJUnit.assertTrue(end >= reset * 1000 - 50);
+		AssertJUnit.assertTrue(end < reset * 1000 + 500);
+	}
+
+	@Test
+	public void testMalformedHeadersAreIgnored() throws InterruptedException {
+		HipChatRateLimiter limiter = new HipChatRateLimiter();
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 204, "No Content");
+		response.addHeader(HipChatRateLimiter.RATE_LIMIT_REMAINING_HEADER, "many");
+		response.addHeader(HipChatRateLimiter.RATE_LIMIT_RESET_HEADER, "soon");
+
+		// Execute
+		limiter.update("token", "room", response);
+		long start = System.currentTimeMillis();
+		limiter.acquire("token", "room");
+		long duration = System.currentTimeMillis() - start;
+
+		// Test
+		AssertJUnit.assertTrue(duration < 100);
+	}
+
+}
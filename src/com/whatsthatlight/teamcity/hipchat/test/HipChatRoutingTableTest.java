@@ -0,0 +1,161 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import jetbrains.buildServer.serverSide.SProject;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatBranchFilter;
+import com.whatsthatlight.teamcity.hipchat.HipChatConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
+import com.whatsthatlight.teamcity.hipchat.HipChatRoutingTable;
+
+public class HipChatRoutingTableTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testRouteIsResolvedFromParent() {
+		// Test parameters
+		String expectedRoomId = "parent_room_id";
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDefaultRoomId("default_room_id");
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", expectedRoomId, true));
+		SProject root = createProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject parent = createProject("parent", root);
+		SProject child = createProject("child", parent);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+
+		// Execute
+		HipChatProjectConfiguration route = routingTable.resolve(child);
+
+		// Test
+		assertEquals("child", route.getProjectId());
+		assertEquals(expectedRoomId, route.getRoomId());
+		assertTrue(route.getNotifyStatus());
+	}
+
+	@Test
+	public void testPlaceholdersAreResolved() {
+		// Test parameters
+		String expectedDefaultRoomId = "default_room_id";
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDefaultRoomId(expectedDefaultRoomId);
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", "parent_room_id", false));
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("default", HipChatConfiguration.ROOM_ID_DEFAULT_VALUE, true));
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("inherit", HipChatConfiguration.ROOM_ID_PARENT_VALUE, true));
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("none", HipChatConfiguration.ROOM_ID_NONE_VALUE, true));
+		SProject root = createProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject parent = createProject("parent", root);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+
+		// Execute
+		HipChatProjectConfiguration defaultRoute = routingTable.resolve(createProject("default", parent));
+		HipChatProjectConfiguration inheritedRoute = routingTable.resolve(createProject("inherit", parent));
+		HipChatProjectConfiguration noRoute = routingTable.resolve(createProject("none", parent));
+
+		// Test
+		assertEquals(expectedDefaultRoomId, defaultRoute.getRoomId());
+		assertTrue(defaultRoute.getNotifyStatus());
+		assertEquals("parent_room_id", inheritedRoute.getRoomId());
+		assertFalse(inheritedRoute.getNotifyStatus());
+		assertNull(noRoute.getRoomId());
+	}
+
+	@Test
+	public void testRouteIsCachedUntilInvalidated() {
+		// Test parameters
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", "old_room_id", true));
+		SProject root = createProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject parent = createProject("parent", root);
+		SProject child = createProject("child", parent);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+		assertEquals("old_room_id", routingTable.resolve(child).getRoomId());
+
+		// Execute
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", "new_room_id", true));
+		String cachedRoomId = routingTable.resolve(child).getRoomId();
+		routingTable.invalidate("parent");
+		String actualRoomId = routingTable.resolve(child).getRoomId();
+
+		// Test
+		assertEquals("old_room_id", cachedRoomId);
+		assertEquals("new_room_id", actualRoomId);
+	}
+
+	@Test
+	public void testInvalidationIsLimitedToSubtree() {
+		// Test parameters
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setDefaultRoomId("default_room_id");
+		SProject root = createProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject parent = createProject("parent", root);
+		SProject child = createProject("child", parent);
+		SProject sibling = createProject("sibling", root);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+		routingTable.resolve(parent);
+		routingTable.resolve(child);
+		routingTable.resolve(sibling);
+		assertEquals(3, routingTable.size());
+
+		// Execute
+		routingTable.invalidate("parent");
+
+		// Test
+		assertEquals(1, routingTable.size());
+
+		// Execute
+		routingTable.invalidateAll();
+
+		// Test
+		assertEquals(0, routingTable.size());
+	}
+
+	@Test
+	public void testBranchFilterCombinesGlobalAndInheritedProjectRules() {
+		// Test parameters
+		HipChatConfiguration configuration = new HipChatConfiguration();
+		configuration.setBranchFilterEnabledStatus(true);
+		configuration.setBranchFilterRegex("-:feature/.*");
+		configuration.setProjectConfiguration(new HipChatProjectConfiguration("parent", "parent_room_id", true, "+:feature/important"));
+		SProject root = createProject(HipChatConfiguration.ROOT_PROJECT_ID_VALUE, null);
+		SProject parent = createProject("parent", root);
+		SProject child = createProject("child", parent);
+		SProject sibling = createProject("sibling", root);
+		HipChatRoutingTable routingTable = new HipChatRoutingTable(configuration);
+
+		// Execute
+		HipChatBranchFilter childFilter = routingTable.getBranchFilter(child);
+		HipChatBranchFilter siblingFilter = routingTable.getBranchFilter(sibling);
+
+		// Test
+		assertTrue(childFilter.accept("feature/important"));
+		assertFalse(siblingFilter.accept("feature/important"));
+		assertTrue(siblingFilter.accept("master"));
+		
+		// Execute
+		configuration.setBranchFilterEnabledStatus(false);
+		routingTable.invalidateAll();
+		
+		// Test
+		assertTrue(routingTable.getBranchFilter(sibling).accept("feature/important"));
+	}
+
+	private static SProject createProject(String projectId, SProject parent) {
+		String parentProjectId = parent == null ? null : parent.getProjectId();
+		SProject project = mock(SProject.class);
+		when(project.getProjectId()).thenReturn(projectId);
+		when(project.getParentProject()).thenReturn(parent);
+		when(project.getParentProjectId()).thenReturn(parentProjectId);
+		return project;
+	}
+
+}
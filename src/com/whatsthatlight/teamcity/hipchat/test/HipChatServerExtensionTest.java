@@ -69,6 +69,7 @@ import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
 import com.whatsthatlight.teamcity.hipchat.HipChatProjectConfiguration;
 import com.whatsthatlight.teamcity.hipchat.HipChatRoomNotification;
 import com.whatsthatlight.teamcity.hipchat.HipChatServerExtension;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateVariables;
 import com.whatsthatlight.teamcity.hipchat.TeamCityEvent;
 
 import freemarker.cache.StringTemplateLoader;
@@ -849,7 +850,7 @@ public class HipChatServerExtensionTest {
 		config.setTemplateLoader(loader);
 		Template template = config.getTemplate(templateName);
 		HipChatNotificationMessageTemplates templates = mock(HipChatNotificationMessageTemplates.class);
-		when(templates.readTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(template);
+		when(templates.getCompiledTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(new HipChatNotificationMessageTemplates.CompiledTemplate(template, HipChatTemplateVariables.ALL));
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
@@ -1000,7 +1001,7 @@ public class HipChatServerExtensionTest {
 		config.setTemplateLoader(loader);
 		Template template = config.getTemplate(templateName);
 		HipChatNotificationMessageTemplates templates = mock(HipChatNotificationMessageTemplates.class);
-		when(templates.readTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(template);
+		when(templates.getCompiledTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(new HipChatNotificationMessageTemplates.CompiledTemplate(template, HipChatTemplateVariables.ALL));
 		HipChatEmoticonCache emoticonCache = org.mockito.Mockito.mock(HipChatEmoticonCache.class);
 
 		// Execute
@@ -1137,7 +1138,7 @@ public class HipChatServerExtensionTest {
 		config.setTemplateLoader(loader);
 		Template template = config.getTemplate(templateName);
 		HipChatNotificationMessageTemplates templates = mock(HipChatNotificationMessageTemplates.class);
-		when(templates.readTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(template);
+		when(templates.getCompiledTemplate(TeamCityEvent.BUILD_STARTED)).thenReturn(new HipChatNotificationMessageTemplates.CompiledTemplate(template, HipChatTemplateVariables.ALL));
 
 		// Execute
 		emoticonCache.reload();
@@ -5151,19 +5152,22 @@ public class HipChatServerExtensionTest {
 		public HipChatEmoticons getEmoticons(int startIndex) {
 			if (this.emoticonsResult == null) {
 				return super.getEmoticons(startIndex);
+			} else if (startIndex > 0) {
+				// There is only the one page
+				return new HipChatEmoticons(new ArrayList<HipChatEmoticon>(), startIndex, 0, null);
 			} else {
-				HipChatEmoticons result = this.emoticonsResult;
-				this.emoticonsResult = null;
-				return result;
+				return this.emoticonsResult;
 			}
 		}
 
 		@Override
-		public void sendNotification(HipChatRoomNotification notification, String roomId) {
+		public boolean sendNotification(HipChatRoomNotification notification, String roomId) {
 			try {
 				this.callback.invoke(notification, roomId);
+				return true;
 			} catch (Exception e) {
 				logger.error(e);
+				return false;
 			}
 		}
 	}
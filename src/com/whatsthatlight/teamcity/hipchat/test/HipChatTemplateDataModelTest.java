@@ -0,0 +1,126 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateDataModel;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+public class HipChatTemplateDataModelTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testSourcesAreOnlyLoadedWhenNeeded() throws Exception {
+		HipChatTemplateDataModel model = new HipChatTemplateDataModel(new Configuration().getObjectWrapper());
+		model.put("fullName", "Project :: Build");
+		CountingSource parameters = new CountingSource(Collections.singletonMap("some.parameter", "value"));
+		model.addSource(parameters);
+
+		// Execute
+		String rendered = render("${fullName}", model);
+
+		// Test
+		AssertJUnit.assertEquals("Project :: Build", rendered);
+		AssertJUnit.assertEquals(0, parameters.loads.get());
+	}
+
+	@Test
+	public void testSourcesAreLoadedOnceAndMemoised() throws Exception {
+		HipChatTemplateDataModel model = new HipChatTemplateDataModel(new Configuration().getObjectWrapper());
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("a", "1");
+		values.put("b", "2");
+		CountingSource parameters = new CountingSource(values);
+		model.addSource(parameters);
+
+		// Execute
+		String rendered = render("${.data_model[\"a\"]}${.data_model[\"b\"]}${.data_model[\"a\"]}", model);
+
+		// Test
+		AssertJUnit.assertEquals("121", rendered);
+		AssertJUnit.assertEquals(1, parameters.loads.get());
+	}
+
+	@Test
+	public void testPrecedence() throws Exception {
+		HipChatTemplateDataModel model = new HipChatTemplateDataModel(new Configuration().getObjectWrapper());
+		model.put("key", "standard");
+		model.addSource(new CountingSource(Collections.singletonMap("key", "first")));
+		model.addSource(new CountingSource(Collections.singletonMap("other", "second")));
+		Map<String, Object> lowest = new HashMap<String, Object>();
+		lowest.put("key", "third");
+		lowest.put("other", "third");
+		lowest.put("last", "third");
+		model.addSource(new CountingSource(lowest));
+
+		// Execute
+		String rendered = render("${key} ${other} ${last} ${.data_model?size}", model);
+
+		// Test
+		AssertJUnit.assertEquals("standard second third 3", rendered);
+	}
+
+	@Test
+	public void testKeyedSourceIsSkippedForOtherKeys() throws Exception {
+		HipChatTemplateDataModel model = new HipChatTemplateDataModel(new Configuration().getObjectWrapper());
+		final AtomicInteger loads = new AtomicInteger();
+		model.addSource(new HipChatTemplateDataModel.Source("statistics", "stats.") {
+			@Override
+			protected Map<String, ?> load() {
+				loads.incrementAndGet();
+				return Collections.singletonMap("stats.x", 1);
+			}
+		});
+
+		// Execute
+		AssertJUnit.assertNull(model.get("missing"));
+		AssertJUnit.assertEquals(0, loads.get());
+		AssertJUnit.assertNotNull(model.get("stats.x"));
+
+		// Test
+		AssertJUnit.assertEquals(1, loads.get());
+		AssertJUnit.assertEquals(1, model.size());
+	}
+
+	private static String render(String source, Object model) throws Exception {
+		Template template = new Template("test", new StringReader(source), new Configuration());
+		StringWriter writer = new StringWriter();
+		template.process(model, writer);
+		return writer.toString();
+	}
+
+	private static class CountingSource extends HipChatTemplateDataModel.Source {
+
+		public final AtomicInteger loads = new AtomicInteger();
+		private Map<String, ?> values;
+
+		public CountingSource(Map<String, ?> values) {
+			super("test");
+			this.values = values;
+		}
+
+		@Override
+		protected Map<String, ?> load() {
+			this.loads.incrementAndGet();
+			return this.values;
+		}
+
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.whatsthatlight.teamcity.hipchat.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.apache.log4j.BasicConfigurator;
+import org.testng.AssertJUnit;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.whatsthatlight.teamcity.hipchat.HipChatNotificationMessageTemplates;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateVariables;
+import com.whatsthatlight.teamcity.hipchat.HipChatTemplateVariables.Stage;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+public class HipChatTemplateVariablesTest {
+
+	@BeforeClass
+	public static void ClassSetup() {
+		// Set up a basic logger for debugging purposes
+		BasicConfigurator.configure();
+	}
+
+	@Test
+	public void testDefaultTemplates() throws IOException {
+		AssertJUnit.assertEquals(EnumSet.of(Stage.CONTRIBUTORS), analyse(HipChatNotificationMessageTemplates.BUILD_STARTED_DEFAULT_TEMPLATE).getStages());
+		AssertJUnit.assertEquals(EnumSet.of(Stage.CONTRIBUTORS), analyse(HipChatNotificationMessageTemplates.BUILD_SUCCESSFUL_DEFAULT_TEMPLATE).getStages());
+		AssertJUnit.assertEquals(EnumSet.of(Stage.CONTRIBUTORS), analyse(HipChatNotificationMessageTemplates.BUILD_FAILED_DEFAULT_TEMPLATE).getStages());
+		AssertJUnit.assertEquals(EnumSet.of(Stage.CANCELLED_BY), analyse(HipChatNotificationMessageTemplates.BUILD_INTERRUPTED_DEFAULT_TEMPLATE).getStages());
+		AssertJUnit.assertTrue(analyse(HipChatNotificationMessageTemplates.SERVER_STARTUP_DEFAULT_TEMPLATE).getStages().isEmpty());
+	}
+
+	@Test
+	public void testStandardVariablesNeedNothingExpensive() throws IOException {
+		HipChatTemplateVariables variables = analyse("<#if hasBranch>${branch?upper_case}</#if> ${fullName} #${buildNumber} ${serverUrl}/viewLog.html?buildId=${buildId}");
+
+		// Test
+		AssertJUnit.assertTrue(variables.getStages().isEmpty());
+		AssertJUnit.assertEquals("none", variables.getDescription());
+		AssertJUnit.assertFalse(variables.getNames().contains("upper_case"));
+	}
+
+	@Test
+	public void testDataModelLookupByLiteral() throws IOException {
+		HipChatTemplateVariables variables = analyse("${.data_model[\"stats.buildDuration\"]} ${.data_model['teamcity.agent.name']}");
+
+		// Test
+		AssertJUnit.assertFalse(variables.isDynamic());
+		AssertJUnit.assertTrue(variables.getNames().contains("stats.buildDuration"));
+		AssertJUnit.assertTrue(variables.getNames().contains("teamcity.agent.name"));
+		AssertJUnit.assertEquals(EnumSet.of(Stage.DISCOVERED_STATISTICS, Stage.PARAMETERS), variables.getStages());
+	}
+
+	@Test
+	public void testComputedDataModelLookupNeedsEverything() throws IOException {
+		HipChatTemplateVariables variables = analyse("<#assign key = \"stats.\" + name>${.data_model[key]}");
+
+		// Test
+		AssertJUnit.assertTrue(variables.isDynamic());
+		AssertJUnit.assertEquals(EnumSet.allOf(Stage.class), variables.getStages());
+	}
+
+	@Test
+	public void testEnumeratingDataModelNeedsEverything() throws IOException {
+		AssertJUnit.assertTrue(analyse("<#list .data_model?keys as key>${key}</#list>").isDynamic());
+	}
+
+	@Test
+	public void testTestStatistics() throws IOException {
+		HipChatTemplateVariables variables = analyse("${noOfFailedTests} of ${noOfTests} failed");
+
+		// Test; a parameter of the same name would take precedence, so parameters are still needed
+		AssertJUnit.assertEquals(EnumSet.of(Stage.TEST_STATISTICS, Stage.PARAMETERS), variables.getStages());
+	}
+
+	@Test
+	public void testLocalsAndMembersAreNotDataModelVariables() throws IOException {
+		HipChatTemplateVariables variables = analyse("<#assign count = 1..3><#list contributors?split(\", \") as name>${name}</#list>${triggeredBy.length}");
+
+		// Test
+		AssertJUnit.assertEquals(EnumSet.of(Stage.CONTRIBUTORS), variables.getStages());
+		AssertJUnit.assertFalse(variables.getNames().contains("count"));
+		AssertJUnit.assertFalse(variables.getNames().contains("name"));
+		AssertJUnit.assertFalse(variables.getNames().contains("length"));
+	}
+
+	@Test
+	public void testInterpolationInsideStringLiteral() throws IOException {
+		HipChatTemplateVariables variables = analyse("${\"Cancelled by ${cancelledBy}\"}");
+
+		// Test
+		AssertJUnit.assertEquals(EnumSet.of(Stage.CANCELLED_BY), variables.getStages());
+	}
+
+	@Test
+	public void testRangeOperand() throws IOException {
+		HipChatTemplateVariables variables = analyse("<#list 1..noOfTests as i>.</#list>");
+
+		// Test
+		AssertJUnit.assertTrue(variables.requires(Stage.TEST_STATISTICS));
+	}
+
+	@Test
+	public void testIncludeAndImportNeedEverything() throws IOException {
+		// The included or imported template is not seen by the analysis
+		AssertJUnit.assertEquals(EnumSet.allOf(Stage.class), analyse("${fullName}<#include \"other.ftl\">").getStages());
+		AssertJUnit.assertEquals(EnumSet.allOf(Stage.class), analyse("<#import \"library.ftl\" as library><@library.message/>").getStages());
+	}
+
+	@Test
+	public void testEvaluatedCodeNeedsEverything() throws IOException {
+		AssertJUnit.assertTrue(analyse("${\"noOf\" + \"Tests\"?eval}").isDynamic());
+		AssertJUnit.assertTrue(analyse("<#assign message = \"$\" + \"{cancelledBy}\"><#assign inline = message?interpret><@inline/>").isDynamic());
+		AssertJUnit.assertFalse(analyse("${fullName?html}").isDynamic());
+	}
+
+	@Test
+	public void testUnknownNodeNeedsEverything() throws IOException {
+		// #visit and #recurse dispatch on node names the analysis cannot know
+		AssertJUnit.assertTrue(analyse("<#visit document>").isDynamic());
+		AssertJUnit.assertTrue(analyse("<#recurse document>").isDynamic());
+	}
+
+	@Test
+	public void testKnownDirectivesAreAnalysed() throws IOException {
+		HipChatTemplateVariables variables = analyse("<#macro line text>${text}<#nested></#macro><#compress><#attempt><@line text=fullName>${branch}</@line><#recover>${buildNumber}</#attempt></#compress>"
+				+ "<#switch buildId><#case 1>${triggeredBy}<#break><#default>${serverUrl}</#switch><#escape x as x?html>${projectId}</#escape>");
+
+		// Test
+		AssertJUnit.assertFalse(variables.isDynamic());
+		AssertJUnit.assertTrue(variables.getNames().containsAll(Arrays.asList("fullName", "branch", "buildNumber", "triggeredBy", "serverUrl", "projectId")));
+		AssertJUnit.assertFalse(variables.requires(Stage.TEST_STATISTICS));
+	}
+
+	private static HipChatTemplateVariables analyse(String source) throws IOException {
+		return HipChatTemplateVariables.analyse(new Template("template", new StringReader(source), new Configuration()));
+	}
+
+}
@@ -81,7 +81,7 @@ public class UtilsTest extends Utils {
 		when(project.getParentProjectId()).thenReturn(expectedParentProjectId);
 		
 		// Execute
-		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
+		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration.getSnapshot());
 		assertEquals(expectedParentsParentProjectId, actualParentConfiguration.getProjectId());
 		assertEquals(expectedParentsParentRoomId, actualParentConfiguration.getRoomId());
 		assertEquals(expectedParentsParentNotifyStatus, actualParentConfiguration.getNotifyStatus());
@@ -106,7 +106,7 @@ public class UtilsTest extends Utils {
 		when(project.getParentProjectId()).thenReturn(expectedParentProjectId);
 		
 		// Execute
-		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
+		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration.getSnapshot());
 		assertEquals(expectedParentProjectId, actualParentConfiguration.getProjectId());
 		assertEquals(expectedParentRoomId, actualParentConfiguration.getRoomId());
 		assertEquals(expectedParentNotifyStatus, actualParentConfiguration.getNotifyStatus());
@@ -131,7 +131,7 @@ public class UtilsTest extends Utils {
 		when(project.getParentProjectId()).thenReturn(expectedParentProjectId);
 		
 		// Execute
-		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
+		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration.getSnapshot());
 		assertEquals(expectedParentProjectId, actualParentConfiguration.getProjectId());
 		assertEquals(expectedParentRoomId, actualParentConfiguration.getRoomId());
 		assertEquals(expectedParentNotifyStatus, actualParentConfiguration.getNotifyStatus());
@@ -153,7 +153,7 @@ public class UtilsTest extends Utils {
 		when(project.getParentProjectId()).thenReturn(expectedParentProjectId);
 		
 		// Execute
-		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
+		HipChatProjectConfiguration actualParentConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration.getSnapshot());
 		assertNull(actualParentConfiguration);
 	}
 	
@@ -173,7 +173,7 @@ public class UtilsTest extends Utils {
 		when(project.getParentProject()).thenReturn(parentProject);
 		when(project.getParentProjectId()).thenReturn(expectedParentProjectId);
 		
-		HipChatProjectConfiguration projectConfiguration = Utils.determineProjectConfiguration(project, configuration);
+		HipChatProjectConfiguration projectConfiguration = Utils.determineProjectConfiguration(project, configuration.getSnapshot());
 		assertEquals(expectedProjectId, projectConfiguration.getRoomId());
 	}
 	
@@ -206,7 +206,7 @@ public class UtilsTest extends Utils {
 		configuration.setProjectConfiguration(parentProjectConfiguration);
 		
 		// Execute
-		HipChatProjectConfiguration actualEffectiveProjectConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration);
+		HipChatProjectConfiguration actualEffectiveProjectConfiguration = Utils.findFirstSpecificParentConfiguration(project, configuration.getSnapshot());
 		
 		// Test
 		assertNull(actualEffectiveProjectConfiguration);
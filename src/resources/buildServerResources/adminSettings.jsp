@@ -85,6 +85,14 @@ limitations under the License.
 				</th>
 				<td>
 					${emoticonCacheSize} items&nbsp;&mdash;&nbsp;<a href="#" onclick="return HipChatAdmin.reloadEmoticons()">Reload</a>
+					<c:choose>
+						<c:when test="${not empty emoticonLastRefresh}">
+							<span style="color: #888; font-size: 90%;">Last refreshed ${emoticonLastRefresh}, taking ${emoticonRefreshDuration} ms.</span>
+						</c:when>
+						<c:otherwise>
+							<span style="color: #888; font-size: 90%;">Not refreshed yet.</span>
+						</c:otherwise>
+					</c:choose>
 				</td>
 			</tr>
 			<tr class="groupingTitle">
@@ -111,10 +119,10 @@ limitations under the License.
 					<label for="branchFilterLabel">Branch filter: </label>
 				</th>
 				<td>
-					<textarea id="branchFilterRegex" name="branchFilterRegex" style="width: 92%;" placeholder="A regular expression to trigger notifications...">${branchFilterRegex}</textarea>
+					<textarea id="branchFilterRegex" name="branchFilterRegex" style="width: 92%;" placeholder="+:release/.*&#10;-:feature/.*">${branchFilterRegex}</textarea>
 					<div>
 						<forms:checkbox name="branchFilter" checked="${branchFilter}" value="${branchFilter}" />
-						<span style="color: #888; font-size: 90%;">When checked, branches (where supported by the VCS) will be filtered inclusively according to the regular expression.</span>			
+						<span style="color: #888; font-size: 90%;">When checked, branches (where supported by the VCS) will be filtered according to the rules: one regular expression per line, prefixed with +: to notify or -: to skip matching branches (no prefix skips). The last matching rule wins.</span>			
 					</div>
 				</td>
 			</tr>			
@@ -126,6 +134,7 @@ limitations under the License.
 					<textarea id="buildStartedTemplate" name="buildStartedTemplate" style="width: 92%;">${buildStartedTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="buildStartedTemplateDefaultLink">Default</a>
 					<input type="hidden" id="buildStartedTemplateDefault" value="${buildStartedTemplateDefault}" /><br>
+					<span style="color: #888; font-size: 90%;">Data collected for this template: ${buildStartedTemplateData}</span><br>
 					<forms:checkbox name="buildStarted" checked="${buildStarted}" value="${buildStarted}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when the build starts.</span>			
 				</td>
@@ -136,6 +145,7 @@ limitations under the License.
 					<textarea id="buildSuccessfulTemplate" name="buildSuccessfulTemplate" style="width: 92%;">${buildSuccessfulTemplate}</textarea>	
 					<a style="vertical-align: top;" href="#" id="buildSuccessfulTemplateDefaultLink">Default</a>
 					<input type="hidden" id="buildSuccessfulTemplateDefault" value="${buildSuccessfulTemplateDefault}" /><br>
+					<span style="color: #888; font-size: 90%;">Data collected for this template: ${buildSuccessfulTemplateData}</span><br>
 					<forms:checkbox name="buildSuccessful" checked="${buildSuccessful}" value="${buildSuccessful}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when a finished build is successful.</span><br>
 					<span style="padding-left: 1.5em;"><forms:checkbox name="onlyAfterFirstBuildSuccessful" checked="${onlyAfterFirstBuildSuccessful}" value="${onlyAfterFirstBuildSuccessful}" onclick="if (this.checked) { jQuery('#buildSuccessful').prop('checked', true); jQuery('#buildSuccessful').prop('disabled', true); } else { jQuery('#buildSuccessful').prop('disabled', false); } return true;"/></span>
@@ -148,6 +158,7 @@ limitations under the License.
 					<textarea id="buildFailedTemplate" name="buildFailedTemplate" style="width: 92%;">${buildFailedTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="buildFailedTemplateDefaultLink">Default</a>
 					<input type="hidden" id="buildFailedTemplateDefault" value="${buildFailedTemplateDefault}" /><br>
+					<span style="color: #888; font-size: 90%;">Data collected for this template: ${buildFailedTemplateData}</span><br>
 					<forms:checkbox name="buildFailed" checked="${buildFailed}" value="${buildFailed}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when a finished build failed.</span><br>
 					<span style="padding-left: 1.5em;"><forms:checkbox name="onlyAfterFirstBuildFailed" checked="${onlyAfterFirstBuildFailed}" value="${onlyAfterFirstBuildFailed}" onclick="if (this.checked) { jQuery('#buildFailed').prop('checked', true); jQuery('#buildFailed').prop('disabled', true); } else { jQuery('#buildFailed').prop('disabled', false); } return true;"/></span>
@@ -160,6 +171,7 @@ limitations under the License.
 					<textarea id="buildInterruptedTemplate" name="buildInterruptedTemplate" style="width: 92%;">${buildInterruptedTemplate}</textarea>
 					<a style="vertical-align: top;" href="#" id="buildInterruptedTemplateDefaultLink">Default</a>
 					<input type="hidden" id="buildInterruptedTemplateDefault" value="${buildInterruptedTemplateDefault}" /><br>
+					<span style="color: #888; font-size: 90%;">Data collected for this template: ${buildInterruptedTemplateData}</span><br>
 					<forms:checkbox name="buildInterrupted" checked="${buildInterrupted}" value="${buildInterrupted}"/>
 					<span style="color: #888; font-size: 90%;">When checked, a message will be sent when the build gets interrupted (i.e. cancelled).</span>
 				</td>
@@ -21,6 +21,7 @@ var HipChatProject = {
 				"project=1" + 
 				"&roomId="    + $("roomId").value +
 				"&notify="    + $("notify").checked + 
+				"&branchFilterRegex=" + encodeURIComponent($("branchFilterRegex").value) +
 				"&projectId=" + $("projectId").value,
 			onComplete : function(transport) {
 				if (transport.responseXML) {
@@ -64,7 +65,7 @@ var HipChatAdmin = {
 				"&serverEventRoomId="             + $("serverEventRoomId").value +
 				"&notify="                        + $("notify").checked + 
 				"&branchFilter="                  + $("branchFilter").checked + 
-				"&branchFilterRegex="             + $("branchFilterRegex").value + 
+				"&branchFilterRegex="             + encodeURIComponent($("branchFilterRegex").value) + 
 				"&buildStarted="                  + $("buildStarted").checked +
 				"&buildSuccessful="               + $("buildSuccessful").checked +
 				"&buildFailed="                   + $("buildFailed").checked +
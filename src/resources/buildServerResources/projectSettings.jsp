@@ -55,6 +55,13 @@ limitations under the License.
 					<span class="smallNote">When checked, a notification for all people in the room will be triggered, taking user preferences into account.</span>
 				</td>
 			</tr>
+			<tr>
+				<th><label for="branchFilterRegex">Branch filter: </label></th>
+				<td>
+					<textarea id="branchFilterRegex" name="branchFilterRegex" style="width: 92%;" placeholder="+:release/.*&#10;-:.*">${branchFilterRegex}</textarea>
+					<span class="smallNote">One regular expression per line, prefixed with +: to notify or -: to skip matching branches. Applied after the global branch filter; the last matching rule wins. When empty, the parent project's rules apply.</span>
+				</td>
+			</tr>
 		</table>
 		<div class="saveButtonsBlock">
 			<forms:submit label="Save" />